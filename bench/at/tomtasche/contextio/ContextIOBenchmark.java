@@ -0,0 +1,261 @@
+package at.tomtasche.contextio;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.scribe.model.OAuthRequest;
+import org.scribe.model.Verb;
+import org.scribe.utils.URLUtils;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Micro benchmarks for the client-side hot path. Network calls go to an in-process
+ * stub server. For each benchmark, the time and the heap allocated per operation are
+ * reported (the latter only on JVMs that can measure per-thread allocation).
+ *
+ * Run with: java at.tomtasche.contextio.ContextIOBenchmark [filter]
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+public class ContextIOBenchmark {
+
+	static final long WARMUP_MILLIS = 2000;
+	static final long MEASURE_MILLIS = 5000;
+	static final int BATCH = 100;
+
+	/**
+	 * A single operation to measure. The result is consumed so the JIT can't drop the work.
+	 */
+	abstract static class Benchmark {
+
+		final String name;
+
+		Benchmark(String name) {
+			this.name = name;
+		}
+
+		abstract Object run() throws Exception;
+	}
+
+	static volatile int sink;
+
+	public static void main(String[] args) throws Exception {
+		String filter = args.length > 0 ? args[0] : "";
+
+		final String payload = allMessagesPayload(25);
+		final byte[] payloadBytes = payload.getBytes("UTF-8");
+
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", new HttpHandler() {
+
+			public void handle(HttpExchange exchange) throws IOException {
+				exchange.getResponseHeaders().add("Content-Type", "application/json");
+				exchange.sendResponseHeaders(200, payloadBytes.length);
+
+				OutputStream body = exchange.getResponseBody();
+				body.write(payloadBytes);
+				body.close();
+			}
+		});
+		server.start();
+
+		final ContextIO contextIO = new ContextIO("benchmarkkey", "benchmarksecret");
+		contextIO.setSsl(false);
+		contextIO.setEndpoint("127.0.0.1:" + server.getAddress().getPort());
+
+		final Map<String, String> params = new HashMap<String, String>();
+		params.put("EMAIL", "someone@example.com");
+		params.put("from", "other@example.com");
+		params.put("limit", "25");
+		params.put("ignored", "value");
+
+		final String[] validParams = new String[] {"email", "to", "from", "cc", "bcc", "limit"};
+		final Map<String, String> filtered = contextIO.filterParams(params, validParams);
+		final String url = URLUtils.appendParametersToQueryString(contextIO.build_url("contactmessages.json"), filtered);
+		final Map<String, String> responseHeaders = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+		responseHeaders.put("Content-Type", "application/json");
+		responseHeaders.put("Content-Length", String.valueOf(payloadBytes.length));
+
+		Benchmark[] benchmarks = new Benchmark[] {
+			new Benchmark("filterParams") {
+
+				Object run() {
+					return contextIO.filterParams(params, validParams);
+				}
+			},
+			new Benchmark("ContextIOEndpoint.filter") {
+
+				Object run() {
+					return ContextIOEndpoint.CONTACT_MESSAGES.filter(params, "someone@example.com");
+				}
+			},
+			new Benchmark("build_url") {
+
+				Object run() {
+					return contextIO.build_url("contactmessages.json");
+				}
+			},
+			new Benchmark("appendParametersToQueryString") {
+
+				Object run() {
+					return URLUtils.appendParametersToQueryString(contextIO.build_url("contactmessages.json"), filtered);
+				}
+			},
+			new Benchmark("ContextIOEndpoint.buildUrl") {
+
+				Object run() {
+					return ContextIOEndpoint.buildUrl(contextIO.build_baseurl(), "contactmessages.json", filtered);
+				}
+			},
+			new Benchmark("signRequest") {
+
+				Object run() {
+					OAuthRequest request = new OAuthRequest(Verb.GET, url);
+					contextIO.service.signRequest(ContextIO.NULL_TOKEN, request);
+
+					return request.getHeaders();
+				}
+			},
+			new Benchmark("ContextIOResponse") {
+
+				Object run() {
+					HttpResponse raw = new HttpResponse(200, "OK", responseHeaders, null);
+
+					return new ContextIOResponse(200, filtered, raw);
+				}
+			},
+			new Benchmark("decode allmessages (list)") {
+
+				Object run() {
+					HttpResponse raw = new HttpResponse(200, "OK", responseHeaders, null);
+					raw.body = payload;
+
+					return new ContextIOResponse(200, filtered, raw).getMessages();
+				}
+			},
+			new Benchmark("decode allmessages (iterator)") {
+
+				Object run() {
+					HttpResponse raw = new HttpResponse(200, "OK", responseHeaders, null);
+					raw.body = payload;
+
+					int count = 0;
+					for (ContextIOMessage message : new ContextIOResponse(200, filtered, raw).iterate(ContextIOMessage.class)) {
+						count += message.date > 0 ? 1 : 0;
+					}
+
+					return count;
+				}
+			},
+			new Benchmark("doCall (stub server)") {
+
+				Object run() {
+					return contextIO.contactMessages("someone@example.com", params).rawResponse.getBody();
+				}
+			},
+		};
+
+		System.out.println(String.format("%-32s %14s %14s %14s", "Benchmark", "ns/op", "ops/s", "bytes/op"));
+		for (Benchmark benchmark : benchmarks) {
+			if (benchmark.name.contains(filter)) {
+				measure(benchmark);
+			}
+		}
+
+		System.out.println("GC: " + gcSummary());
+		System.out.println(contextIO.getConnectionPool());
+
+		contextIO.close();
+		server.stop(0);
+	}
+
+	static void measure(Benchmark benchmark) throws Exception {
+		loop(benchmark, WARMUP_MILLIS);
+
+		long allocatedBefore = allocatedBytes();
+		long start = System.nanoTime();
+		long operations = loop(benchmark, MEASURE_MILLIS);
+		long elapsed = System.nanoTime() - start;
+		long allocated = allocatedBytes() - allocatedBefore;
+
+		double nanosPerOperation = (double) elapsed / operations;
+		String bytesPerOperation = allocatedBefore < 0 ? "n/a" : String.format("%.1f", (double) allocated / operations);
+
+		System.out.println(String.format("%-32s %14.1f %14.0f %14s", benchmark.name, nanosPerOperation, 1e9 / nanosPerOperation, bytesPerOperation));
+	}
+
+	static long loop(Benchmark benchmark, long millis) throws Exception {
+		long end = System.currentTimeMillis() + millis;
+		long operations = 0;
+		int hash = 0;
+
+		while (System.currentTimeMillis() < end) {
+			for (int i = 0; i < BATCH; i++) {
+				Object result = benchmark.run();
+				hash += result == null ? 0 : System.identityHashCode(result);
+			}
+
+			operations += BATCH;
+		}
+
+		sink = hash;
+
+		return operations;
+	}
+
+	/**
+	 * Bytes allocated by the current thread so far, or -1 if the JVM can't tell.
+	 * Uses com.sun.management.ThreadMXBean reflectively, it is not available everywhere.
+	 */
+	static long allocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		try {
+			Method method = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+
+			return (Long) method.invoke(threads, Thread.currentThread().getId());
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+
+	static String gcSummary() {
+		StringBuilder summary = new StringBuilder();
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			summary.append(collector.getName()).append('=').append(collector.getCollectionCount())
+					.append(" (").append(collector.getCollectionTime()).append("ms) ");
+		}
+
+		return summary.toString().trim();
+	}
+
+	static String allMessagesPayload(int count) {
+		StringBuilder payload = new StringBuilder("{\"messages\":[],\"data\":[");
+		for (int i = 0; i < count; i++) {
+			if (i > 0) {
+				payload.append(',');
+			}
+
+			payload.append("{\"emailMessageId\":\"<").append(1000 + i).append("@mail.example.com>\",");
+			payload.append("\"subject\":\"Quarterly report ").append(i).append("\",");
+			payload.append("\"date\":").append(1313000000 + i * 60).append(',');
+			payload.append("\"gmailThreadId\":\"12f").append(i).append("a\",");
+			payload.append("\"addresses\":{\"from\":{\"email\":\"sender@example.com\",\"name\":\"Sender\"},");
+			payload.append("\"to\":[{\"email\":\"someone@example.com\",\"name\":\"Someone\"}],\"cc\":[]},");
+			payload.append("\"files\":[],\"folders\":[\"Inbox\"]}");
+		}
+
+		return payload.append("]}").toString();
+	}
+}
@@ -0,0 +1,159 @@
+package at.tomtasche.contextio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Checks that compressed responses are decoded correctly by {@link HttpTransport}. A stub
+ * server answers with every body encoding the transport has to handle: gzip with a length,
+ * gzip in chunks, deflate in a zlib wrapper, raw deflate as some servers send it, no encoding
+ * at all and an empty compressed body. Each case is followed by a plain call to make sure
+ * the connection is still usable after the body was decompressed, so all calls have to share
+ * a single connection.
+ *
+ * Run with: java at.tomtasche.contextio.ContextIOCompressionCheck
+ * Exits with status 1 if any check fails.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+public class ContextIOCompressionCheck {
+
+	static final String[] CASES = new String[] {"gzip", "gzip-chunked", "zlib", "raw-deflate", "identity", "empty"};
+
+	static volatile String mode;
+	static volatile String acceptEncoding;
+
+	static int failures;
+
+	public static void main(String[] args) throws Exception {
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+
+		StringBuilder json = new StringBuilder("{\"data\":[");
+		for (int i = 0; i < 500; i++) {
+			if (i > 0) {
+				json.append(',');
+			}
+
+			json.append("{\"emailMessageId\":\"<m").append(i).append("@example.com>\",\"subject\":\"Quarterly report ")
+					.append(i).append("\",\"date\":").append(1300000000 + i).append('}');
+		}
+		final String payload = json.append("]}").toString();
+		final byte[] plain = payload.getBytes("UTF-8");
+
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", new HttpHandler() {
+
+			public void handle(HttpExchange exchange) throws IOException {
+				acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+
+				String encoding = null;
+				byte[] body = plain;
+				boolean chunked = false;
+
+				String current = mode;
+				if (current.startsWith("gzip")) {
+					ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+					GZIPOutputStream out = new GZIPOutputStream(buffer);
+					out.write(plain);
+					out.close();
+
+					encoding = "gzip";
+					body = buffer.toByteArray();
+					chunked = current.equals("gzip-chunked");
+				} else if (current.equals("zlib") || current.equals("raw-deflate")) {
+					ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+					DeflaterOutputStream out = new DeflaterOutputStream(buffer, new Deflater(Deflater.DEFAULT_COMPRESSION, current.equals("raw-deflate")));
+					out.write(plain);
+					out.close();
+
+					encoding = "deflate";
+					body = buffer.toByteArray();
+				} else if (current.equals("empty")) {
+					// HttpServer closes the connection after a response sent without a body,
+					// an empty chunked body keeps it open
+					encoding = "gzip";
+					body = new byte[0];
+					chunked = true;
+				}
+
+				exchange.getResponseHeaders().add("Content-Type", "application/json");
+				if (encoding != null) {
+					exchange.getResponseHeaders().add("Content-Encoding", encoding);
+				}
+				exchange.sendResponseHeaders(200, chunked ? 0 : body.length);
+
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}
+		});
+		server.start();
+
+		ContextIO contextIO = new ContextIO("compressionkey", "compressionsecret");
+		contextIO.setSsl(false);
+		contextIO.setEndpoint("127.0.0.1:" + server.getAddress().getPort());
+
+		Map<String, String> params = new HashMap<String, String>();
+		params.put("since", "0");
+
+		for (String current : CASES) {
+			mode = current;
+
+			ContextIOResponse response = contextIO.allMessages("someone@example.com", params);
+			String body = response.getBody();
+			HttpTimings timings = response.getTimings();
+
+			String expectedEncoding = current.startsWith("gzip") || current.equals("empty") ? "gzip"
+					: current.equals("identity") ? null : "deflate";
+			String expectedBody = current.equals("empty") ? "" : payload;
+
+			check(current, "Accept-Encoding sent", acceptEncoding != null && acceptEncoding.contains("gzip"));
+			check(current, "body decoded", expectedBody.equals(body));
+			check(current, "encoding " + expectedEncoding, expectedEncoding == null ? timings.getContentEncoding() == null
+					: expectedEncoding.equals(timings.getContentEncoding()));
+			check(current, "body complete", timings.isBodyComplete());
+
+			System.out.println(String.format("%-12s wire=%7d decoded=%7d", current, timings.getResponseBytes(), timings.getDecodedBytes()));
+
+			// the next call has to find the connection in a clean state
+			mode = "identity";
+			check(current, "connection usable afterwards", payload.equals(contextIO.allMessages("someone@example.com", params).getBody()));
+		}
+
+		HttpConnectionPool pool = contextIO.getConnectionPool();
+		check("all", "one connection for " + pool.getRequestCount() + " calls", pool.getOpenedCount() == 1);
+
+		contextIO.getTransport().setCompression(false);
+		mode = "identity";
+		contextIO.allMessages("someone@example.com", params).getBody();
+		check("disabled", "no Accept-Encoding", acceptEncoding == null || !acceptEncoding.contains("gzip"));
+
+		System.out.println(pool);
+		System.out.println(failures == 0 ? "all checks passed" : failures + " checks failed");
+
+		contextIO.close();
+		server.stop(0);
+
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	static void check(String name, String description, boolean passed) {
+		if (!passed) {
+			System.out.println("FAILED " + name + ": " + description);
+
+			failures++;
+		}
+	}
+}
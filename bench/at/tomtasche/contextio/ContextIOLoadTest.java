@@ -0,0 +1,378 @@
+package at.tomtasche.contextio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Load generator that replays recorded calls against a local {@link ContextIOReplayServer}
+ * and reports throughput and latency percentiles, to size thread pools and rate limits
+ * without sending calls to Context.IO.
+ *
+ * Every recorded call is made again through the endpoint it belongs to, by any number of
+ * threads, for a fixed time. Without a recording, a few calls are recorded from an
+ * in-process stub first.
+ *
+ * Run with: java at.tomtasche.contextio.ContextIOLoadTest [options]
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+public class ContextIOLoadTest {
+
+	static final String USAGE = "Usage: java at.tomtasche.contextio.ContextIOLoadTest [options]\n"
+			+ "  --recording FILE        calls to replay, recorded with RecordingHttpTransport (default: synthetic calls)\n"
+			+ "  --threads N             client threads making calls (default 16)\n"
+			+ "  --duration SECONDS      how long to make calls (default 10)\n"
+			+ "  --warmup SECONDS        calls made before measuring (default 2)\n"
+			+ "  --concurrency N         calls the server serves at the same time (default 8)\n"
+			+ "  --latency MS            server latency of every call (default 20)\n"
+			+ "  --jitter MS             random latency added on top (default 0)\n"
+			+ "  --throttle RATE         share of calls answered with 429 (default 0)\n"
+			+ "  --retry-after SECONDS   Retry-After sent along with 429, 0 for none (default 1)\n"
+			+ "  --errors RATE           share of calls answered with a server error (default 0)\n"
+			+ "  --error-code CODE       status of those errors (default 500)\n"
+			+ "  --slow RATE             share of bodies sent slowly (default 0)\n"
+			+ "  --slow-bps N            bytes per second of slow bodies (default 16384)\n"
+			+ "  --retries N             client retries on 429 and 503 (default 0)\n"
+			+ "  --rate N                client rate limit in calls per second (default none)\n"
+			+ "  --seed N                seed of the failure injection (default random)";
+
+	/**
+	 * A recorded call, decoded back into the arguments of the endpoint method.
+	 */
+	static class Call {
+
+		final String method;
+		final String action;
+		final String account;
+		final Map<String, String> params;
+		final ContextIOEndpoint endpoint;
+
+		Call(String method, String action, Map<String, String> params) {
+			this.method = method;
+			this.action = action;
+			this.params = params;
+			this.account = params.get("account");
+
+			ContextIOEndpoint match = null;
+			for (ContextIOEndpoint endpoint : ContextIOEndpoint.all()) {
+				if (endpoint.action.equals(action) && endpoint.method.equals(method)) {
+					match = endpoint;
+				}
+			}
+			this.endpoint = match;
+		}
+
+		ContextIOResponse run(ContextIO contextIO) {
+			if (endpoint != null) {
+				return contextIO.dispatch(endpoint.method, account, endpoint.action, endpoint.filter(params, account), null);
+			}
+
+			return contextIO.execute(method, account, action, params, null);
+		}
+
+		String name() {
+			return endpoint != null ? endpoint.name : method + " " + action;
+		}
+	}
+
+	/**
+	 * Results of the measured calls, shared by all client threads.
+	 */
+	static class Results {
+
+		final ContextIOHistogram latencyMicros = new ContextIOHistogram();
+		final Map<String, ContextIOHistogram> byEndpoint = new TreeMap<String, ContextIOHistogram>();
+		final AtomicLong[] codes = new AtomicLong[600];
+		final AtomicLong exceptions = new AtomicLong();
+		final AtomicLong bytes = new AtomicLong();
+
+		Results(List<Call> calls) {
+			for (int i = 0; i < codes.length; i++) {
+				codes[i] = new AtomicLong();
+			}
+
+			for (Call call : calls) {
+				if (!byEndpoint.containsKey(call.name())) {
+					byEndpoint.put(call.name(), new ContextIOHistogram());
+				}
+			}
+		}
+
+		void record(Call call, int code, long micros, long length) {
+			latencyMicros.record(micros);
+			byEndpoint.get(call.name()).record(micros);
+			codes[code >= 0 && code < codes.length ? code : 0].incrementAndGet();
+			bytes.addAndGet(length);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = parseOptions(args);
+		if (options == null) {
+			System.err.println(USAGE);
+			System.exit(2);
+		}
+
+		// otherwise the JDK server's Nagle delay meets the client's delayed ACK and adds ~40ms per call
+		if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		}
+
+		int threads = intOption(options, "threads", 16);
+		long durationMillis = intOption(options, "duration", 10) * 1000L;
+		long warmupMillis = intOption(options, "warmup", 2) * 1000L;
+
+		ContextIORecording recording = options.containsKey("recording") ? new ContextIORecording(new File(options.get("recording"))) : syntheticRecording();
+		List<Call> calls = calls(recording);
+		if (calls.isEmpty()) {
+			System.err.println("Recording " + recording + " has no calls to replay");
+			System.exit(1);
+		}
+
+		Random random = options.containsKey("seed") ? new Random(Long.parseLong(options.get("seed"))) : new Random();
+		ContextIOReplayServer server = new ContextIOReplayServer(recording, random);
+		server.setConcurrency(intOption(options, "concurrency", 8));
+		server.setLatency(intOption(options, "latency", 20), intOption(options, "jitter", 0));
+		server.setThrottleRate(doubleOption(options, "throttle", 0), intOption(options, "retry-after", 1));
+		server.setErrorRate(doubleOption(options, "errors", 0), intOption(options, "error-code", 500));
+		server.setSlowRate(doubleOption(options, "slow", 0), intOption(options, "slow-bps", 16 * 1024));
+		server.start(0);
+
+		ContextIO contextIO = new ContextIO("loadtestkey", "loadtestsecret");
+		contextIO.setSsl(false);
+		contextIO.setEndpoint(server.getEndpoint());
+		contextIO.getConnectionPool().setMaxIdlePerRoute(threads);
+		contextIO.setRetries(intOption(options, "retries", 0), 100, 2000);
+		if (options.containsKey("rate")) {
+			contextIO.setRateLimiter(new ContextIORateLimiter(doubleOption(options, "rate", 0), 0));
+		}
+
+		System.out.println("Replaying " + calls.size() + " calls from " + recording + " with " + threads + " threads");
+		System.out.println("Server: concurrency=" + server.getConcurrency() + ", latency=" + server.getLatencyMillis() + "ms+"
+				+ server.getJitterMillis() + "ms, throttle=" + server.getThrottleRate() + ", errors=" + server.getErrorRate()
+				+ ", slow=" + server.getSlowRate());
+
+		if (warmupMillis > 0) {
+			run(contextIO, calls, threads, warmupMillis, new Results(calls));
+		}
+
+		long retriesBefore = contextIO.getRetryCount();
+		Results results = new Results(calls);
+		long elapsed = run(contextIO, calls, threads, durationMillis, results);
+
+		report(results, elapsed, contextIO.getRetryCount() - retriesBefore);
+		System.out.println(server);
+		System.out.println(contextIO.getConnectionPool());
+		if (contextIO.getRateLimiter() != null) {
+			System.out.println(contextIO.getRateLimiter());
+		}
+
+		contextIO.close();
+		server.close();
+		recording.close();
+	}
+
+	/**
+	 * Makes calls from all threads until the time is up.
+	 * @return Nanoseconds the run took
+	 */
+	static long run(final ContextIO contextIO, final List<Call> calls, int threads, long millis, final Results results) throws InterruptedException {
+		final long end = System.nanoTime() + millis * 1000000L;
+		final AtomicInteger next = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(threads);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < threads; i++) {
+			Thread thread = new Thread(new Runnable() {
+
+				public void run() {
+					try {
+						while (System.nanoTime() < end) {
+							Call call = calls.get((next.getAndIncrement() & Integer.MAX_VALUE) % calls.size());
+
+							long started = System.nanoTime();
+							try {
+								ContextIOResponse response = call.run(contextIO);
+								// the body is part of the call, read it completely
+								long length = response.rawResponse.getBytes().length;
+
+								results.record(call, response.code, (System.nanoTime() - started) / 1000, length);
+							} catch (RuntimeException e) {
+								results.exceptions.incrementAndGet();
+							}
+						}
+					} finally {
+						done.countDown();
+					}
+				}
+			}, "ContextIO-loadtest-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		done.await();
+
+		return System.nanoTime() - start;
+	}
+
+	static void report(Results results, long elapsedNanos, long retries) {
+		ContextIOHistogram all = results.latencyMicros;
+		double seconds = elapsedNanos / 1e9;
+
+		System.out.println();
+		System.out.println(String.format("Calls: %d in %.1fs, %.1f calls/s, %.1f KB/s", all.getCount(), seconds,
+				all.getCount() / seconds, results.bytes.get() / 1024.0 / seconds));
+
+		StringBuilder codes = new StringBuilder();
+		for (int code = 0; code < results.codes.length; code++) {
+			long count = results.codes[code].get();
+			if (count > 0) {
+				codes.append(code).append('=').append(count).append(' ');
+			}
+		}
+		System.out.println("Status: " + codes + "exceptions=" + results.exceptions + " retries=" + retries);
+
+		System.out.println();
+		System.out.println(String.format("%-24s %10s %10s %10s %10s %10s %10s %10s", "Latency (ms)", "count", "mean", "p50", "p90", "p99", "p99.9", "max"));
+		printLatency("all", all);
+		for (Map.Entry<String, ContextIOHistogram> endpoint : results.byEndpoint.entrySet()) {
+			printLatency(endpoint.getKey(), endpoint.getValue());
+		}
+		System.out.println();
+	}
+
+	static void printLatency(String name, ContextIOHistogram histogram) {
+		System.out.println(String.format("%-24s %10d %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f", name, histogram.getCount(),
+				histogram.getMean() / 1000, histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(90) / 1000.0,
+				histogram.getValueAtPercentile(99) / 1000.0, histogram.getValueAtPercentile(99.9) / 1000.0, histogram.getMax() / 1000.0));
+	}
+
+	/**
+	 * Turns the recorded exchanges back into calls. Keys look like "GET /1.1/allmessages.json?account=...".
+	 */
+	static List<Call> calls(ContextIORecording recording) throws UnsupportedEncodingException {
+		List<Call> calls = new ArrayList<Call>();
+		for (ContextIORecording.Exchange exchange : recording.getExchanges()) {
+			String key = exchange.getKey();
+			String target = key.substring(key.indexOf(' ') + 1);
+
+			String path = target;
+			Map<String, String> params = new HashMap<String, String>();
+
+			int question = target.indexOf('?');
+			if (question >= 0) {
+				path = target.substring(0, question);
+
+				for (String param : target.substring(question + 1).split("&")) {
+					int equals = param.indexOf('=');
+					if (equals > 0) {
+						params.put(URLDecoder.decode(param.substring(0, equals), "UTF-8"), URLDecoder.decode(param.substring(equals + 1), "UTF-8"));
+					}
+				}
+			}
+
+			// strip the API version, "/1.1/allmessages.json" becomes "allmessages.json"
+			int slash = path.indexOf('/', 1);
+			String action = slash >= 0 ? path.substring(slash + 1) : path.substring(1);
+
+			calls.add(new Call(exchange.getMethod(), action, params));
+		}
+
+		return calls;
+	}
+
+	/**
+	 * Records a few calls of common endpoints from an in-process stub.
+	 */
+	static ContextIORecording syntheticRecording() throws IOException {
+		final byte[] messages = ContextIOBenchmark.allMessagesPayload(25).getBytes("UTF-8");
+		final byte[] message = ContextIOBenchmark.allMessagesPayload(1).getBytes("UTF-8");
+
+		HttpServer stub = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		stub.createContext("/", new HttpHandler() {
+
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] body = exchange.getRequestURI().getPath().endsWith("messageinfo.json") ? message : messages;
+
+				exchange.getResponseHeaders().add("Content-Type", "application/json");
+				exchange.sendResponseHeaders(200, body.length);
+
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}
+		});
+		stub.start();
+
+		ContextIORecording recording = new ContextIORecording();
+
+		ContextIO contextIO = new ContextIO("loadtestkey", "loadtestsecret");
+		contextIO.setSsl(false);
+		contextIO.setEndpoint("127.0.0.1:" + stub.getAddress().getPort());
+		contextIO.setTransport(new RecordingHttpTransport(recording));
+
+		try {
+			for (int i = 0; i < 4; i++) {
+				String account = "user" + i + "@example.com";
+
+				Map<String, String> params = new HashMap<String, String>();
+				params.put("since", "0");
+				params.put("limit", "25");
+				contextIO.allMessages(account, params);
+
+				params = new HashMap<String, String>();
+				params.put("email", "someone@example.com");
+				contextIO.contactMessages(account, params);
+
+				params = new HashMap<String, String>();
+				params.put("emailMessageId", "<100" + i + "@mail.example.com>");
+				contextIO.messageInfo(account, params);
+			}
+		} finally {
+			contextIO.close();
+			stub.stop(0);
+		}
+
+		return recording;
+	}
+
+	static Map<String, String> parseOptions(String[] args) {
+		Map<String, String> options = new LinkedHashMap<String, String>();
+		for (int i = 0; i < args.length; i += 2) {
+			if (!args[i].startsWith("--") || i + 1 >= args.length) {
+				return null;
+			}
+
+			options.put(args[i].substring(2), args[i + 1]);
+		}
+
+		return options;
+	}
+
+	static int intOption(Map<String, String> options, String name, int defaultValue) {
+		return options.containsKey(name) ? Integer.parseInt(options.get(name)) : defaultValue;
+	}
+
+	static double doubleOption(Map<String, String> options, String name, double defaultValue) {
+		return options.containsKey(name) ? Double.parseDouble(options.get(name)) : defaultValue;
+	}
+}
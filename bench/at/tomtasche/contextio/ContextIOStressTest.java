@@ -0,0 +1,199 @@
+package at.tomtasche.contextio;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Checks that a frozen ContextIO instance can be shared by many threads without their calls
+ * getting mixed up. Every call carries a value unique to the thread and the call, the stub
+ * server echoes the query string it received, account included, and each thread checks that the
+ * response it got, and the one {@link ContextIO#getLastResponse()} returns, belong to its own
+ * call. Synchronous and asynchronous calls are mixed, and the stub answers after a random
+ * delay so responses arrive out of order.
+ *
+ * Run with: java at.tomtasche.contextio.ContextIOStressTest [threads] [calls per thread]
+ * Exits with status 1 if any call got someone else's response.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+public class ContextIOStressTest {
+
+	public static void main(String[] args) throws Exception {
+		final int threads = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+		final int calls = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+
+		final Random random = new Random(42);
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(Executors.newFixedThreadPool(32));
+		server.createContext("/", new HttpHandler() {
+
+			public void handle(HttpExchange exchange) throws IOException {
+				int delay;
+				synchronized (random) {
+					delay = random.nextInt(4);
+				}
+
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+
+				String query = exchange.getRequestURI().getRawQuery();
+				byte[] body = ("{\"data\":{\"query\":\"" + query + "\"}}").getBytes("UTF-8");
+
+				exchange.getResponseHeaders().add("Content-Type", "application/json");
+				exchange.sendResponseHeaders(200, body.length);
+
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}
+		});
+		server.start();
+
+		final ContextIO contextIO = new ContextIO("stresskey", "stresssecret");
+		contextIO.setSsl(false);
+		contextIO.setEndpoint("127.0.0.1:" + server.getAddress().getPort());
+		contextIO.getConnectionPool().setMaxIdlePerRoute(threads);
+		contextIO.freeze();
+
+		int failures = checkFrozen(contextIO);
+
+		final AtomicLong completed = new AtomicLong();
+		final AtomicLong crossTalk = new AtomicLong();
+		final List<String> examples = new ArrayList<String>();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+
+			pool.execute(new Runnable() {
+
+				@SuppressWarnings("deprecation")
+				public void run() {
+					try {
+						start.await();
+
+						for (int call = 0; call < calls; call++) {
+							String account = "account" + thread;
+							String token = "t" + thread + "c" + call;
+
+							Map<String, String> params = new HashMap<String, String>();
+							params.put("email", token);
+
+							ContextIOResponse response;
+							boolean async = call % 3 == 0;
+							if (async) {
+								response = contextIO.async().contactMessages(account, params).get();
+							} else {
+								response = contextIO.contactMessages(account, params);
+							}
+
+							String problem = null;
+							if (response == null) {
+								problem = "no response";
+							} else if (!matches(response, account, token)) {
+								problem = "got " + response.getBody();
+							} else if (!async && contextIO.getLastResponse() != response) {
+								problem = "last response belongs to another call";
+							}
+
+							if (problem != null) {
+								crossTalk.incrementAndGet();
+
+								synchronized (examples) {
+									if (examples.size() < 10) {
+										examples.add(token + ": " + problem);
+									}
+								}
+							}
+
+							completed.incrementAndGet();
+						}
+					} catch (Exception e) {
+						synchronized (examples) {
+							examples.add("thread " + thread + " failed: " + e);
+						}
+
+						crossTalk.incrementAndGet();
+					} finally {
+						done.countDown();
+					}
+				}
+			});
+		}
+
+		long started = System.nanoTime();
+		start.countDown();
+		done.await();
+		long elapsed = System.nanoTime() - started;
+
+		pool.shutdown();
+
+		System.out.println(String.format("%d threads, %d calls in %.1fs, %d with someone else's response",
+				threads, completed.get(), elapsed / 1e9, crossTalk.get()));
+		for (String example : examples) {
+			System.out.println("  " + example);
+		}
+		System.out.println(contextIO.getConnectionPool());
+
+		contextIO.close();
+		server.stop(0);
+
+		System.exit(failures + crossTalk.get() == 0 ? 0 : 1);
+	}
+
+	static boolean matches(ContextIOResponse response, String account, String token) {
+		response.decodeResponse();
+
+		String query = "&" + response.getDecodedResponse().getAsJsonObject().getAsJsonObject("data").get("query").getAsString() + "&";
+
+		return query.contains("&account=" + account + "&") && query.contains("&email=" + token + "&")
+				&& account.equals(response.getAccount());
+	}
+
+	/**
+	 * @return Number of ways a frozen instance could still be reconfigured
+	 */
+	static int checkFrozen(ContextIO contextIO) {
+		int failures = 0;
+
+		try {
+			contextIO.setEndpoint("example.com");
+
+			System.out.println("setEndpoint works on a frozen instance");
+			failures++;
+		} catch (IllegalStateException expected) {
+		}
+
+		try {
+			contextIO.getCachedActions().add("allmessages.json");
+
+			System.out.println("cached actions of a frozen instance can be modified");
+			failures++;
+		} catch (UnsupportedOperationException expected) {
+		}
+
+		return failures;
+	}
+}
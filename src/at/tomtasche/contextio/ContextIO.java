@@ -1,12 +1,26 @@
 package at.tomtasche.contextio;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.scribe.builder.ServiceBuilder;
+import org.scribe.exceptions.OAuthException;
 import org.scribe.model.OAuthRequest;
-import org.scribe.model.Response;
 import org.scribe.model.Token;
 import org.scribe.model.Verb;
 import org.scribe.oauth.OAuthService;
@@ -21,13 +35,36 @@ public class ContextIO {
 
 	static final String ENDPOINT = "api.context.io";
 
-	String key;
-	String secret;
-	String apiVersion;
-	boolean ssl;
-	boolean saveHeaders;
-	boolean authHeaders;
-	ContextIOResponse lastResponse;
+	static final Token NULL_TOKEN = new Token("", "");
+
+	static final int DEFAULT_PAGE_SIZE = 100;
+
+	// configuration is read by every call without locking, volatile makes changes
+	// visible to calls on other threads
+	volatile String key;
+	volatile String secret;
+	volatile String endpoint;
+	volatile String apiVersion;
+	volatile boolean ssl;
+	volatile String baseUrl;
+	volatile boolean saveHeaders;
+	volatile boolean authHeaders;
+	final ThreadLocal<ContextIOResponse> lastResponse;
+	volatile boolean frozen;
+	volatile OAuthService service;
+	volatile HttpTransport transport;
+	ContextIOAsync async;
+	volatile int batchConcurrency;
+	volatile ContextIOCache cache;
+	volatile Set<String> cachedActions;
+	volatile boolean coalescing;
+	volatile ContextIOSingleFlight singleFlight;
+	volatile ContextIORateLimiter rateLimiter;
+	volatile int maxRetries;
+	volatile long retryDelayMillis;
+	volatile long maxRetryDelayMillis;
+	volatile ContextIOListener listener;
+	final AtomicLong retries = new AtomicLong();
 
 	/**
 	 * Instantiate a new ContextIO object. Your OAuth consumer key and secret can be
@@ -40,7 +77,16 @@ public class ContextIO {
 		this.secret = secret;
 		this.ssl = true;
 		this.saveHeaders = false;
+		this.endpoint = ENDPOINT;
 		this.apiVersion = "1.1";
+		this.batchConcurrency = 16;
+		this.lastResponse = new ThreadLocal<ContextIOResponse>();
+		this.singleFlight = new ContextIOSingleFlight();
+		this.retryDelayMillis = 500;
+		this.maxRetryDelayMillis = 30000;
+		this.cachedActions = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList("adresses.json", "messageinfo.json", "messageheaders.json", "threadinfo.json", "imap/accountinfo.json")));
+		this.service = new ServiceBuilder().provider(ContextIOApi.class).apiKey(key).apiSecret(secret).build();
+		this.transport = new HttpTransport();
 	}
 
 
@@ -51,7 +97,7 @@ public class ContextIO {
 	 * @return ContextIOResponse
 	 */
 	public ContextIOResponse addresses(String account) {
-		return get(account, "adresses.json", null);
+		return call(ContextIOEndpoint.ADDRESSES, account, null);
 	}
 
 	/**
@@ -62,9 +108,7 @@ public class ContextIO {
 	 * @return ContextIOResponse
 	 */
 	public ContextIOResponse allFiles(String account, Map<String, String> params) {
-		params = filterParams(params, new String[] {"since", "limit"});
-
-		return get(account, "allfiles.json", params);
+		return call(ContextIOEndpoint.ALL_FILES, account, params);
 	}
 
 	/**
@@ -77,9 +121,62 @@ public class ContextIO {
 	 * @return ContextIOResponse
 	 */
 	public ContextIOResponse allMessages(String account, Map<String, String> params) {
-		params = filterParams(params, new String[] {"since", "limit"});
+		return call(ContextIOEndpoint.ALL_MESSAGES, account, params);
+	}
+
+	/**
+	 * Iterates over all messages indexed since a given timestamp, fetching them
+	 * page by page as the iteration proceeds. See {@link ContextIOPager}.
+	 * @param account accountId or email address of the mailbox you want to query
+	 * @param since Unix timestamp to start at
+	 * @return ContextIOPager
+	 */
+	public ContextIOPager<ContextIOMessage> iterateAllMessages(String account, long since) {
+		return iterateAllMessages(account, since, DEFAULT_PAGE_SIZE);
+	}
+
+	/**
+	 * @see #iterateAllMessages(String, long)
+	 * @param pageSize Number of messages to request per call
+	 */
+	public ContextIOPager<ContextIOMessage> iterateAllMessages(String account, long since, int pageSize) {
+		return new ContextIOPager<ContextIOMessage>(this, account, "allmessages.json", since, pageSize, ContextIOMessage.class, ContextIOPager.MESSAGES);
+	}
+
+	/**
+	 * Iterates over all attachments indexed since a given timestamp, fetching them
+	 * page by page as the iteration proceeds. See {@link ContextIOPager}.
+	 * @param account accountId or email address of the mailbox you want to query
+	 * @param since Unix timestamp to start at
+	 * @return ContextIOPager
+	 */
+	public ContextIOPager<ContextIOFile> iterateAllFiles(String account, long since) {
+		return iterateAllFiles(account, since, DEFAULT_PAGE_SIZE);
+	}
+
+	/**
+	 * @see #iterateAllFiles(String, long)
+	 * @param pageSize Number of files to request per call
+	 */
+	public ContextIOPager<ContextIOFile> iterateAllFiles(String account, long since, int pageSize) {
+		return new ContextIOPager<ContextIOFile>(this, account, "allfiles.json", since, pageSize, ContextIOFile.class, ContextIOPager.FILES);
+	}
 
-		return get(account, "allmessages.json", params);
+	/**
+	 * Iterates over the messages exchanged with one or more contacts, decoding them
+	 * one by one from the response. contactmessages.json has no since parameter
+	 * to page with, use 'limit' to control how many messages are returned.
+	 * @param account accountId or email address of the mailbox you want to query
+	 * @param params Query parameters for the API call: 'email', 'to', 'from', 'cc', 'bcc', 'limit'
+	 * @return ContextIOIterator, or null if the call failed
+	 */
+	public ContextIOIterator<ContextIOMessage> iterateContactMessages(String account, Map<String, String> params) {
+		ContextIOResponse response = contactMessages(account, params);
+		if (response == null) {
+			return null;
+		}
+
+		return response.iterate(ContextIOMessage.class);
 	}
 
 	/**
@@ -91,9 +188,7 @@ public class ContextIO {
 	 * @return ContextIOResponse
 	 */
 	public ContextIOResponse contactFiles(String account, Map<String, String> params) {
-		params = filterParams(params, new String[] {"email", "to", "from", "cc", "bcc", "limit"});
-
-		return get(account, "contactfiles.json", params);
+		return call(ContextIOEndpoint.CONTACT_FILES, account, params);
 	}
 
 	/**
@@ -106,9 +201,7 @@ public class ContextIO {
 	 * @return ContextIOResponse
 	 */
 	public ContextIOResponse contactMessages(String account, Map<String, String> params) {
-		params = filterParams(params, new String[] {"email", "to", "from", "cc", "bcc", "limit"});
-
-		return get(account, "contactmessages.json", params);
+		return call(ContextIOEndpoint.CONTACT_MESSAGES, account, params);
 	}
 
 	/**
@@ -119,9 +212,7 @@ public class ContextIO {
 	 * @return ContextIOResponse
 	 */
 	public ContextIOResponse contactSearch(String account, Map<String, String> params) {
-		params = filterParams(params, new String[] {"search"});
-
-		return get(account, "contactsearch.json", params);
+		return call(ContextIOEndpoint.CONTACT_SEARCH, account, params);
 	}
 
 	/**
@@ -133,26 +224,44 @@ public class ContextIO {
 	 * @return ContextIOResponse
 	 */
 	public ContextIOResponse diffSummary(String account, Map<String, String> params) {
-		params = filterParams(params, new String[] {"fileId1", "fileId2"});
+		return call(ContextIOEndpoint.DIFF_SUMMARY, account, params);
+	}
 
-		params.put("generate", "1");
+	/**
+	 * Saves the content of a given attachment to a file. The content is streamed
+	 * to disk, it is never held in memory as a whole. It is written to saveAs plus
+	 * ".part" first and renamed to saveAs once complete; if such a partial file is
+	 * left over from an interrupted download, the download resumes where it stopped.
+	 * @link http://context.io/docs/1.1/downloadfile
+	 * @param account accountId or email address of the mailbox you want to query
+	 * @param params Query parameters for the API call: 'fileId'
+	 * @param saveAs Path to local file where the attachment should be saved to.
+	 * @return Size of the saved file in bytes
+	 */
+	public long downloadFile(String account, Map<String, String> params, File saveAs) {
+		params = ContextIOEndpoint.DOWNLOAD_FILE.filter(params, null);
 
-		return get(account, "diffsummary.json", params);
+		return new ContextIODownload(this, account, params, saveAs).run();
 	}
 
 	/**
-	 * Returns the content a given attachment. If you want to save the attachment to
-	 * a file, set $saveAs to the destination file name. If $saveAs is left to null,
-	 * the function will return the file data.
-	 * on the 
+	 * Returns the content of a given attachment as a stream. Close it when done.
 	 * @link http://context.io/docs/1.1/downloadfile
 	 * @param account accountId or email address of the mailbox you want to query
 	 * @param params Query parameters for the API call: 'fileId'
-	 * @param saveAs Path to local file where the attachment should be saved to.
-	 * @return mixed
+	 * @return InputStream, or null if the call failed
 	 */
-	public void downloadFile(String account, Map<String, String> params, File saveAs) {
-		throw new UnsupportedOperationException("Not yet implemented, sorry.");
+	public InputStream downloadFile(String account, Map<String, String> params) {
+		params = ContextIOEndpoint.DOWNLOAD_FILE.filter(params, account);
+
+		ContextIOResponse response = dispatch("GET", account, "downloadfile.json", params, null);
+		if (response.code != 200) {
+			closeQuietly(response.rawResponse.getStream());
+
+			return null;
+		}
+
+		return response.rawResponse.getStream();
 	}
 
 	/**
@@ -164,9 +273,7 @@ public class ContextIO {
 	 * @return ContextIOResponse
 	 */
 	public ContextIOResponse fileRevisions(String account, Map<String, String> params) {
-		params = filterParams(params, new String[] {"fileid", "filename"});
-
-		return get(account, "filerevisions.json", params);
+		return call(ContextIOEndpoint.FILE_REVISIONS, account, params);
 	}
 
 	/**
@@ -179,9 +286,7 @@ public class ContextIO {
 	 * @return ContextIOResponse
 	 */
 	public ContextIOResponse relatedFiles(String account, Map<String, String> params) {
-		params = filterParams(params, new String[] {"fileid", "filename"});
-
-		return get(account, "relatedfiles.json", params);
+		return call(ContextIOEndpoint.RELATED_FILES, account, params);
 	}
 
 	/**
@@ -192,9 +297,7 @@ public class ContextIO {
 	 * @return ContextIOResponse
 	 */
 	public ContextIOResponse fileSearch(String account, Map<String, String> params) {
-		params = filterParams(params, new String[] {"filename"});
-
-		return get(account, "filesearch.json", params);
+		return call(ContextIOEndpoint.FILE_SEARCH, account, params);
 	}
 
 	/**
@@ -202,9 +305,7 @@ public class ContextIO {
 	 * @link http://context.io/docs/1.1/imap/accountinfo
 	 */
 	public ContextIOResponse imap_accountInfo(Map<String, String> params) {
-		params = filterParams(params, new String[] {"email", "userid"});
-
-		return get("", "imap/accountinfo.json", params);
+		return call(ContextIOEndpoint.IMAP_ACCOUNT_INFO, null, params);
 	}
 
 	/**
@@ -213,9 +314,7 @@ public class ContextIO {
 	 * @return ContextIOResponse
 	 */
 	public ContextIOResponse imap_addAccount(Map<String, String> params) {
-		params = filterParams(params, new String[] {"email", "server", "username", "oauthconsumername", "oauthtoken", "oauthtokensecret", "password", "usessl", "port", "firstname", "lastname"});
-
-		return get("", "imap/addaccount.json", params);
+		return call(ContextIOEndpoint.IMAP_ADD_ACCOUNT, null, params);
 	}
 
 	/**
@@ -227,9 +326,7 @@ public class ContextIO {
 	 */
 	public ContextIOResponse imap_discover(Map<String, String> params) {
 		// TODO: differs from original implementiation
-		params = filterParams(params, new String[] {"email"});
-
-		return get("", "imap/discover.json", params);
+		return call(ContextIOEndpoint.IMAP_DISCOVER, null, params);
 	}
 
 	/**
@@ -239,9 +336,7 @@ public class ContextIO {
 	 * @return ContextIOResponse
 	 */
 	public ContextIOResponse imap_modifyAccount(String account, Map<String, String> params) {
-		params = filterParams(params, new String[] {"credentials", "mailboxes"});
-
-		return get(account, "imap/modifyaccount.json", params);
+		return call(ContextIOEndpoint.IMAP_MODIFY_ACCOUNT, account, params);
 	}
 
 	/**
@@ -250,9 +345,7 @@ public class ContextIO {
 	 * @return ContextIOResponse
 	 */
 	public ContextIOResponse imap_removeAccount(String account, Map<String, String> params) {
-		params = filterParams(params, new String[] {"label"});
-
-		return get(account, "imap/removeaccount.json", params);
+		return call(ContextIOEndpoint.IMAP_REMOVE_ACCOUNT, account, params);
 	}
 
 	/**
@@ -263,9 +356,7 @@ public class ContextIO {
 	 * @return ContextIOResponse
 	 */
 	public ContextIOResponse imap_resetStatus(String account, Map<String, String> params) {
-		params = filterParams(params, new String[] {"label"});
-
-		return get(account, "imap/resetstatus.json", params);
+		return call(ContextIOEndpoint.IMAP_RESET_STATUS, account, params);
 	}
 
 	/**
@@ -273,11 +364,7 @@ public class ContextIO {
 	 * @link http://context.io/docs/1.1/imap/oauthproviders
 	 */
 	public ContextIOResponse imap_deleteOAuthProvider(Map<String, String> params) {
-		params = filterParams(params, new String[] {"key"});
-
-		params.put("action", "delete");
-
-		return get("", "imap/oauthproviders.json", params);
+		return call(ContextIOEndpoint.IMAP_DELETE_OAUTH_PROVIDER, null, params);
 	}
 
 	/**
@@ -285,9 +372,7 @@ public class ContextIO {
 	 * @link http://context.io/docs/1.1/imap/oauthproviders
 	 */
 	public ContextIOResponse imap_setOAuthProvider(Map<String, String> params) {
-		params = filterParams(params, new String[] {"type", "key", "secret"});
-
-		return get("", "imap/oauthproviders.json", params);
+		return call(ContextIOEndpoint.IMAP_SET_OAUTH_PROVIDER, null, params);
 	}
 
 	/**
@@ -295,9 +380,7 @@ public class ContextIO {
 	 * @link http://context.io/docs/1.1/imap/oauthproviders
 	 */
 	public ContextIOResponse imap_getOAuthProviders(Map<String, String> params) {
-		params = filterParams(params, new String[] {"key"});
-
-		return get("", "imap/oauthproviders.json", params);
+		return call(ContextIOEndpoint.IMAP_GET_OAUTH_PROVIDERS, null, params);
 	}
 
 	/**
@@ -311,9 +394,7 @@ public class ContextIO {
 	 * @return ContextIOResponse
 	 */
 	public ContextIOResponse messageHeaders(String account, Map<String, String> params) {
-		params = filterParams(params, new String[] {"emailmessageid", "from", "datesent"});
-
-		return get(account, "messageheaders.json", params);
+		return call(ContextIOEndpoint.MESSAGE_HEADERS, account, params);
 	}
 
 	/**
@@ -327,9 +408,7 @@ public class ContextIO {
 	 * @return ContextIOResponse
 	 */
 	public ContextIOResponse messageInfo(String account, Map<String, String> params) {
-		params = filterParams(params, new String[] {"emailmessageid", "from", "datesent", "server", "mbox", "uid"});
-
-		return get(account, "messageinfo.json", params);
+		return call(ContextIOEndpoint.MESSAGE_INFO, account, params);
 	}
 
 	/**
@@ -343,9 +422,7 @@ public class ContextIO {
 	 * @return ContextIOResponse
 	 */
 	public ContextIOResponse messageText(String account, Map<String, String> params) {
-		params = filterParams(params, new String[] {"emailmessageid", "from", "datesent", "type"});
-
-		return get(account, "messagetext.json", params);
+		return call(ContextIOEndpoint.MESSAGE_TEXT, account, params);
 	}
 
 	/**
@@ -356,9 +433,7 @@ public class ContextIO {
 	 * @return ContextIOResponse
 	 */
 	public ContextIOResponse search(String account, Map<String, String> params) {
-		params = filterParams(params, new String[] {"subject", "limit"});
-
-		return get(account, "search.json", params);
+		return call(ContextIOEndpoint.SEARCH, account, params);
 	}
 
 	/**
@@ -369,9 +444,7 @@ public class ContextIO {
 	 * @return ContextIOResponse
 	 */
 	public ContextIOResponse threadInfo(String account, Map<String, String> params) {
-		params = filterParams(params, new String[] {"gmailthreadid", "emailmessageid"});
-
-		return get(account, "threadinfo.json", params);
+		return call(ContextIOEndpoint.THREAD_INFO, account, params);
 	}
 
 
@@ -385,7 +458,10 @@ public class ContextIO {
 	 * @param sslOn Set to false to make calls over HTTP, true to use HTTPS
 	 */
 	public void setSsl(boolean ssl) {
+		checkNotFrozen();
+
 		this.ssl = ssl;
+		this.baseUrl = null;
 	}
 
 	public String getApiVersion() {
@@ -398,7 +474,10 @@ public class ContextIO {
 	 * @param apiVersion Context.IO API version to use
 	 */
 	public void setApiVersion(String apiVersion) {
+		checkNotFrozen();
+
 		this.apiVersion = apiVersion;
+		this.baseUrl = null;
 	}
 
 	public boolean isAuthHeaders() {
@@ -411,24 +490,132 @@ public class ContextIO {
 	 * @param authHeadersOn Set to true to use HTTP Authorization headers, false to use URL query params
 	 */
 	public void setAuthHeaders(boolean authHeaders) {
+		checkNotFrozen();
+
 		this.authHeaders = authHeaders;
 	}
 
 	/**
-	 * Returns the ContextIOResponse object for the last API call.
+	 * Returns the ContextIOResponse object for the last API call made by the
+	 * calling thread. Calls made by other threads are not visible here.
 	 * @return ContextIOResponse
+	 * @deprecated Use the response returned by the call itself, it carries the
+	 * code, headers and timing of that call. This is only useful to inspect
+	 * failed calls, which return null.
 	 */
+	@Deprecated
 	public ContextIOResponse getLastResponse() {
-		return lastResponse;
+		return lastResponse.get();
+	}
+
+	/**
+	 * Locks the configuration of this instance: all setters throw an IllegalStateException
+	 * from now on. A frozen instance can be shared by any number of threads;
+	 * configure it first, then freeze it before handing it out.
+	 * This doesn't make the objects it hands out immutable: the transport, connection pool,
+	 * cache, rate limiter and listener keep their own state and settings, and changing
+	 * them affects every thread using this instance.
+	 */
+	public void freeze() {
+		frozen = true;
+	}
+
+	public boolean isFrozen() {
+		return frozen;
+	}
+
+	void checkNotFrozen() {
+		if (frozen) {
+			throw new IllegalStateException("ContextIO instance is frozen and can't be modified");
+		}
 	}
 
 	public String build_baseurl() {
-		String url = "http";
-		if (ssl) {
-			url = "https";
+		String url = baseUrl;
+		if (url == null) {
+			url = "http";
+			if (ssl) {
+				url = "https";
+			}
+
+			url = url + "://" + endpoint + "/" + apiVersion + '/';
+			baseUrl = url;
 		}
 
-		return url + "://" + ENDPOINT + "/" + apiVersion + '/';
+		return url;
+	}
+
+	public String getEndpoint() {
+		return endpoint;
+	}
+
+	/**
+	 * Set the host (and optionally port) API calls are sent to. Useful to point
+	 * the client at a local stand-in server. Defaults to api.context.io.
+	 * @param endpoint Host name, e.g. "localhost:8080"
+	 */
+	public void setEndpoint(String endpoint) {
+		checkNotFrozen();
+
+		this.endpoint = endpoint;
+		this.baseUrl = null;
+	}
+
+	public HttpTransport getTransport() {
+		return transport;
+	}
+
+	/**
+	 * Replace the transport all calls are sent through, e.g. with a
+	 * {@link RecordingHttpTransport} to capture calls for offline load tests.
+	 * Idle connections of the previous transport are closed, unless both share a pool.
+	 * @param transport HttpTransport to use from now on
+	 */
+	public void setTransport(HttpTransport transport) {
+		checkNotFrozen();
+
+		HttpTransport previous = this.transport;
+		this.transport = transport;
+
+		if (previous.getPool() != transport.getPool()) {
+			previous.close();
+		}
+	}
+
+	/**
+	 * Returns the pool of keep-alive connections used by this instance.
+	 * Use it to configure its size or to check how often connections were reused.
+	 * @return HttpConnectionPool
+	 */
+	public HttpConnectionPool getConnectionPool() {
+		return transport.getPool();
+	}
+
+	/**
+	 * Returns non-blocking variants of all API calls. Every method returns a
+	 * ContextIOFuture instead of waiting for the response.
+	 * @return ContextIOAsync
+	 */
+	public synchronized ContextIOAsync async() {
+		if (async == null) {
+			async = new ContextIOAsync(this);
+		}
+
+		return async;
+	}
+
+	/**
+	 * Closes all idle connections kept open by this instance and stops
+	 * the threads used for asynchronous calls.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (async != null) {
+				async.close();
+			}
+		}
+
+		transport.close();
 	}
 
 	public String build_url(String action) {
@@ -439,56 +626,527 @@ public class ContextIO {
 		return saveHeaders;
 	}
 
+	/**
+	 * Keep a copy of the request headers, including the OAuth signature, in every response.
+	 * Disabled by default; response headers are always available from the response.
+	 */
 	public void setSaveHeaders(boolean saveHeaders) {
+		checkNotFrozen();
+
 		this.saveHeaders = saveHeaders;
 	}
 
+	public int getBatchConcurrency() {
+		return batchConcurrency;
+	}
+
+	/**
+	 * Set how many accounts a batch call queries at the same time. Defaults to 16.
+	 * @param batchConcurrency Maximum number of concurrent calls per batch
+	 */
+	public void setBatchConcurrency(int batchConcurrency) {
+		checkNotFrozen();
+
+		if (batchConcurrency < 1) {
+			throw new IllegalArgumentException("batchConcurrency must be at least 1");
+		}
+
+		this.batchConcurrency = batchConcurrency;
+	}
+
+	/**
+	 * Makes the same call for several accounts concurrently.
+	 * Responses are returned in the order of the given accounts. If any of the
+	 * calls failed, the first error is thrown once all calls are done;
+	 * use {@link #batch(String, String[], String, Map)} to get the outcome per account.
+	 * @return ContextIOResponse[]
+	 */
 	public ContextIOResponse[] get(String[] accounts, String action, Map<String, String> params) {
+		ContextIOBatchResult[] results = batch("GET", accounts, action, params);
+
 		ContextIOResponse[] responses = new ContextIOResponse[accounts.length];
-		for (int i = 0; i < accounts.length; i++) {
-			responses[i] = doCall("GET", accounts[i], action, params);
+		for (int i = 0; i < results.length; i++) {
+			if (!results[i].isSuccess()) {
+				if (results[i].error instanceof RuntimeException) {
+					throw (RuntimeException) results[i].error;
+				}
+
+				throw new OAuthException("Call for account " + accounts[i] + " failed", (Exception) results[i].error);
+			}
+
+			responses[i] = results[i].response;
 		}
 
 		return responses;
 	}
 
+	/**
+	 * Makes the same call for several accounts, running up to batchConcurrency calls
+	 * at the same time. A slow account does not hold back the others: a new call is
+	 * started as soon as any running one finishes.
+	 * @param method HTTP method, e.g. GET
+	 * @param accounts accountIds or email addresses of the mailboxes you want to query
+	 * @param action API action, e.g. allmessages.json
+	 * @param params Query parameters, shared by all calls
+	 * @return One result per account, in the order of the given accounts
+	 */
+	public ContextIOBatchResult[] batch(String method, String[] accounts, String action, Map<String, String> params) {
+		try {
+			return new ContextIOBatch(this, method, accounts, action, params, batchConcurrency).run();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+
+			throw new OAuthException("Interrupted while waiting for batch", e);
+		}
+	}
+
 	public ContextIOResponse get(String account, String action, Map<String, String> params) {
 		return doCall("GET", account, action, params);
 	}
 
+	/**
+	 * Makes a POST call. The parameters are sent form-encoded in the request body,
+	 * which is covered by the OAuth signature.
+	 */
 	public ContextIOResponse post(String account, String action, Map<String, String> params) {
 		return doCall("POST", account, action, params);
 	}
 
+	/**
+	 * Makes a PUT call. The parameters are sent form-encoded in the request body.
+	 */
+	public ContextIOResponse put(String account, String action, Map<String, String> params) {
+		return doCall("PUT", account, action, params);
+	}
+
+	/**
+	 * Makes a DELETE call. The parameters are sent in the query string.
+	 */
+	public ContextIOResponse delete(String account, String action, Map<String, String> params) {
+		return doCall("DELETE", account, action, params);
+	}
+
 	public ContextIOResponse doCall(String method, String account, String action, Map<String, String> params) {
+		ContextIOResponse response = execute(method, account, action, params, null);
+		if (response.hasError) {
+			return null;
+		} else {
+			return response;
+		}
+	}
+
+	/**
+	 * Makes a call to one of the registered endpoints. The parameters are filtered
+	 * through the endpoint, which also adds its fixed parameters and the account.
+	 * @return ContextIOResponse, or null if the call failed
+	 */
+	ContextIOResponse call(ContextIOEndpoint endpoint, String account, Map<String, String> params) {
+		ContextIOResponse response = dispatch(endpoint.method, account, endpoint.action, endpoint.filter(params, account), null);
+		if (response.hasError) {
+			return null;
+		} else {
+			return response;
+		}
+	}
+
+	/**
+	 * Signs and sends a call, or answers it from the cache. Unlike doCall, the
+	 * response is returned even if it represents an error.
+	 * @param headers Additional request headers, may be null
+	 */
+	ContextIOResponse execute(String method, String account, String action, Map<String, String> params, Map<String, String> headers) {
 		// TODO: differs from original implementiation
-		
+
+		// never modify the caller's map, it might be shared with other threads
+		params = params == null ? new HashMap<String, String>() : new HashMap<String, String>(params);
 		if (account != null && !account.equals("")) {
-			if (params == null) {
-				params = new HashMap<String, String>();
+			params.put("account", account);
+		}
+
+		return dispatch(method, account, action, params, headers);
+	}
+
+	/**
+	 * Like execute, but takes ownership of params, which must already contain the account.
+	 */
+	ContextIOResponse dispatch(final String method, final String account, final String action, final Map<String, String> params, Map<String, String> headers) {
+		// downloads are read from the raw stream by their caller, sharing them would leave it empty
+		if (coalescing && headers == null && "GET".equals(method) && !ContextIOEndpoint.DOWNLOAD_FILE.action.equals(action)) {
+			return singleFlight.run(method + " " + cacheKey(action, params), new Callable<ContextIOResponse>() {
+
+				public ContextIOResponse call() {
+					return executeCached(method, account, action, params, null);
+				}
+			});
+		}
+
+		return executeCached(method, account, action, params, headers);
+	}
+
+	ContextIOResponse executeCached(String method, String account, String action, Map<String, String> params, Map<String, String> headers) {
+		ContextIOCache cache = this.cache;
+		if (cache == null || headers != null || !"GET".equals(method) || !cachedActions.contains(action)) {
+			return send(method, account, action, params, headers);
+		}
+
+		String cacheKey = cacheKey(action, params);
+		ContextIOCacheEntry cached = cache.get(cacheKey);
+		if (cached != null && cached.isFresh(System.currentTimeMillis())) {
+			return fromCache(method, account, action, cached);
+		}
+
+		if (cached != null) {
+			headers = new HashMap<String, String>();
+			if (cached.getETag() != null) {
+				headers.put("If-None-Match", cached.getETag());
 			}
+			if (cached.getLastModified() != null) {
+				headers.put("If-Modified-Since", cached.getLastModified());
+			}
+		}
 
-			params.put("account", account);
+		ContextIOResponse response = send(method, account, action, params, headers);
+		if (response.code == 304 && cached != null) {
+			closeQuietly(response.rawResponse.getStream());
+
+			// the stored entry may be in use by other threads, keep it as it is
+			cached = cached.revalidate(response.rawResponse.getHeaders(), System.currentTimeMillis());
+			cache.revalidated(cacheKey, cached);
+
+			return fromCache(method, account, action, cached);
 		}
 
-		String baseUrl = build_url(action);
-		if ("GET".equals(method)) {
-			baseUrl = URLUtils.appendParametersToQueryString(baseUrl, params);
+		if (response.code != 200 || HttpTransport.hasToken(response.rawResponse.getHeader("Cache-Control"), "no-store")) {
+			return response;
 		}
 
-		OAuthService service = new ServiceBuilder().provider(ContextIOApi.class).apiKey(this.key).apiSecret(this.secret).build();
-		OAuthRequest request = new OAuthRequest(Verb.GET, baseUrl);
-		
-		Token nullToken = new Token("", "");
-		service.signRequest(nullToken, request);
+		byte[] body;
+		try {
+			body = HttpResponse.readFully(response.rawResponse.getStream());
+		} catch (IOException e) {
+			throw new OAuthException("Problems while reading response body", e);
+		}
 
-		Response oauthResponse = request.send();
+		ContextIOCacheEntry entry = new ContextIOCacheEntry(response.code, response.rawResponse.getHeaders(), body, System.currentTimeMillis());
+		cache.put(cacheKey, entry);
 
-		lastResponse = new ContextIOResponse(oauthResponse.getCode(), request.getHeaders(), oauthResponse.getHeaders(), oauthResponse);
-		if (lastResponse.hasError) {
-			return null;
-		} else {
-			return lastResponse;
+		response.rawResponse = entry.toHttpResponse();
+
+		return response;
+	}
+
+	/**
+	 * Sends a call, waiting for the rate limiter first. Calls the server throttled
+	 * (429 or 503) are retried up to maxRetries times, after the time given in
+	 * Retry-After or an exponentially growing, randomized delay.
+	 */
+	ContextIOResponse send(String method, String account, String action, Map<String, String> params, Map<String, String> headers) {
+		ContextIORateLimiter rateLimiter = this.rateLimiter;
+
+		for (int attempt = 0; ; attempt++) {
+			if (rateLimiter != null) {
+				try {
+					rateLimiter.acquire(account);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+
+					throw new OAuthException("Interrupted while waiting for rate limiter", e);
+				}
+			}
+
+			ContextIOResponse response = sendOnce(method, account, action, params, headers);
+			if (response.code != 429 && response.code != 503) {
+				if (rateLimiter != null) {
+					rateLimiter.onSuccess(account);
+				}
+
+				return response;
+			}
+
+			long retryAfter = parseRetryAfter(response.rawResponse.getHeader("Retry-After"));
+			if (rateLimiter != null) {
+				rateLimiter.onThrottled(account, retryAfter);
+			}
+
+			if (attempt >= maxRetries) {
+				return response;
+			}
+
+			closeQuietly(response.rawResponse.getStream());
+			retries.incrementAndGet();
+
+			long delay = retryAfter > 0 ? retryAfter : backoff(attempt);
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+
+				throw new OAuthException("Interrupted while waiting to retry", e);
+			}
+		}
+	}
+
+	/**
+	 * Random delay between zero and retryDelayMillis * 2^attempt, capped at maxRetryDelayMillis.
+	 */
+	long backoff(int attempt) {
+		long ceiling = Math.min(maxRetryDelayMillis, retryDelayMillis << Math.min(attempt, 20));
+
+		return 1 + (long) (Math.random() * ceiling);
+	}
+
+	/**
+	 * Parses a Retry-After header, given either in seconds or as an HTTP date.
+	 * @return Milliseconds to wait, 0 if there is no valid header
+	 */
+	static long parseRetryAfter(String retryAfter) {
+		if (retryAfter == null) {
+			return 0;
+		}
+
+		retryAfter = retryAfter.trim();
+		try {
+			return Math.max(0, Long.parseLong(retryAfter) * 1000);
+		} catch (NumberFormatException e) {
+			SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+			try {
+				return Math.max(0, format.parse(retryAfter).getTime() - System.currentTimeMillis());
+			} catch (ParseException ignored) {
+				return 0;
+			}
+		}
+	}
+
+	ContextIOResponse sendOnce(String method, String account, String action, Map<String, String> params, Map<String, String> headers) {
+		Verb verb = Verb.valueOf(method);
+		// DELETE requests don't carry a body, their parameters go into the URL just like for GET
+		boolean hasBody = verb == Verb.POST || verb == Verb.PUT;
+
+		String baseUrl = ContextIOEndpoint.buildUrl(build_baseurl(), action, hasBody ? null : params);
+
+		OAuthRequest request = new OAuthRequest(verb, baseUrl);
+		if (headers != null) {
+			for (Map.Entry<String, String> header : headers.entrySet()) {
+				request.addHeader(header.getKey(), header.getValue());
+			}
+		}
+
+		byte[] body = null;
+		if (hasBody) {
+			for (Map.Entry<String, String> param : params.entrySet()) {
+				// only used for the signature, the body itself is encoded below
+				request.addBodyParameter(param.getKey(), param.getValue());
+			}
+			request.addHeader("Content-Type", "application/x-www-form-urlencoded");
+
+			try {
+				body = ContextIOEndpoint.buildForm(params).getBytes("UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new OAuthException("Cannot encode request body", e);
+			}
+		}
+
+		service.signRequest(NULL_TOKEN, request);
+
+		long start = System.currentTimeMillis();
+
+		final ContextIOListener listener = this.listener;
+
+		HttpResponse oauthResponse;
+		try {
+			oauthResponse = transport.execute(verb.name(), baseUrl, request.getHeaders(), body);
+		} catch (IOException e) {
+			if (listener != null) {
+				listener.onFailure(method, account, action, e);
+			}
+
+			throw new OAuthException("Problems while creating connection", e);
+		}
+
+		// the request headers hold the signature, only keep them around if asked to
+		Map<String, String> requestHeaders = saveHeaders ? new HashMap<String, String>(request.getHeaders()) : null;
+
+		final ContextIOResponse response = new ContextIOResponse(oauthResponse.getCode(), requestHeaders, oauthResponse);
+		response.method = method;
+		response.account = account;
+		response.action = action;
+		response.startedAt = start;
+		response.durationMillis = System.currentTimeMillis() - start;
+		response.timings = oauthResponse.getTimings();
+
+		lastResponse.set(response);
+
+		if (listener != null) {
+			response.listener = listener;
+			listener.onResponse(response);
+
+			response.timings.setOnBodyComplete(new Runnable() {
+
+				public void run() {
+					listener.onBodyRead(response);
+				}
+			});
+		}
+
+		return response;
+	}
+
+	ContextIOResponse fromCache(String method, String account, String action, ContextIOCacheEntry entry) {
+		ContextIOResponse response = new ContextIOResponse(entry.code, null, entry.toHttpResponse());
+		response.method = method;
+		response.account = account;
+		response.action = action;
+		response.startedAt = System.currentTimeMillis();
+		response.fromCache = true;
+
+		lastResponse.set(response);
+
+		ContextIOListener listener = this.listener;
+		if (listener != null) {
+			response.listener = listener;
+			listener.onResponse(response);
+		}
+
+		return response;
+	}
+
+	/**
+	 * Builds the cache key of a call: its URL with the parameters in a fixed order.
+	 */
+	String cacheKey(String action, Map<String, String> params) {
+		StringBuilder key = new StringBuilder(build_url(action));
+
+		char separator = '?';
+		for (Map.Entry<String, String> param : new TreeMap<String, String>(params).entrySet()) {
+			key.append(separator).append(URLUtils.percentEncode(param.getKey()));
+			key.append('=').append(URLUtils.percentEncode(param.getValue()));
+
+			separator = '&';
+		}
+
+		return key.toString();
+	}
+
+	public ContextIOListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * Get notified about every call made by this instance, e.g. to collect metrics
+	 * with a {@link ContextIOMetrics}. By default there is no listener.
+	 * @param listener ContextIOListener to notify, or null to stop notifying
+	 */
+	public void setListener(ContextIOListener listener) {
+		checkNotFrozen();
+
+		this.listener = listener;
+	}
+
+	public ContextIORateLimiter getRateLimiter() {
+		return rateLimiter;
+	}
+
+	/**
+	 * Limit the rate of calls made by this instance. By default calls are
+	 * sent as fast as they are made.
+	 * @param rateLimiter ContextIORateLimiter to use, or null for no limit
+	 */
+	public void setRateLimiter(ContextIORateLimiter rateLimiter) {
+		checkNotFrozen();
+
+		this.rateLimiter = rateLimiter;
+	}
+
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	/**
+	 * Set how often a call is retried when the server throttles it with 429 or 503.
+	 * Retries wait as long as the Retry-After header says, or for a random delay
+	 * that doubles with every attempt. Defaults to 0, i.e. no retries.
+	 * @param maxRetries Maximum number of retries per call
+	 * @param retryDelayMillis Base delay before the first retry
+	 * @param maxRetryDelayMillis Upper bound for the delay between retries
+	 */
+	public void setRetries(int maxRetries, long retryDelayMillis, long maxRetryDelayMillis) {
+		checkNotFrozen();
+
+		this.maxRetries = maxRetries;
+		this.retryDelayMillis = retryDelayMillis;
+		this.maxRetryDelayMillis = maxRetryDelayMillis;
+	}
+
+	/**
+	 * @return Number of calls that were retried after being throttled
+	 */
+	public long getRetryCount() {
+		return retries.get();
+	}
+
+	public boolean isCoalescing() {
+		return coalescing;
+	}
+
+	/**
+	 * Specify whether identical GET calls that run at the same time should share
+	 * one request. The calls then return the same response, with its body read
+	 * into memory. Disabled by default.
+	 * @param coalescing Set to true to share identical concurrent calls
+	 */
+	public void setCoalescing(boolean coalescing) {
+		checkNotFrozen();
+
+		this.coalescing = coalescing;
+	}
+
+	/**
+	 * @return Number of calls that were answered by another thread's identical call
+	 */
+	public long getCoalescedCount() {
+		return singleFlight.coalesced.get();
+	}
+
+	public ContextIOCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * Answer GET calls to the cached actions from the given cache. Stale entries
+	 * are revalidated with If-None-Match / If-Modified-Since where possible.
+	 * By default no cache is used.
+	 * @param cache ContextIOCache to use, or null to disable caching
+	 */
+	public void setCache(ContextIOCache cache) {
+		checkNotFrozen();
+
+		this.cache = cache;
+	}
+
+	/**
+	 * @return Actions that may be answered from the cache, can't be modified
+	 */
+	public Set<String> getCachedActions() {
+		return cachedActions;
+	}
+
+	/**
+	 * Set which actions may be answered from the cache. By default these are the
+	 * calls returning data that rarely changes: addresses, messageinfo,
+	 * messageheaders, threadinfo and imap/accountinfo.
+	 * @param cachedActions Actions like "threadinfo.json"
+	 */
+	public void setCachedActions(Set<String> cachedActions) {
+		checkNotFrozen();
+
+		this.cachedActions = Collections.unmodifiableSet(new HashSet<String>(cachedActions));
+	}
+
+	static void closeQuietly(Closeable closeable) {
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			// nothing left to clean up
 		}
 	}
 
@@ -0,0 +1,38 @@
+package at.tomtasche.contextio;
+
+import java.util.List;
+
+/**
+ * Sender and recipients of a message.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+public class ContextIOAddresses {
+
+	ContextIOContact from;
+	List<ContextIOContact> to;
+	List<ContextIOContact> cc;
+	List<ContextIOContact> bcc;
+
+	public ContextIOContact getFrom() {
+		return from;
+	}
+
+	public List<ContextIOContact> getTo() {
+		return to;
+	}
+
+	public List<ContextIOContact> getCc() {
+		return cc;
+	}
+
+	public List<ContextIOContact> getBcc() {
+		return bcc;
+	}
+
+	@Override
+	public String toString() {
+		return "ContextIOAddresses [from=" + from + ", to=" + to + ", cc=" + cc + ", bcc=" + bcc + "]";
+	}
+}
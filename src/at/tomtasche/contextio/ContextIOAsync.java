@@ -0,0 +1,468 @@
+package at.tomtasche.contextio;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking variants of the {@link ContextIO} endpoint methods, see {@link ContextIO#async()}.
+ * Every call returns immediately with a {@link ContextIOFuture}. At most maxInFlight calls
+ * run at the same time; the others wait in a queue without occupying a thread.
+ *
+ * By default calls run on virtual threads if the JVM supports them, and on a pool of
+ * daemon threads otherwise.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ */
+public class ContextIOAsync {
+
+	final ContextIO contextIO;
+	Executor executor;
+	boolean ownsExecutor;
+	int maxInFlight;
+
+	private final LinkedList<ContextIOFuture<?>> pending = new LinkedList<ContextIOFuture<?>>();
+	private int inFlight;
+
+	ContextIOAsync(ContextIO contextIO) {
+		this.contextIO = contextIO;
+		this.executor = createDefaultExecutor();
+		this.ownsExecutor = true;
+		this.maxInFlight = 256;
+	}
+
+
+	/**
+	 * @see ContextIO#addresses(String)
+	 */
+	public ContextIOFuture<ContextIOResponse> addresses(final String account) {
+		return submit(new Callable<ContextIOResponse>() {
+			public ContextIOResponse call() {
+				return contextIO.addresses(account);
+			}
+		});
+	}
+
+	/**
+	 * @see ContextIO#allFiles(String, Map)
+	 */
+	public ContextIOFuture<ContextIOResponse> allFiles(final String account, final Map<String, String> params) {
+		return submit(new Callable<ContextIOResponse>() {
+			public ContextIOResponse call() {
+				return contextIO.allFiles(account, params);
+			}
+		});
+	}
+
+	/**
+	 * @see ContextIO#allMessages(String, Map)
+	 */
+	public ContextIOFuture<ContextIOResponse> allMessages(final String account, final Map<String, String> params) {
+		return submit(new Callable<ContextIOResponse>() {
+			public ContextIOResponse call() {
+				return contextIO.allMessages(account, params);
+			}
+		});
+	}
+
+	/**
+	 * @see ContextIO#contactFiles(String, Map)
+	 */
+	public ContextIOFuture<ContextIOResponse> contactFiles(final String account, final Map<String, String> params) {
+		return submit(new Callable<ContextIOResponse>() {
+			public ContextIOResponse call() {
+				return contextIO.contactFiles(account, params);
+			}
+		});
+	}
+
+	/**
+	 * @see ContextIO#contactMessages(String, Map)
+	 */
+	public ContextIOFuture<ContextIOResponse> contactMessages(final String account, final Map<String, String> params) {
+		return submit(new Callable<ContextIOResponse>() {
+			public ContextIOResponse call() {
+				return contextIO.contactMessages(account, params);
+			}
+		});
+	}
+
+	/**
+	 * @see ContextIO#contactSearch(String, Map)
+	 */
+	public ContextIOFuture<ContextIOResponse> contactSearch(final String account, final Map<String, String> params) {
+		return submit(new Callable<ContextIOResponse>() {
+			public ContextIOResponse call() {
+				return contextIO.contactSearch(account, params);
+			}
+		});
+	}
+
+	/**
+	 * @see ContextIO#diffSummary(String, Map)
+	 */
+	public ContextIOFuture<ContextIOResponse> diffSummary(final String account, final Map<String, String> params) {
+		return submit(new Callable<ContextIOResponse>() {
+			public ContextIOResponse call() {
+				return contextIO.diffSummary(account, params);
+			}
+		});
+	}
+
+	/**
+	 * @see ContextIO#downloadFile(String, Map, File)
+	 */
+	public ContextIOFuture<Long> downloadFile(final String account, final Map<String, String> params, final File saveAs) {
+		return submit(new Callable<Long>() {
+			public Long call() {
+				return contextIO.downloadFile(account, params, saveAs);
+			}
+		});
+	}
+
+	/**
+	 * @see ContextIO#fileRevisions(String, Map)
+	 */
+	public ContextIOFuture<ContextIOResponse> fileRevisions(final String account, final Map<String, String> params) {
+		return submit(new Callable<ContextIOResponse>() {
+			public ContextIOResponse call() {
+				return contextIO.fileRevisions(account, params);
+			}
+		});
+	}
+
+	/**
+	 * @see ContextIO#relatedFiles(String, Map)
+	 */
+	public ContextIOFuture<ContextIOResponse> relatedFiles(final String account, final Map<String, String> params) {
+		return submit(new Callable<ContextIOResponse>() {
+			public ContextIOResponse call() {
+				return contextIO.relatedFiles(account, params);
+			}
+		});
+	}
+
+	/**
+	 * @see ContextIO#fileSearch(String, Map)
+	 */
+	public ContextIOFuture<ContextIOResponse> fileSearch(final String account, final Map<String, String> params) {
+		return submit(new Callable<ContextIOResponse>() {
+			public ContextIOResponse call() {
+				return contextIO.fileSearch(account, params);
+			}
+		});
+	}
+
+	/**
+	 * @see ContextIO#imap_accountInfo(Map)
+	 */
+	public ContextIOFuture<ContextIOResponse> imap_accountInfo(final Map<String, String> params) {
+		return submit(new Callable<ContextIOResponse>() {
+			public ContextIOResponse call() {
+				return contextIO.imap_accountInfo(params);
+			}
+		});
+	}
+
+	/**
+	 * @see ContextIO#imap_addAccount(Map)
+	 */
+	public ContextIOFuture<ContextIOResponse> imap_addAccount(final Map<String, String> params) {
+		return submit(new Callable<ContextIOResponse>() {
+			public ContextIOResponse call() {
+				return contextIO.imap_addAccount(params);
+			}
+		});
+	}
+
+	/**
+	 * @see ContextIO#imap_discover(Map)
+	 */
+	public ContextIOFuture<ContextIOResponse> imap_discover(final Map<String, String> params) {
+		return submit(new Callable<ContextIOResponse>() {
+			public ContextIOResponse call() {
+				return contextIO.imap_discover(params);
+			}
+		});
+	}
+
+	/**
+	 * @see ContextIO#imap_modifyAccount(String, Map)
+	 */
+	public ContextIOFuture<ContextIOResponse> imap_modifyAccount(final String account, final Map<String, String> params) {
+		return submit(new Callable<ContextIOResponse>() {
+			public ContextIOResponse call() {
+				return contextIO.imap_modifyAccount(account, params);
+			}
+		});
+	}
+
+	/**
+	 * @see ContextIO#imap_removeAccount(String, Map)
+	 */
+	public ContextIOFuture<ContextIOResponse> imap_removeAccount(final String account, final Map<String, String> params) {
+		return submit(new Callable<ContextIOResponse>() {
+			public ContextIOResponse call() {
+				return contextIO.imap_removeAccount(account, params);
+			}
+		});
+	}
+
+	/**
+	 * @see ContextIO#imap_resetStatus(String, Map)
+	 */
+	public ContextIOFuture<ContextIOResponse> imap_resetStatus(final String account, final Map<String, String> params) {
+		return submit(new Callable<ContextIOResponse>() {
+			public ContextIOResponse call() {
+				return contextIO.imap_resetStatus(account, params);
+			}
+		});
+	}
+
+	/**
+	 * @see ContextIO#imap_deleteOAuthProvider(Map)
+	 */
+	public ContextIOFuture<ContextIOResponse> imap_deleteOAuthProvider(final Map<String, String> params) {
+		return submit(new Callable<ContextIOResponse>() {
+			public ContextIOResponse call() {
+				return contextIO.imap_deleteOAuthProvider(params);
+			}
+		});
+	}
+
+	/**
+	 * @see ContextIO#imap_setOAuthProvider(Map)
+	 */
+	public ContextIOFuture<ContextIOResponse> imap_setOAuthProvider(final Map<String, String> params) {
+		return submit(new Callable<ContextIOResponse>() {
+			public ContextIOResponse call() {
+				return contextIO.imap_setOAuthProvider(params);
+			}
+		});
+	}
+
+	/**
+	 * @see ContextIO#imap_getOAuthProviders(Map)
+	 */
+	public ContextIOFuture<ContextIOResponse> imap_getOAuthProviders(final Map<String, String> params) {
+		return submit(new Callable<ContextIOResponse>() {
+			public ContextIOResponse call() {
+				return contextIO.imap_getOAuthProviders(params);
+			}
+		});
+	}
+
+	/**
+	 * @see ContextIO#messageHeaders(String, Map)
+	 */
+	public ContextIOFuture<ContextIOResponse> messageHeaders(final String account, final Map<String, String> params) {
+		return submit(new Callable<ContextIOResponse>() {
+			public ContextIOResponse call() {
+				return contextIO.messageHeaders(account, params);
+			}
+		});
+	}
+
+	/**
+	 * @see ContextIO#messageInfo(String, Map)
+	 */
+	public ContextIOFuture<ContextIOResponse> messageInfo(final String account, final Map<String, String> params) {
+		return submit(new Callable<ContextIOResponse>() {
+			public ContextIOResponse call() {
+				return contextIO.messageInfo(account, params);
+			}
+		});
+	}
+
+	/**
+	 * @see ContextIO#messageText(String, Map)
+	 */
+	public ContextIOFuture<ContextIOResponse> messageText(final String account, final Map<String, String> params) {
+		return submit(new Callable<ContextIOResponse>() {
+			public ContextIOResponse call() {
+				return contextIO.messageText(account, params);
+			}
+		});
+	}
+
+	/**
+	 * @see ContextIO#search(String, Map)
+	 */
+	public ContextIOFuture<ContextIOResponse> search(final String account, final Map<String, String> params) {
+		return submit(new Callable<ContextIOResponse>() {
+			public ContextIOResponse call() {
+				return contextIO.search(account, params);
+			}
+		});
+	}
+
+	/**
+	 * @see ContextIO#threadInfo(String, Map)
+	 */
+	public ContextIOFuture<ContextIOResponse> threadInfo(final String account, final Map<String, String> params) {
+		return submit(new Callable<ContextIOResponse>() {
+			public ContextIOResponse call() {
+				return contextIO.threadInfo(account, params);
+			}
+		});
+	}
+
+	/**
+	 * Runs an arbitrary call against this client, subject to the same in-flight limit.
+	 * @param callable Work to run, typically a call to one of the ContextIO methods
+	 * @return ContextIOFuture
+	 */
+	public <T> ContextIOFuture<T> submit(Callable<T> callable) {
+		ContextIOFuture<T> future = new ContextIOFuture<T>(callable);
+
+		synchronized (this) {
+			pending.add(future);
+		}
+
+		dispatch();
+
+		return future;
+	}
+
+	void dispatch() {
+		while (true) {
+			final ContextIOFuture<?> future;
+			synchronized (this) {
+				if (inFlight >= maxInFlight || pending.isEmpty()) {
+					return;
+				}
+
+				future = pending.removeFirst();
+				inFlight++;
+			}
+
+			try {
+				executor.execute(new Runnable() {
+
+					public void run() {
+						try {
+							future.run();
+						} finally {
+							finished();
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				synchronized (this) {
+					inFlight--;
+				}
+
+				future.fail(e);
+			}
+		}
+	}
+
+	void finished() {
+		synchronized (this) {
+			inFlight--;
+		}
+
+		dispatch();
+	}
+
+	static Executor createDefaultExecutor() {
+		try {
+			// Executors.newVirtualThreadPerTaskExecutor() is only available on Java 21 and later
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+
+			return (Executor) factory.invoke(null);
+		} catch (Exception e) {
+			return Executors.newCachedThreadPool(new ThreadFactory() {
+
+				final AtomicInteger count = new AtomicInteger();
+
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "ContextIO-async-" + count.incrementAndGet());
+					thread.setDaemon(true);
+
+					return thread;
+				}
+			});
+		}
+	}
+
+	public synchronized Executor getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Run calls on the given executor instead of the default one. The caller stays
+	 * responsible for shutting it down.
+	 * @param executor Executor to run calls on
+	 */
+	public synchronized void setExecutor(Executor executor) {
+		if (ownsExecutor) {
+			((ExecutorService) this.executor).shutdown();
+		}
+
+		this.executor = executor;
+		this.ownsExecutor = false;
+	}
+
+	public synchronized int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	/**
+	 * Set how many calls may run at the same time. Further calls are queued.
+	 * Defaults to 256.
+	 * @param maxInFlight Maximum number of concurrent calls
+	 */
+	public void setMaxInFlight(int maxInFlight) {
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException("maxInFlight must be at least 1");
+		}
+
+		synchronized (this) {
+			this.maxInFlight = maxInFlight;
+		}
+
+		dispatch();
+	}
+
+	/**
+	 * @return Number of calls currently running
+	 */
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * @return Number of calls waiting for a free slot
+	 */
+	public synchronized int getPending() {
+		return pending.size();
+	}
+
+	/**
+	 * Shuts down the default executor. Calls that are still queued are cancelled.
+	 */
+	public void close() {
+		LinkedList<ContextIOFuture<?>> cancelled;
+		synchronized (this) {
+			cancelled = new LinkedList<ContextIOFuture<?>>(pending);
+			pending.clear();
+
+			if (ownsExecutor) {
+				((ExecutorService) executor).shutdown();
+			}
+		}
+
+		for (ContextIOFuture<?> future : cancelled) {
+			future.cancel(false);
+		}
+	}
+}
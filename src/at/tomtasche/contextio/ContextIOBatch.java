@@ -0,0 +1,117 @@
+package at.tomtasche.contextio;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the same call for many accounts concurrently. A new call is started as soon as
+ * any running one finishes, so a slow account only occupies its own slot.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+class ContextIOBatch {
+
+	final ContextIO contextIO;
+	final String method;
+	final String action;
+	final Map<String, String> params;
+	final int concurrency;
+
+	final String[] accounts;
+	final ContextIOBatchResult[] results;
+	final AtomicInteger next;
+	final AtomicInteger slots;
+	final AtomicBoolean launching;
+	final CountDownLatch remaining;
+
+	ContextIOBatch(ContextIO contextIO, String method, String[] accounts, String action, Map<String, String> params, int concurrency) {
+		this.contextIO = contextIO;
+		this.method = method;
+		this.accounts = accounts;
+		this.action = action;
+		this.params = params;
+		this.concurrency = concurrency;
+
+		this.results = new ContextIOBatchResult[accounts.length];
+		this.next = new AtomicInteger();
+		this.slots = new AtomicInteger();
+		this.launching = new AtomicBoolean();
+		this.remaining = new CountDownLatch(accounts.length);
+	}
+
+	ContextIOBatchResult[] run() throws InterruptedException {
+		slots.set(Math.min(concurrency, accounts.length));
+		launch();
+
+		remaining.await();
+
+		return results;
+	}
+
+	/**
+	 * Starts a call for every free slot. Callbacks of calls that fail right away run
+	 * on the launching thread, so this loops instead of recursing.
+	 */
+	void launch() {
+		while (launching.compareAndSet(false, true)) {
+			try {
+				while (slots.get() > 0) {
+					slots.decrementAndGet();
+					launchNext();
+				}
+			} finally {
+				launching.set(false);
+			}
+
+			if (slots.get() == 0) {
+				return;
+			}
+		}
+	}
+
+	void launchNext() {
+		final int index = next.getAndIncrement();
+		if (index >= accounts.length) {
+			return;
+		}
+
+		final ContextIOBatchResult result = new ContextIOBatchResult(accounts[index]);
+		results[index] = result;
+
+		contextIO.async().submit(new Callable<ContextIOResponse>() {
+
+			public ContextIOResponse call() {
+				long start = System.currentTimeMillis();
+				try {
+					return contextIO.doCall(method, result.account, action, params);
+				} finally {
+					result.durationMillis = System.currentTimeMillis() - start;
+				}
+			}
+		}).addCallback(new ContextIOCallback<ContextIOResponse>() {
+
+			public void onSuccess(ContextIOResponse response) {
+				result.response = response;
+
+				done();
+			}
+
+			public void onFailure(Throwable error) {
+				result.error = error;
+
+				done();
+			}
+		});
+	}
+
+	void done() {
+		remaining.countDown();
+
+		slots.incrementAndGet();
+		launch();
+	}
+}
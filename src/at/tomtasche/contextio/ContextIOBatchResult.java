@@ -0,0 +1,55 @@
+package at.tomtasche.contextio;
+
+/**
+ * Outcome of one account's call within a batch, see {@link ContextIO#batch(String, String[], String, java.util.Map)}.
+ * Either holds the response or the error that made the call fail.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+public class ContextIOBatchResult {
+
+	String account;
+	ContextIOResponse response;
+	Throwable error;
+	long durationMillis;
+
+	ContextIOBatchResult(String account) {
+		this.account = account;
+	}
+
+	public String getAccount() {
+		return account;
+	}
+
+	/**
+	 * @return The response, or null if the call failed
+	 */
+	public ContextIOResponse getResponse() {
+		return response;
+	}
+
+	/**
+	 * @return The error thrown by the call, or null if it succeeded
+	 */
+	public Throwable getError() {
+		return error;
+	}
+
+	public boolean isSuccess() {
+		return error == null;
+	}
+
+	/**
+	 * @return Time spent on this account's call, excluding time spent waiting for a free slot
+	 */
+	public long getDurationMillis() {
+		return durationMillis;
+	}
+
+	@Override
+	public String toString() {
+		return "ContextIOBatchResult [account=" + account + ", success=" + isSuccess()
+				+ ", error=" + error + ", durationMillis=" + durationMillis + "]";
+	}
+}
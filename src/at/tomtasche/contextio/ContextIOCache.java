@@ -0,0 +1,35 @@
+package at.tomtasche.contextio;
+
+/**
+ * Stores responses of GET calls so they don't have to be fetched again,
+ * see {@link ContextIO#setCache(ContextIOCache)}. Implementations must be thread-safe.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+public interface ContextIOCache {
+
+	/**
+	 * @param key Action and canonicalized parameters of the call
+	 * @return The stored entry, fresh or not, or null if there is none
+	 */
+	ContextIOCacheEntry get(String key);
+
+	/**
+	 * Stores an entry, replacing any previous one for the same key.
+	 * The cache decides until when the entry is fresh.
+	 */
+	void put(String key, ContextIOCacheEntry entry);
+
+	/**
+	 * Called when the server confirmed that a stale entry is still valid
+	 * (it answered a conditional request with 304 Not Modified).
+	 * @param entry A new entry replacing the stale one, stored now and carrying the
+	 * headers of the 304 response, see {@link ContextIOCacheEntry#revalidate(java.util.Map, long)}
+	 */
+	void revalidated(String key, ContextIOCacheEntry entry);
+
+	void remove(String key);
+
+	void clear();
+}
@@ -0,0 +1,167 @@
+package at.tomtasche.contextio;
+
+import java.io.ByteArrayInputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A cached response: status, headers and the complete body.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+public class ContextIOCacheEntry {
+
+	/** headers of a 304 response that describe its own transfer rather than the stored body */
+	static final List<String> NOT_UPDATED = Arrays.asList("connection", "keep-alive", "transfer-encoding", "content-length", "content-encoding");
+
+	final int code;
+	final Map<String, String> headers;
+	final byte[] body;
+	final long storedAt;
+	long expiresAt;
+
+	public ContextIOCacheEntry(int code, Map<String, String> headers, byte[] body, long storedAt) {
+		this.code = code;
+		this.headers = headers;
+		this.body = body;
+		this.storedAt = storedAt;
+		this.expiresAt = storedAt;
+	}
+
+	public int getCode() {
+		return code;
+	}
+
+	public Map<String, String> getHeaders() {
+		return headers;
+	}
+
+	public byte[] getBody() {
+		return body;
+	}
+
+	public long getStoredAt() {
+		return storedAt;
+	}
+
+	public long getExpiresAt() {
+		return expiresAt;
+	}
+
+	public void setExpiresAt(long expiresAt) {
+		this.expiresAt = expiresAt;
+	}
+
+	public boolean isFresh(long now) {
+		return now < expiresAt;
+	}
+
+	public String getETag() {
+		return headers.get("ETag");
+	}
+
+	public String getLastModified() {
+		return headers.get("Last-Modified");
+	}
+
+	/**
+	 * @return How long the server allows the entry to be used without asking again, from
+	 * Cache-Control max-age or Expires; 0 if it has to be revalidated every time, -1 if the
+	 * server doesn't say
+	 */
+	public long getMaxAgeMillis() {
+		String cacheControl = headers.get("Cache-Control");
+		if (HttpTransport.hasToken(cacheControl, "no-cache") || HttpTransport.hasToken(cacheControl, "no-store")) {
+			return 0;
+		}
+
+		if (cacheControl != null) {
+			for (String part : cacheControl.split(",")) {
+				part = part.trim();
+				if (part.toLowerCase(Locale.US).startsWith("max-age=")) {
+					try {
+						return Math.max(0, Long.parseLong(part.substring(8).replace("\"", "").trim()) * 1000);
+					} catch (NumberFormatException e) {
+						return 0;
+					}
+				}
+			}
+		}
+
+		String expires = headers.get("Expires");
+		if (expires == null) {
+			return -1;
+		}
+
+		// an invalid date, like "0", means already expired
+		long expiresAt = parseDate(expires);
+		if (expiresAt < 0) {
+			return 0;
+		}
+
+		// measured against the server's clock if it tells us the time
+		long date = headers.get("Date") == null ? -1 : parseDate(headers.get("Date"));
+
+		return Math.max(0, expiresAt - (date < 0 ? storedAt : date));
+	}
+
+	static long parseDate(String value) {
+		SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+		try {
+			return format.parse(value.trim()).getTime();
+		} catch (ParseException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Builds the entry to keep after the server answered a conditional request with 304 Not
+	 * Modified: same status and body, with the headers of the 304 response replacing the
+	 * stored ones, so its validators and freshness information are used from now on.
+	 * @param notModified Headers of the 304 response
+	 * @param now Time the 304 response was received
+	 */
+	public ContextIOCacheEntry revalidate(Map<String, String> notModified, long now) {
+		Map<String, String> merged = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+		merged.putAll(headers);
+		for (Map.Entry<String, String> header : notModified.entrySet()) {
+			if (!NOT_UPDATED.contains(header.getKey().toLowerCase(Locale.US))) {
+				merged.put(header.getKey(), header.getValue());
+			}
+		}
+
+		return new ContextIOCacheEntry(code, merged, body, now);
+	}
+
+	/**
+	 * @return true if the entry can be revalidated with a conditional request once it is stale
+	 */
+	public boolean hasValidators() {
+		return getETag() != null || getLastModified() != null;
+	}
+
+	/**
+	 * @return Approximate memory used by this entry
+	 */
+	public long getWeight() {
+		long weight = body.length + 64;
+		for (Map.Entry<String, String> header : headers.entrySet()) {
+			weight += 2 * (header.getKey().length() + header.getValue().length());
+		}
+
+		return weight;
+	}
+
+	HttpResponse toHttpResponse() {
+		HttpResponse response = new HttpResponse(code, "", headers, new ByteArrayInputStream(body));
+		response.bytes = body;
+
+		return response;
+	}
+}
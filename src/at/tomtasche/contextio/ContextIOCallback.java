@@ -0,0 +1,14 @@
+package at.tomtasche.contextio;
+
+/**
+ * Receives the outcome of an asynchronous call, see {@link ContextIOFuture#addCallback(ContextIOCallback)}.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+public interface ContextIOCallback<T> {
+
+	void onSuccess(T result);
+
+	void onFailure(Throwable error);
+}
@@ -0,0 +1,86 @@
+package at.tomtasche.contextio;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * How far {@link ContextIOSync} got with one account: the newest message date seen
+ * so far, the messages seen on exactly that date (so they aren't emitted twice)
+ * and what the poll schedule learned about the mailbox.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+public class ContextIOCheckpoint {
+
+	final String account;
+	long since;
+	/** emailMessageId to content hash of the messages dated since */
+	Map<String, Integer> boundary = new HashMap<String, Integer>();
+	long lastPollAt;
+	long lastChangeAt;
+	long intervalMillis;
+	long messageCount;
+
+	public ContextIOCheckpoint(String account, long since) {
+		this.account = account;
+		this.since = since;
+	}
+
+	ContextIOCheckpoint copy() {
+		ContextIOCheckpoint copy = new ContextIOCheckpoint(account, since);
+		copy.boundary = new HashMap<String, Integer>(boundary);
+		copy.lastPollAt = lastPollAt;
+		copy.lastChangeAt = lastChangeAt;
+		copy.intervalMillis = intervalMillis;
+		copy.messageCount = messageCount;
+
+		return copy;
+	}
+
+	public String getAccount() {
+		return account;
+	}
+
+	/**
+	 * @return Unix timestamp the next poll starts at
+	 */
+	public long getSince() {
+		return since;
+	}
+
+	/**
+	 * @return Time of the last successful poll, in milliseconds since the epoch
+	 */
+	public long getLastPollAt() {
+		return lastPollAt;
+	}
+
+	/**
+	 * @return Time of the last poll that found new or changed messages
+	 */
+	public long getLastChangeAt() {
+		return lastChangeAt;
+	}
+
+	/**
+	 * @return Current time between two polls of this account
+	 */
+	public long getIntervalMillis() {
+		return intervalMillis;
+	}
+
+	/**
+	 * @return Number of messages emitted for this account so far
+	 */
+	public long getMessageCount() {
+		return messageCount;
+	}
+
+	@Override
+	public String toString() {
+		return "ContextIOCheckpoint [account=" + account + ", since=" + since + ", boundary=" + boundary.size()
+				+ ", lastPollAt=" + lastPollAt + ", lastChangeAt=" + lastChangeAt + ", intervalMillis=" + intervalMillis
+				+ ", messageCount=" + messageCount + "]";
+	}
+}
@@ -0,0 +1,32 @@
+package at.tomtasche.contextio;
+
+import java.util.List;
+
+/**
+ * Durable storage for the checkpoints of {@link ContextIOSync}, see
+ * {@link FileContextIOCheckpointStore} for the default implementation.
+ * Implementations must be thread-safe.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+public interface ContextIOCheckpointStore {
+
+	/**
+	 * @return Checkpoint of the given account, or null if there is none
+	 */
+	ContextIOCheckpoint load(String account);
+
+	/**
+	 * Stores a checkpoint, replacing the previous one of the same account.
+	 * Must not return before the checkpoint is durable.
+	 */
+	void save(ContextIOCheckpoint checkpoint);
+
+	void remove(String account);
+
+	/**
+	 * @return All accounts a checkpoint is stored for
+	 */
+	List<String> accounts();
+}
@@ -0,0 +1,35 @@
+package at.tomtasche.contextio;
+
+/**
+ * A person as returned by addresses.json and contactsearch.json, and as used in
+ * the addresses of messages and files.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+public class ContextIOContact {
+
+	String email;
+	String name;
+	int count;
+
+	public String getEmail() {
+		return email;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return Number of messages exchanged with this contact, if provided by the call
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	@Override
+	public String toString() {
+		return "ContextIOContact [email=" + email + ", name=" + name + ", count=" + count + "]";
+	}
+}
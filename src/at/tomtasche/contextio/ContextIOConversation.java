@@ -0,0 +1,104 @@
+package at.tomtasche.contextio;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A conversation put together by {@link ContextIOConversations}: the messages of one
+ * thread, oldest first. This is a snapshot, it doesn't change when more messages of the
+ * thread arrive later.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+public class ContextIOConversation {
+
+	String account;
+	String gmailThreadId;
+	List<ContextIOMessage> messages;
+	List<String> missing;
+	boolean complete;
+
+	public String getAccount() {
+		return account;
+	}
+
+	/**
+	 * @return Gmail thread id of the conversation, or null if none of its messages had one
+	 */
+	public String getGmailThreadId() {
+		return gmailThreadId;
+	}
+
+	/**
+	 * @return Subject of the first message that has one
+	 */
+	public String getSubject() {
+		for (ContextIOMessage message : messages) {
+			if (message.subject != null) {
+				return message.subject;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return Messages of the conversation, sorted by date
+	 */
+	public List<ContextIOMessage> getMessages() {
+		return messages;
+	}
+
+	/**
+	 * @return Message-IDs that messages of the conversation reply to or reference, but which weren't seen
+	 */
+	public List<String> getMissing() {
+		return missing;
+	}
+
+	/**
+	 * @return true if the conversation is known to hold all messages of its thread
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * @return Unix timestamp of the first message
+	 */
+	public long getFirstDate() {
+		return messages.isEmpty() ? 0 : messages.get(0).date;
+	}
+
+	/**
+	 * @return Unix timestamp of the latest message
+	 */
+	public long getLastDate() {
+		return messages.isEmpty() ? 0 : messages.get(messages.size() - 1).date;
+	}
+
+	/**
+	 * @return Email addresses of everyone who sent or received a message of the conversation, lower case, in order of appearance
+	 */
+	public List<String> getParticipants() {
+		Set<String> participants = new LinkedHashSet<String>();
+		for (ContextIOMessage message : messages) {
+			for (ContextIOContact contact : ContextIOSearchIndex.contacts(message.addresses)) {
+				if (contact != null && contact.email != null) {
+					participants.add(contact.email.trim().toLowerCase());
+				}
+			}
+		}
+
+		return new ArrayList<String>(participants);
+	}
+
+	@Override
+	public String toString() {
+		return "ContextIOConversation [account=" + account + ", gmailThreadId=" + gmailThreadId + ", subject=" + getSubject()
+				+ ", messages=" + messages.size() + ", missing=" + missing.size() + ", complete=" + complete + "]";
+	}
+}
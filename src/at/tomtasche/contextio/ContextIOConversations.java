@@ -0,0 +1,696 @@
+package at.tomtasche.contextio;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.scribe.exceptions.OAuthException;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+/**
+ * Groups messages into conversations on the client, so a conversation list doesn't need
+ * a threadinfo.json call for every thread in it. Messages belong to the same conversation
+ * if they share their Gmail thread id, or if one replies to or references the other by
+ * Message-ID (In-Reply-To and References headers, where known).
+ *
+ * Messages can be added from any call that returns them, from a {@link ContextIOSync} the
+ * engine listens to, or with their headers from a {@link ContextIOEnricher}. Conversations
+ * are updated as messages arrive; at most maxConversations are kept, the ones used least
+ * recently are dropped first.
+ *
+ * threadinfo.json is only called for conversations that aren't known to be complete.
+ * A conversation is complete once it was loaded with threadinfo.json, or if no messages it
+ * references are missing and all of its messages are newer than the time from which on
+ * all messages of the account were added, see {@link #setCoveredSince(String, long)}.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+public class ContextIOConversations implements ContextIOSyncListener {
+
+	static final Pattern MESSAGE_ID = Pattern.compile("<([^<>\\s]+)>");
+	static final Pattern FOLDED = Pattern.compile("\r?\n[ \t]+");
+
+	/**
+	 * Messages that were found to belong together. When two conversations turn out to be
+	 * one, the smaller one is merged into the larger one.
+	 */
+	static class Conversation {
+
+		final long id;
+		final String account;
+		final Map<String, ContextIOMessage> messages = new LinkedHashMap<String, ContextIOMessage>();
+		final List<ContextIOMessage> anonymous = new ArrayList<ContextIOMessage>(0);
+		final Set<String> references = new HashSet<String>();
+		final Set<String> threadIds = new HashSet<String>(2);
+		boolean complete;
+
+		Conversation(long id, String account) {
+			this.id = id;
+			this.account = account;
+		}
+
+		int size() {
+			return messages.size() + anonymous.size() + references.size() + threadIds.size();
+		}
+	}
+
+	static final Comparator<ContextIOMessage> BY_DATE = new Comparator<ContextIOMessage>() {
+
+		public int compare(ContextIOMessage a, ContextIOMessage b) {
+			return a.date < b.date ? -1 : a.date > b.date ? 1 : 0;
+		}
+	};
+
+	static final Comparator<ContextIOConversation> NEWEST_FIRST = new Comparator<ContextIOConversation>() {
+
+		public int compare(ContextIOConversation a, ContextIOConversation b) {
+			long first = a.getLastDate();
+			long second = b.getLastDate();
+
+			return first > second ? -1 : first < second ? 1 : 0;
+		}
+	};
+
+	final ContextIO contextIO;
+	final int maxConversations;
+
+	final LinkedHashMap<Long, Conversation> conversations;
+	final Map<String, Conversation> byMessageId = new HashMap<String, Conversation>();
+	final Map<String, Conversation> byThreadId = new HashMap<String, Conversation>();
+	final Map<String, Set<Conversation>> byAccount = new HashMap<String, Set<Conversation>>();
+	final Map<String, Long> coveredSince = new HashMap<String, Long>();
+	long nextId;
+
+	final AtomicLong threadInfoCalls = new AtomicLong();
+	final AtomicLong threadInfoFailures = new AtomicLong();
+	final AtomicLong evicted = new AtomicLong();
+
+	/**
+	 * @param contextIO Client to call threadinfo.json and contactmessages.json with, or null to group only what is added
+	 * @param maxConversations Number of conversations to keep, over all accounts
+	 */
+	public ContextIOConversations(ContextIO contextIO, final int maxConversations) {
+		if (maxConversations < 1) {
+			throw new IllegalArgumentException("maxConversations must be at least 1");
+		}
+
+		this.contextIO = contextIO;
+		this.maxConversations = maxConversations;
+		this.conversations = new LinkedHashMap<Long, Conversation>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Conversation> eldest) {
+				if (size() <= maxConversations) {
+					return false;
+				}
+
+				unindex(eldest.getValue());
+				evicted.incrementAndGet();
+
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Adds a message whose reply headers aren't known.
+	 */
+	public void add(String account, ContextIOMessage message) {
+		add(account, message, null, null);
+	}
+
+	/**
+	 * Adds a message to the conversation it belongs to, merging conversations it connects.
+	 * A message that was added before is replaced.
+	 * @param inReplyTo Value of the In-Reply-To header, may be null
+	 * @param references Value of the References header, may be null
+	 */
+	public synchronized void add(String account, ContextIOMessage message, String inReplyTo, String references) {
+		if (message == null) {
+			return;
+		}
+
+		String id = normalize(message.emailMessageId);
+
+		List<String> referenced = new ArrayList<String>();
+		parseIds(inReplyTo, referenced);
+		parseIds(references, referenced);
+
+		Conversation conversation = null;
+		if (id != null) {
+			conversation = join(conversation, byMessageId.get(key(account, id)));
+		}
+		if (message.gmailThreadId != null) {
+			conversation = join(conversation, byThreadId.get(key(account, message.gmailThreadId)));
+		}
+		for (String reference : referenced) {
+			conversation = join(conversation, byMessageId.get(key(account, reference)));
+		}
+
+		if (conversation == null) {
+			conversation = new Conversation(nextId++, account);
+			conversations.put(conversation.id, conversation);
+
+			Set<Conversation> ofAccount = byAccount.get(account);
+			if (ofAccount == null) {
+				ofAccount = new HashSet<Conversation>();
+				byAccount.put(account, ofAccount);
+			}
+			ofAccount.add(conversation);
+		} else {
+			// mark as used, so it isn't dropped
+			conversations.get(conversation.id);
+		}
+
+		if (id != null) {
+			conversation.messages.put(id, message);
+			byMessageId.put(key(account, id), conversation);
+		} else {
+			conversation.anonymous.add(message);
+		}
+
+		if (message.gmailThreadId != null && conversation.threadIds.add(message.gmailThreadId)) {
+			byThreadId.put(key(account, message.gmailThreadId), conversation);
+		}
+
+		for (String reference : referenced) {
+			if (!reference.equals(id) && conversation.references.add(reference)) {
+				// the referenced message joins this conversation once it shows up
+				byMessageId.put(key(account, reference), conversation);
+			}
+		}
+	}
+
+	/**
+	 * Merges two conversations, if both exist and aren't the same.
+	 * @return The conversation that holds the messages of both
+	 */
+	Conversation join(Conversation a, Conversation b) {
+		if (a == null || a == b) {
+			return b == null ? a : b;
+		}
+		if (b == null) {
+			return a;
+		}
+
+		Conversation target = a.size() >= b.size() ? a : b;
+		Conversation source = target == a ? b : a;
+
+		for (Map.Entry<String, ContextIOMessage> message : source.messages.entrySet()) {
+			target.messages.put(message.getKey(), message.getValue());
+			byMessageId.put(key(target.account, message.getKey()), target);
+		}
+		target.anonymous.addAll(source.anonymous);
+		for (String reference : source.references) {
+			target.references.add(reference);
+			byMessageId.put(key(target.account, reference), target);
+		}
+		for (String threadId : source.threadIds) {
+			target.threadIds.add(threadId);
+			byThreadId.put(key(target.account, threadId), target);
+		}
+
+		// a complete thread already holds every message that could connect to it
+		target.complete |= source.complete;
+
+		conversations.remove(source.id);
+		byAccount.get(source.account).remove(source);
+
+		return target;
+	}
+
+	void unindex(Conversation conversation) {
+		for (String id : conversation.messages.keySet()) {
+			byMessageId.remove(key(conversation.account, id));
+		}
+		for (String reference : conversation.references) {
+			byMessageId.remove(key(conversation.account, reference));
+		}
+		for (String threadId : conversation.threadIds) {
+			byThreadId.remove(key(conversation.account, threadId));
+		}
+
+		Set<Conversation> ofAccount = byAccount.get(conversation.account);
+		ofAccount.remove(conversation);
+		if (ofAccount.isEmpty()) {
+			byAccount.remove(conversation.account);
+		}
+	}
+
+	/**
+	 * Adds messages whose reply headers aren't known.
+	 */
+	public synchronized void addMessages(String account, List<ContextIOMessage> messages) {
+		for (ContextIOMessage message : messages) {
+			add(account, message, null, null);
+		}
+	}
+
+	/**
+	 * Adds a message together with the In-Reply-To and References headers fetched by the enricher.
+	 * Records without messageinfo.json are skipped.
+	 */
+	public void add(ContextIOMessageDetails details) {
+		if (details.info == null) {
+			return;
+		}
+
+		add(details.account, details.info, header(details.headers, "In-Reply-To"), header(details.headers, "References"));
+	}
+
+	/**
+	 * Adds all messages of a thread and marks its conversation as complete.
+	 */
+	public synchronized void addThread(String account, ContextIOThread thread) {
+		if (thread == null || thread.messages == null || thread.messages.isEmpty()) {
+			return;
+		}
+
+		for (ContextIOMessage message : thread.messages) {
+			if (message.gmailThreadId == null && thread.gmailThreadId != null) {
+				message.gmailThreadId = thread.gmailThreadId;
+			}
+
+			add(account, message, null, null);
+		}
+
+		Conversation conversation = find(account, thread.messages.get(0));
+		if (conversation != null) {
+			conversation.complete = true;
+		}
+	}
+
+	/**
+	 * Adds the messages of an allmessages.json, contactmessages.json, search.json or
+	 * threadinfo.json response. Responses of other calls are ignored.
+	 * @return Number of messages added
+	 */
+	public int add(String account, ContextIOResponse response) {
+		String action = response.action;
+		if (ContextIOEndpoint.ALL_MESSAGES.action.equals(action) || ContextIOEndpoint.CONTACT_MESSAGES.action.equals(action)
+				|| ContextIOEndpoint.SEARCH.action.equals(action)) {
+			List<ContextIOMessage> messages = response.getMessages();
+			addMessages(account, messages);
+
+			return messages.size();
+		} else if (ContextIOEndpoint.THREAD_INFO.action.equals(action)) {
+			ContextIOThread thread = response.getThread();
+			addThread(account, thread);
+
+			return thread == null || thread.messages == null ? 0 : thread.messages.size();
+		}
+
+		return 0;
+	}
+
+	Conversation find(String account, ContextIOMessage message) {
+		String id = normalize(message.emailMessageId);
+		if (id != null && byMessageId.containsKey(key(account, id))) {
+			return byMessageId.get(key(account, id));
+		}
+
+		return message.gmailThreadId == null ? null : byThreadId.get(key(account, message.gmailThreadId));
+	}
+
+	/**
+	 * Declares that all messages of an account dated since the given time were added, e.g.
+	 * because a {@link ContextIOSync} started at that time feeds this engine. Conversations
+	 * within that time don't need threadinfo.json, unless they reference a missing message.
+	 * @param since Unix timestamp, or -1 to forget it again
+	 */
+	public synchronized void setCoveredSince(String account, long since) {
+		if (since < 0) {
+			coveredSince.remove(account);
+		} else {
+			coveredSince.put(account, since);
+		}
+	}
+
+	boolean isComplete(Conversation conversation) {
+		if (conversation.complete) {
+			return true;
+		}
+
+		Long since = coveredSince.get(conversation.account);
+		if (since == null || !conversation.messages.keySet().containsAll(conversation.references)) {
+			return false;
+		}
+
+		for (ContextIOMessage message : conversation.messages.values()) {
+			if (message.date < since) {
+				return false;
+			}
+		}
+		for (ContextIOMessage message : conversation.anonymous) {
+			if (message.date < since) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	ContextIOConversation snapshot(Conversation conversation) {
+		ContextIOConversation snapshot = new ContextIOConversation();
+		snapshot.account = conversation.account;
+		snapshot.complete = isComplete(conversation);
+
+		List<ContextIOMessage> messages = new ArrayList<ContextIOMessage>(conversation.messages.values());
+		messages.addAll(conversation.anonymous);
+		Collections.sort(messages, BY_DATE);
+		snapshot.messages = Collections.unmodifiableList(messages);
+
+		List<String> missing = new ArrayList<String>();
+		for (String reference : conversation.references) {
+			if (!conversation.messages.containsKey(reference)) {
+				missing.add(reference);
+			}
+		}
+		snapshot.missing = Collections.unmodifiableList(missing);
+
+		for (ContextIOMessage message : messages) {
+			if (message.gmailThreadId != null) {
+				snapshot.gmailThreadId = message.gmailThreadId;
+				break;
+			}
+		}
+
+		return snapshot;
+	}
+
+	/**
+	 * @param emailMessageId Message-ID of any message of the conversation, with or without angle brackets
+	 * @return The conversation, or null if the message wasn't added
+	 */
+	public synchronized ContextIOConversation getConversation(String account, String emailMessageId) {
+		String id = normalize(emailMessageId);
+		Conversation conversation = id == null ? null : byMessageId.get(key(account, id));
+		if (conversation == null || !conversation.messages.containsKey(id)) {
+			return null;
+		}
+
+		conversations.get(conversation.id);
+
+		return snapshot(conversation);
+	}
+
+	/**
+	 * @return The conversation of a Gmail thread, or null if no message of it was added
+	 */
+	public synchronized ContextIOConversation getThread(String account, String gmailThreadId) {
+		Conversation conversation = byThreadId.get(key(account, gmailThreadId));
+		if (conversation == null) {
+			return null;
+		}
+
+		conversations.get(conversation.id);
+
+		return snapshot(conversation);
+	}
+
+	/**
+	 * @param limit Maximum number of conversations to return
+	 * @return Conversations of an account known right now, newest first
+	 */
+	public List<ContextIOConversation> getConversations(String account, int limit) {
+		List<ContextIOConversation> result = new ArrayList<ContextIOConversation>();
+		synchronized (this) {
+			Set<Conversation> ofAccount = byAccount.get(account);
+			if (ofAccount != null) {
+				for (Conversation conversation : ofAccount) {
+					result.add(snapshot(conversation));
+				}
+			}
+		}
+
+		return ContextIOSearchIndex.top(result, NEWEST_FIRST, limit);
+	}
+
+	/**
+	 * Lists the conversations with a contact: calls contactmessages.json once, groups the
+	 * messages and calls threadinfo.json only for conversations that aren't complete yet.
+	 * @param params Query parameters for contactmessages.json: email, to, from, cc, bcc, limit
+	 * @return The conversations the returned messages belong to, newest first
+	 */
+	public List<ContextIOConversation> contactConversations(String account, Map<String, String> params) {
+		ContextIOResponse response = contextIO.dispatch(ContextIOEndpoint.CONTACT_MESSAGES.method, account,
+				ContextIOEndpoint.CONTACT_MESSAGES.action, ContextIOEndpoint.CONTACT_MESSAGES.filter(params, account), null);
+		if (response.code != 200) {
+			ContextIO.closeQuietly(response.rawResponse.getStream());
+
+			throw new OAuthException(response.action + " failed with HTTP " + response.code);
+		}
+
+		List<ContextIOMessage> messages = response.getMessages();
+		addMessages(account, messages);
+
+		return resolve(account, messages);
+	}
+
+	/**
+	 * Completes the conversations of the given messages, calling threadinfo.json
+	 * concurrently for those that need it. A failed call leaves its conversation
+	 * incomplete, see {@link ContextIOConversation#isComplete()}.
+	 * @return The conversations the messages belong to, newest first
+	 */
+	public List<ContextIOConversation> resolve(final String account, Collection<ContextIOMessage> messages) {
+		Map<Long, Map<String, String>> unresolved = new LinkedHashMap<Long, Map<String, String>>();
+		synchronized (this) {
+			for (ContextIOMessage message : messages) {
+				Conversation conversation = find(account, message);
+				if (contextIO == null || conversation == null || isComplete(conversation) || unresolved.containsKey(conversation.id)) {
+					continue;
+				}
+
+				Map<String, String> params = new HashMap<String, String>();
+				if (!conversation.threadIds.isEmpty()) {
+					params.put("gmailThreadId", conversation.threadIds.iterator().next());
+				} else if (!conversation.messages.isEmpty()) {
+					params.put("emailMessageId", conversation.messages.keySet().iterator().next());
+				} else {
+					continue;
+				}
+
+				unresolved.put(conversation.id, params);
+			}
+		}
+
+		List<ContextIOFuture<ContextIOThread>> threads = new ArrayList<ContextIOFuture<ContextIOThread>>(unresolved.size());
+		for (final Map<String, String> params : unresolved.values()) {
+			threadInfoCalls.incrementAndGet();
+
+			threads.add(contextIO.async().submit(new Callable<ContextIOThread>() {
+
+				public ContextIOThread call() {
+					ContextIOEndpoint endpoint = ContextIOEndpoint.THREAD_INFO;
+					ContextIOResponse response = contextIO.dispatch(endpoint.method, account, endpoint.action, endpoint.filter(params, account), null);
+					if (response.code != 200) {
+						ContextIO.closeQuietly(response.rawResponse.getStream());
+
+						throw new OAuthException(endpoint.action + " failed with HTTP " + response.code);
+					}
+
+					return response.getThread();
+				}
+			}));
+		}
+
+		for (ContextIOFuture<ContextIOThread> thread : threads) {
+			try {
+				addThread(account, thread.get());
+			} catch (ExecutionException e) {
+				threadInfoFailures.incrementAndGet();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+
+				throw new OAuthException("Interrupted while resolving conversations", e);
+			}
+		}
+
+		List<ContextIOConversation> result = new ArrayList<ContextIOConversation>();
+		synchronized (this) {
+			Set<Conversation> seen = new HashSet<Conversation>();
+			for (ContextIOMessage message : messages) {
+				Conversation conversation = find(account, message);
+				if (conversation != null && seen.add(conversation)) {
+					result.add(snapshot(conversation));
+				}
+			}
+		}
+
+		Collections.sort(result, NEWEST_FIRST);
+
+		return result;
+	}
+
+	/**
+	 * Completes a single conversation with threadinfo.json, unless it is complete already.
+	 * @return The conversation as it is now
+	 */
+	public ContextIOConversation resolve(ContextIOConversation conversation) {
+		List<ContextIOConversation> resolved = resolve(conversation.account, conversation.messages);
+
+		return resolved.isEmpty() ? conversation : resolved.get(0);
+	}
+
+	static String key(String account, String id) {
+		return account + '\n' + id;
+	}
+
+	/**
+	 * Strips whitespace and angle brackets from a Message-ID.
+	 * @return The bare id, or null if there is none
+	 */
+	static String normalize(String messageId) {
+		if (messageId == null) {
+			return null;
+		}
+
+		String id = messageId.trim();
+		if (id.startsWith("<")) {
+			id = id.substring(1);
+		}
+		if (id.endsWith(">")) {
+			id = id.substring(0, id.length() - 1);
+		}
+
+		return id.length() == 0 ? null : id;
+	}
+
+	/**
+	 * Collects the Message-IDs of an In-Reply-To or References header.
+	 */
+	static void parseIds(String header, List<String> ids) {
+		if (header == null) {
+			return;
+		}
+
+		Matcher matcher = MESSAGE_ID.matcher(header);
+		boolean found = false;
+		while (matcher.find()) {
+			ids.add(matcher.group(1));
+			found = true;
+		}
+
+		if (!found) {
+			// some clients leave out the angle brackets
+			for (String id : header.trim().split("\\s+")) {
+				if (normalize(id) != null) {
+					ids.add(normalize(id));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Finds a header in the result of messageheaders.json, which is either the raw
+	 * header block or a JSON object of header names and values.
+	 * @return All values of the header joined by spaces, or null if it is missing
+	 */
+	static String header(String headers, String name) {
+		if (headers == null) {
+			return null;
+		}
+
+		StringBuilder value = new StringBuilder();
+		if (headers.trim().startsWith("{")) {
+			JsonObject object;
+			try {
+				object = new JsonParser().parse(headers).getAsJsonObject();
+			} catch (JsonParseException e) {
+				return null;
+			}
+
+			for (Map.Entry<String, JsonElement> header : object.entrySet()) {
+				if (!header.getKey().equalsIgnoreCase(name)) {
+					continue;
+				}
+
+				JsonElement element = header.getValue();
+				if (element.isJsonArray()) {
+					for (JsonElement item : element.getAsJsonArray()) {
+						if (item.isJsonPrimitive()) {
+							value.append(item.getAsString()).append(' ');
+						}
+					}
+				} else if (element.isJsonPrimitive()) {
+					value.append(element.getAsString()).append(' ');
+				}
+			}
+		} else {
+			String prefix = name.toLowerCase() + ":";
+			for (String line : FOLDED.matcher(headers).replaceAll(" ").split("\r?\n")) {
+				if (line.toLowerCase().startsWith(prefix)) {
+					value.append(line.substring(prefix.length()).trim()).append(' ');
+				}
+			}
+		}
+
+		return value.length() == 0 ? null : value.toString().trim();
+	}
+
+	public void onMessage(String account, ContextIOMessage message, boolean changed) {
+		add(account, message, null, null);
+	}
+
+	public void onError(String account, Throwable error) {
+		// the sync engine retries on its own, the conversations just keep their current state
+	}
+
+	public int getMaxConversations() {
+		return maxConversations;
+	}
+
+	/**
+	 * @return Number of conversations kept right now, over all accounts
+	 */
+	public synchronized int getConversationCount() {
+		return conversations.size();
+	}
+
+	/**
+	 * @return Number of threadinfo.json calls made to complete conversations
+	 */
+	public long getThreadInfoCount() {
+		return threadInfoCalls.get();
+	}
+
+	/**
+	 * @return Number of threadinfo.json calls that failed
+	 */
+	public long getThreadInfoFailureCount() {
+		return threadInfoFailures.get();
+	}
+
+	/**
+	 * @return Number of conversations dropped to stay within maxConversations
+	 */
+	public long getEvictedCount() {
+		return evicted.get();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "ContextIOConversations [conversations=" + conversations.size() + ", accounts=" + byAccount.size()
+				+ ", threadInfoCalls=" + threadInfoCalls + ", threadInfoFailures=" + threadInfoFailures + ", evicted=" + evicted + "]";
+	}
+}
@@ -0,0 +1,236 @@
+package at.tomtasche.contextio;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.scribe.exceptions.OAuthException;
+
+/**
+ * Cache for the results of diffsummary.json. A file id names an attachment whose content
+ * never changes, so the diff of two file ids is valid forever and needs no expiry or
+ * revalidation.
+ *
+ * The most recently used diffs are kept in memory. If a directory is given, every diff is
+ * also written there, in a file named after the SHA-1 of the file id pair, and survives
+ * restarts. Files are written to a temporary name and renamed, so a crash never leaves a
+ * half-written diff behind. Writing is best effort, a diff that can't be saved is only kept
+ * in memory.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+public class ContextIODiffCache {
+
+	static final int VERSION = 1;
+
+	final File directory;
+	final int maxEntries;
+
+	private final LinkedHashMap<String, String> entries;
+
+	final AtomicLong hits = new AtomicLong();
+	final AtomicLong diskHits = new AtomicLong();
+	final AtomicLong misses = new AtomicLong();
+	final AtomicLong writeFailures = new AtomicLong();
+
+	/**
+	 * Creates a cache that keeps diffs in memory only.
+	 * @param maxEntries Number of diffs kept in memory
+	 */
+	public ContextIODiffCache(int maxEntries) {
+		this(null, maxEntries);
+	}
+
+	/**
+	 * @param directory Directory to keep all diffs in, created if missing, or null to keep them in memory only
+	 * @param maxEntries Number of diffs kept in memory
+	 */
+	public ContextIODiffCache(File directory, final int maxEntries) {
+		if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+			throw new OAuthException("Can't create diff cache directory " + directory);
+		}
+
+		this.directory = directory;
+		this.maxEntries = maxEntries;
+		this.entries = new LinkedHashMap<String, String>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	static String key(String fileId1, String fileId2) {
+		return fileId1 + "\n" + fileId2;
+	}
+
+	File file(String key) {
+		return new File(directory, DigestUtils.shaHex(key) + ".diff");
+	}
+
+	/**
+	 * @return The diff from the first to the second file, or null if it isn't cached
+	 */
+	public String get(String fileId1, String fileId2) {
+		String key = key(fileId1, fileId2);
+
+		String diff;
+		synchronized (this) {
+			diff = entries.get(key);
+		}
+
+		if (diff != null) {
+			hits.incrementAndGet();
+
+			return diff;
+		}
+
+		if (directory != null) {
+			diff = read(key);
+			if (diff != null) {
+				diskHits.incrementAndGet();
+
+				synchronized (this) {
+					entries.put(key, diff);
+				}
+
+				return diff;
+			}
+		}
+
+		misses.incrementAndGet();
+
+		return null;
+	}
+
+	String read(String key) {
+		File file = file(key);
+		if (!file.exists()) {
+			return null;
+		}
+
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (in.readInt() != VERSION) {
+					return null;
+				}
+
+				// the file name is only a hash, make sure it belongs to this pair
+				if (!key.equals(in.readUTF())) {
+					return null;
+				}
+
+				byte[] diff = new byte[in.readInt()];
+				in.readFully(diff);
+
+				return new String(diff, "UTF-8");
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			// a damaged file is as good as a missing one, the diff is simply fetched again
+			return null;
+		}
+	}
+
+	/**
+	 * Stores the diff from the first to the second file.
+	 */
+	public void put(String fileId1, String fileId2, String diff) {
+		String key = key(fileId1, fileId2);
+
+		synchronized (this) {
+			entries.put(key, diff);
+		}
+
+		if (directory != null) {
+			write(key, diff);
+		}
+	}
+
+	void write(String key, String diff) {
+		File file = file(key);
+		File temporary = new File(directory, file.getName() + "." + Thread.currentThread().getId() + ".tmp");
+
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+			try {
+				byte[] bytes = diff.getBytes("UTF-8");
+
+				out.writeInt(VERSION);
+				out.writeUTF(key);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			} finally {
+				out.close();
+			}
+
+			// renameTo doesn't replace existing files on every platform
+			if (!temporary.renameTo(file) && !(file.delete() && temporary.renameTo(file))) {
+				throw new IOException("Can't rename " + temporary + " to " + file);
+			}
+		} catch (IOException e) {
+			// the cache is best effort, a failed write must not fail the call that fetched the diff
+			temporary.delete();
+
+			writeFailures.incrementAndGet();
+		}
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return Number of diffs found in memory
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * @return Number of diffs read back from the directory
+	 */
+	public long getDiskHitCount() {
+		return diskHits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * @return Number of diffs that couldn't be saved to the directory
+	 */
+	public long getWriteFailureCount() {
+		return writeFailures.get();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "ContextIODiffCache [directory=" + directory + ", entries=" + entries.size() + ", hits=" + hits
+				+ ", diskHits=" + diskHits + ", misses=" + misses + ", writeFailures=" + writeFailures + "]";
+	}
+}
@@ -0,0 +1,151 @@
+package at.tomtasche.contextio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.scribe.exceptions.OAuthException;
+
+/**
+ * Streams an attachment to disk, see {@link ContextIO#downloadFile(String, Map, File)}.
+ * The body is copied through a direct buffer that is reused by all downloads on
+ * the same thread, so it never ends up on the heap.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+class ContextIODownload {
+
+	static final int BUFFER_SIZE = 64 * 1024;
+
+	static final ThreadLocal<ByteBuffer> BUFFER = new ThreadLocal<ByteBuffer>() {
+
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+	};
+
+	final ContextIO contextIO;
+	final String account;
+	final Map<String, String> params;
+	final File saveAs;
+	final File partial;
+
+	ContextIODownload(ContextIO contextIO, String account, Map<String, String> params, File saveAs) {
+		if (saveAs == null) {
+			throw new IllegalArgumentException("saveAs must not be null, use downloadFile(account, params) to stream the content");
+		}
+
+		this.contextIO = contextIO;
+		this.account = account;
+		this.params = params;
+		this.saveAs = saveAs;
+		this.partial = new File(saveAs.getPath() + ".part");
+	}
+
+	long run() {
+		try {
+			long offset = partial.length();
+
+			ContextIOResponse response = request(offset);
+			if (response.code == 416 && offset > 0) {
+				// the partial file is not a prefix of the attachment, start over
+				ContextIO.closeQuietly(response.rawResponse.getStream());
+
+				offset = 0;
+				response = request(offset);
+			}
+
+			if (response.code == 200) {
+				offset = 0;
+			} else if (response.code != 206 || offset != rangeStart(response.rawResponse.getHeader("Content-Range"))) {
+				ContextIO.closeQuietly(response.rawResponse.getStream());
+
+				throw new OAuthException("Download of file failed with HTTP " + response.code);
+			}
+
+			long size = write(response.rawResponse.getStream(), offset);
+
+			// renameTo doesn't replace existing files on every platform
+			if (!partial.renameTo(saveAs) && !(saveAs.delete() && partial.renameTo(saveAs))) {
+				throw new IOException("Can't rename " + partial + " to " + saveAs);
+			}
+
+			return size;
+		} catch (IOException e) {
+			throw new OAuthException("Problems while downloading file", e);
+		}
+	}
+
+	ContextIOResponse request(long offset) {
+		Map<String, String> headers = null;
+		if (offset > 0) {
+			headers = new HashMap<String, String>();
+			headers.put("Range", "bytes=" + offset + "-");
+			// the offset counts decompressed bytes, which only matches ranges of the uncompressed file
+			headers.put("Accept-Encoding", "identity");
+		}
+
+		return contextIO.execute("GET", account, "downloadfile.json", params, headers);
+	}
+
+	/**
+	 * Copies the body into the partial file, starting at the given offset.
+	 * Whatever was written stays on disk if the transfer breaks, so it can be resumed.
+	 * @return Size of the file after writing
+	 */
+	long write(InputStream body, long offset) throws IOException {
+		ReadableByteChannel source = Channels.newChannel(body);
+		RandomAccessFile file = new RandomAccessFile(partial, "rw");
+		try {
+			FileChannel target = file.getChannel();
+			target.truncate(offset);
+			target.position(offset);
+
+			ByteBuffer buffer = BUFFER.get();
+			buffer.clear();
+			while (source.read(buffer) != -1) {
+				buffer.flip();
+				while (buffer.hasRemaining()) {
+					target.write(buffer);
+				}
+				buffer.clear();
+			}
+
+			target.force(false);
+
+			return target.size();
+		} finally {
+			ContextIO.closeQuietly(source);
+			file.close();
+		}
+	}
+
+	/**
+	 * Parses the first byte position of a header like "bytes 100-199/200".
+	 */
+	static long rangeStart(String contentRange) {
+		if (contentRange == null || !contentRange.startsWith("bytes ")) {
+			return -1;
+		}
+
+		int dash = contentRange.indexOf('-');
+		if (dash < 0) {
+			return -1;
+		}
+
+		try {
+			return Long.parseLong(contentRange.substring("bytes ".length(), dash).trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+}
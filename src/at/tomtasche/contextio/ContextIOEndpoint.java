@@ -0,0 +1,230 @@
+package at.tomtasche.contextio;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.scribe.exceptions.OAuthException;
+
+/**
+ * Description of one API endpoint: its action, HTTP method, the parameters it accepts
+ * and the parameters it always sends. All endpoints are created once and kept in a
+ * registry, so a call only has to look up the given parameters instead of comparing
+ * them against a fresh list of valid names.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+public final class ContextIOEndpoint {
+
+	private static final Map<String, ContextIOEndpoint> REGISTRY = new LinkedHashMap<String, ContextIOEndpoint>();
+
+	public static final ContextIOEndpoint ADDRESSES = register("addresses", "GET", "adresses.json", new String[] {});
+	public static final ContextIOEndpoint ALL_FILES = register("allFiles", "GET", "allfiles.json", new String[] {"since", "limit"});
+	public static final ContextIOEndpoint ALL_MESSAGES = register("allMessages", "GET", "allmessages.json", new String[] {"since", "limit"});
+	public static final ContextIOEndpoint CONTACT_FILES = register("contactFiles", "GET", "contactfiles.json", new String[] {"email", "to", "from", "cc", "bcc", "limit"});
+	public static final ContextIOEndpoint CONTACT_MESSAGES = register("contactMessages", "GET", "contactmessages.json", new String[] {"email", "to", "from", "cc", "bcc", "limit"});
+	public static final ContextIOEndpoint CONTACT_SEARCH = register("contactSearch", "GET", "contactsearch.json", new String[] {"search"});
+	public static final ContextIOEndpoint DIFF_SUMMARY = register("diffSummary", "GET", "diffsummary.json", new String[] {"fileId1", "fileId2"}, "generate", "1");
+	public static final ContextIOEndpoint DOWNLOAD_FILE = register("downloadFile", "GET", "downloadfile.json", new String[] {"fileid"});
+	public static final ContextIOEndpoint FILE_REVISIONS = register("fileRevisions", "GET", "filerevisions.json", new String[] {"fileid", "filename"});
+	public static final ContextIOEndpoint RELATED_FILES = register("relatedFiles", "GET", "relatedfiles.json", new String[] {"fileid", "filename"});
+	public static final ContextIOEndpoint FILE_SEARCH = register("fileSearch", "GET", "filesearch.json", new String[] {"filename"});
+	public static final ContextIOEndpoint IMAP_ACCOUNT_INFO = register("imap_accountInfo", "GET", "imap/accountinfo.json", new String[] {"email", "userid"});
+	public static final ContextIOEndpoint IMAP_ADD_ACCOUNT = register("imap_addAccount", "POST", "imap/addaccount.json", new String[] {"email", "server", "username", "oauthconsumername", "oauthtoken", "oauthtokensecret", "password", "usessl", "port", "firstname", "lastname"});
+	public static final ContextIOEndpoint IMAP_DISCOVER = register("imap_discover", "GET", "imap/discover.json", new String[] {"email"});
+	public static final ContextIOEndpoint IMAP_MODIFY_ACCOUNT = register("imap_modifyAccount", "POST", "imap/modifyaccount.json", new String[] {"credentials", "mailboxes"});
+	public static final ContextIOEndpoint IMAP_REMOVE_ACCOUNT = register("imap_removeAccount", "POST", "imap/removeaccount.json", new String[] {"label"});
+	public static final ContextIOEndpoint IMAP_RESET_STATUS = register("imap_resetStatus", "POST", "imap/resetstatus.json", new String[] {"label"});
+	public static final ContextIOEndpoint IMAP_DELETE_OAUTH_PROVIDER = register("imap_deleteOAuthProvider", "POST", "imap/oauthproviders.json", new String[] {"key"}, "action", "delete");
+	public static final ContextIOEndpoint IMAP_SET_OAUTH_PROVIDER = register("imap_setOAuthProvider", "POST", "imap/oauthproviders.json", new String[] {"type", "key", "secret"});
+	public static final ContextIOEndpoint IMAP_GET_OAUTH_PROVIDERS = register("imap_getOAuthProviders", "GET", "imap/oauthproviders.json", new String[] {"key"});
+	public static final ContextIOEndpoint MESSAGE_HEADERS = register("messageHeaders", "GET", "messageheaders.json", new String[] {"emailmessageid", "from", "datesent"});
+	public static final ContextIOEndpoint MESSAGE_INFO = register("messageInfo", "GET", "messageinfo.json", new String[] {"emailmessageid", "from", "datesent", "server", "mbox", "uid"});
+	public static final ContextIOEndpoint MESSAGE_TEXT = register("messageText", "GET", "messagetext.json", new String[] {"emailmessageid", "from", "datesent", "type"});
+	public static final ContextIOEndpoint SEARCH = register("search", "GET", "search.json", new String[] {"subject", "limit"});
+	public static final ContextIOEndpoint THREAD_INFO = register("threadInfo", "GET", "threadinfo.json", new String[] {"gmailthreadid", "emailmessageid"});
+
+	private static final ThreadLocal<StringBuilder> URL_BUILDER = new ThreadLocal<StringBuilder>() {
+
+		@Override
+		protected StringBuilder initialValue() {
+			return new StringBuilder(256);
+		}
+	};
+
+	final String name;
+	final String method;
+	final String action;
+	final String[] params;
+	final Map<String, String> fixedParams;
+
+	/** lower-cased parameter name to the name sent to the API */
+	private final Map<String, String> keys;
+
+	ContextIOEndpoint(String name, String method, String action, String[] params, Map<String, String> fixedParams) {
+		this.name = name;
+		this.method = method;
+		this.action = action;
+		this.params = params;
+		this.fixedParams = fixedParams;
+
+		this.keys = new HashMap<String, String>();
+		for (String param : params) {
+			keys.put(param.toLowerCase(Locale.ENGLISH), param);
+		}
+	}
+
+	private static ContextIOEndpoint register(String name, String method, String action, String[] params, String... fixedParams) {
+		Map<String, String> fixed = new LinkedHashMap<String, String>();
+		for (int i = 0; i + 1 < fixedParams.length; i += 2) {
+			fixed.put(fixedParams[i], fixedParams[i + 1]);
+		}
+
+		ContextIOEndpoint endpoint = new ContextIOEndpoint(name, method, action, params, Collections.unmodifiableMap(fixed));
+		REGISTRY.put(name, endpoint);
+
+		return endpoint;
+	}
+
+	/**
+	 * @param name Name of the ContextIO method, e.g. "allMessages"
+	 * @return ContextIOEndpoint, or null if there is no such endpoint
+	 */
+	public static ContextIOEndpoint forName(String name) {
+		return REGISTRY.get(name);
+	}
+
+	public static Collection<ContextIOEndpoint> all() {
+		return Collections.unmodifiableCollection(REGISTRY.values());
+	}
+
+	/**
+	 * Picks the parameters this endpoint accepts from the given ones, matching names
+	 * case-insensitively, and adds the fixed parameters and the account.
+	 * Works in a single pass over the given parameters.
+	 * @param givenParams Parameters passed by the caller, may be null
+	 * @param account accountId or email address, may be null or empty
+	 * @return New map owned by the caller
+	 */
+	Map<String, String> filter(Map<String, String> givenParams, String account) {
+		int size = (givenParams == null ? 0 : Math.min(givenParams.size(), params.length)) + fixedParams.size() + 1;
+		Map<String, String> filtered = new HashMap<String, String>(size * 4 / 3 + 1);
+
+		if (givenParams != null) {
+			for (Map.Entry<String, String> param : givenParams.entrySet()) {
+				// toLowerCase returns the same instance for names that are lower-case already
+				String key = keys.get(param.getKey().toLowerCase(Locale.ENGLISH));
+				if (key != null) {
+					filtered.put(key, param.getValue());
+				}
+			}
+		}
+
+		filtered.putAll(fixedParams);
+
+		if (account != null && account.length() > 0) {
+			filtered.put("account", account);
+		}
+
+		return filtered;
+	}
+
+	/**
+	 * Builds the URL of a call: baseUrl, action and the form-encoded parameters, in
+	 * one go on a per-thread buffer. Produces the same URL as scribe's URLUtils.
+	 */
+	static String buildUrl(String baseUrl, String action, Map<String, String> params) {
+		StringBuilder url = URL_BUILDER.get();
+		url.setLength(0);
+		url.append(baseUrl).append(action);
+
+		if (params != null && !params.isEmpty()) {
+			url.append(action.indexOf('?') >= 0 ? '&' : '?');
+			appendForm(url, params);
+		}
+
+		return release(url);
+	}
+
+	/**
+	 * Encodes parameters as an application/x-www-form-urlencoded request body.
+	 */
+	static String buildForm(Map<String, String> params) {
+		StringBuilder form = URL_BUILDER.get();
+		form.setLength(0);
+
+		appendForm(form, params);
+
+		return release(form);
+	}
+
+	private static void appendForm(StringBuilder builder, Map<String, String> params) {
+		boolean first = true;
+		for (Map.Entry<String, String> param : params.entrySet()) {
+			if (!first) {
+				builder.append('&');
+			}
+
+			builder.append(formEncode(param.getKey())).append('=').append(formEncode(param.getValue()));
+
+			first = false;
+		}
+	}
+
+	private static String release(StringBuilder builder) {
+		String result = builder.toString();
+
+		// don't keep huge buffers around for the lifetime of the thread
+		if (builder.capacity() > 8192) {
+			URL_BUILDER.remove();
+		}
+
+		return result;
+	}
+
+	static String formEncode(String value) {
+		if (value == null) {
+			return "";
+		}
+
+		try {
+			return URLEncoder.encode(value, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new OAuthException("Cannot encode parameter", e);
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getMethod() {
+		return method;
+	}
+
+	public String getAction() {
+		return action;
+	}
+
+	/**
+	 * @return Names of the parameters this endpoint accepts
+	 */
+	public String[] getParams() {
+		return params.clone();
+	}
+
+	public Map<String, String> getFixedParams() {
+		return fixedParams;
+	}
+
+	@Override
+	public String toString() {
+		return "ContextIOEndpoint [name=" + name + ", method=" + method + ", action=" + action + "]";
+	}
+}
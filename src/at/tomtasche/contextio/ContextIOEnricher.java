@@ -0,0 +1,291 @@
+package at.tomtasche.contextio;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.scribe.exceptions.OAuthException;
+
+import com.google.gson.JsonElement;
+
+/**
+ * Fetches messageinfo.json, messageheaders.json and messagetext.json for a stream of
+ * messages and merges them into one {@link ContextIOMessageDetails} per message. The
+ * three calls of a message run concurrently through {@link ContextIO#async()}.
+ *
+ * At most maxMessages messages are processed at the same time. {@link #submit(String, Map)}
+ * blocks while that many are in progress, so a producer reading identifiers from a large
+ * source can't queue up more work than the API can take.
+ *
+ * If one of the calls fails, the record is still emitted with the error in place of
+ * that part; only the other parts of that message are kept.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+public class ContextIOEnricher {
+
+	final ContextIO contextIO;
+	final int maxMessages;
+	final Semaphore permits;
+
+	final AtomicLong completed = new AtomicLong();
+	final AtomicLong partial = new AtomicLong();
+	final AtomicLong failed = new AtomicLong();
+
+	/**
+	 * @param maxMessages Number of messages to process at the same time, each takes three calls
+	 */
+	public ContextIOEnricher(ContextIO contextIO, int maxMessages) {
+		if (maxMessages < 1) {
+			throw new IllegalArgumentException("maxMessages must be at least 1");
+		}
+
+		this.contextIO = contextIO;
+		this.maxMessages = maxMessages;
+		this.permits = new Semaphore(maxMessages);
+	}
+
+	/**
+	 * @see #submit(String, Map)
+	 * @param emailMessageId Value of the Message-ID header of the message
+	 */
+	public ContextIOFuture<ContextIOMessageDetails> submit(String account, String emailMessageId) {
+		Map<String, String> params = new HashMap<String, String>();
+		params.put("emailMessageId", emailMessageId);
+
+		return submit(account, params);
+	}
+
+	/**
+	 * Starts fetching the details of a message. Blocks while maxMessages messages are
+	 * in progress.
+	 * @param account accountId or email address of the mailbox you want to query
+	 * @param params Identify the message: 'emailMessageId', or 'from' and 'dateSent'
+	 * @return ContextIOFuture that completes once all three calls are done; it never fails
+	 * because of a failed call, see {@link ContextIOMessageDetails#isComplete()}
+	 */
+	public ContextIOFuture<ContextIOMessageDetails> submit(final String account, Map<String, String> params) {
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+
+			throw new OAuthException("Interrupted while waiting to enrich a message", e);
+		}
+
+		final Map<String, String> message = new HashMap<String, String>(params);
+		final long start = System.currentTimeMillis();
+
+		final List<ContextIOFuture<Object>> parts = new ArrayList<ContextIOFuture<Object>>(3);
+		final ContextIOFuture<ContextIOMessageDetails> result = new ContextIOFuture<ContextIOMessageDetails>(new Callable<ContextIOMessageDetails>() {
+
+			public ContextIOMessageDetails call() {
+				try {
+					return merge(account, message, parts, System.currentTimeMillis() - start);
+				} finally {
+					permits.release();
+				}
+			}
+		});
+
+		final AtomicInteger remaining = new AtomicInteger(3);
+		ContextIOCallback<Object> countdown = new ContextIOCallback<Object>() {
+
+			public void onSuccess(Object value) {
+				finished();
+			}
+
+			public void onFailure(Throwable error) {
+				finished();
+			}
+
+			void finished() {
+				if (remaining.decrementAndGet() == 0) {
+					result.run();
+				}
+			}
+		};
+
+		parts.add(fetch(ContextIOEndpoint.MESSAGE_INFO, account, message));
+		parts.add(fetch(ContextIOEndpoint.MESSAGE_HEADERS, account, message));
+		parts.add(fetch(ContextIOEndpoint.MESSAGE_TEXT, account, message));
+
+		// only register once all parts are in the list, merge reads it
+		for (ContextIOFuture<Object> part : parts) {
+			part.addCallback(countdown);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Enriches all messages and hands every record to the callback as soon as it is
+	 * complete. Returns once the last record was handed over.
+	 * @param messages Parameters identifying each message, see {@link #submit(String, Map)}
+	 * @param callback Receives one record per message, concurrently
+	 */
+	public void process(String account, Iterable<Map<String, String>> messages, final ContextIOCallback<ContextIOMessageDetails> callback) {
+		// futures wake up get() before running their callbacks, so count the deliveries instead
+		final Semaphore delivered = new Semaphore(0);
+		ContextIOCallback<ContextIOMessageDetails> counting = new ContextIOCallback<ContextIOMessageDetails>() {
+
+			public void onSuccess(ContextIOMessageDetails details) {
+				try {
+					callback.onSuccess(details);
+				} finally {
+					delivered.release();
+				}
+			}
+
+			public void onFailure(Throwable error) {
+				try {
+					callback.onFailure(error);
+				} finally {
+					delivered.release();
+				}
+			}
+		};
+
+		int submitted = 0;
+		for (Map<String, String> message : messages) {
+			submit(account, message).addCallback(counting);
+			submitted++;
+		}
+
+		try {
+			delivered.acquire(submitted);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+
+			throw new OAuthException("Interrupted while enriching messages", e);
+		}
+	}
+
+	ContextIOFuture<Object> fetch(final ContextIOEndpoint endpoint, final String account, final Map<String, String> message) {
+		return contextIO.async().submit(new Callable<Object>() {
+
+			public Object call() {
+				ContextIOResponse response = contextIO.dispatch(endpoint.method, account, endpoint.action, endpoint.filter(message, account), null);
+				if (response.code != 200) {
+					ContextIO.closeQuietly(response.rawResponse.getStream());
+
+					throw new OAuthException(endpoint.action + " failed with HTTP " + response.code);
+				}
+
+				// decode on the calling thread, so the three parts are decoded in parallel as well
+				if (endpoint == ContextIOEndpoint.MESSAGE_INFO) {
+					List<ContextIOMessage> info = response.getMessages();
+					return info.isEmpty() ? null : info.get(0);
+				} else if (endpoint == ContextIOEndpoint.MESSAGE_TEXT) {
+					return response.getData(ContextIOMessageBody.class);
+				} else {
+					return data(response);
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return The data of a response as a string: its text if it is a JSON string, else its JSON
+	 */
+	static String data(ContextIOResponse response) {
+		response.decodeResponse();
+		if (response.hasError) {
+			throw new OAuthException(response.action + " failed: " + response.getApiMessages());
+		}
+
+		JsonElement element = response.getDecodedResponse();
+		if (element.isJsonObject() && element.getAsJsonObject().has("data")) {
+			element = element.getAsJsonObject().get("data");
+		}
+
+		if (element == null || element.isJsonNull()) {
+			return null;
+		}
+
+		return element.isJsonPrimitive() ? element.getAsString() : element.toString();
+	}
+
+	@SuppressWarnings("unchecked")
+	ContextIOMessageDetails merge(String account, Map<String, String> message, List<ContextIOFuture<Object>> parts, long durationMillis) {
+		ContextIOMessageDetails details = new ContextIOMessageDetails(account, message);
+		details.durationMillis = durationMillis;
+
+		try {
+			details.info = (ContextIOMessage) parts.get(0).get();
+		} catch (Throwable e) {
+			details.infoError = cause(e);
+		}
+
+		try {
+			details.headers = (String) parts.get(1).get();
+		} catch (Throwable e) {
+			details.headersError = cause(e);
+		}
+
+		try {
+			details.bodies = (List<ContextIOMessageBody>) parts.get(2).get();
+		} catch (Throwable e) {
+			details.textError = cause(e);
+		}
+
+		if (details.isComplete()) {
+			completed.incrementAndGet();
+		} else if (details.isFailed()) {
+			failed.incrementAndGet();
+		} else {
+			partial.incrementAndGet();
+		}
+
+		return details;
+	}
+
+	static Throwable cause(Throwable e) {
+		return e instanceof ExecutionException && e.getCause() != null ? e.getCause() : e;
+	}
+
+	public int getMaxMessages() {
+		return maxMessages;
+	}
+
+	/**
+	 * @return Number of messages that are being processed right now
+	 */
+	public int getInProgress() {
+		return maxMessages - permits.availablePermits();
+	}
+
+	/**
+	 * @return Number of messages for which all three calls succeeded
+	 */
+	public long getCompletedCount() {
+		return completed.get();
+	}
+
+	/**
+	 * @return Number of messages for which some, but not all calls failed
+	 */
+	public long getPartialCount() {
+		return partial.get();
+	}
+
+	/**
+	 * @return Number of messages for which all three calls failed
+	 */
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	@Override
+	public String toString() {
+		return "ContextIOEnricher [maxMessages=" + maxMessages + ", inProgress=" + getInProgress()
+				+ ", completed=" + completed + ", partial=" + partial + ", failed=" + failed + "]";
+	}
+}
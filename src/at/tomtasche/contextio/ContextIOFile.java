@@ -0,0 +1,68 @@
+package at.tomtasche.contextio;
+
+/**
+ * An attachment as returned by allfiles.json, contactfiles.json, filesearch.json and friends.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+public class ContextIOFile {
+
+	String fileId;
+	String fileName;
+	String type;
+	long size;
+	long date;
+	String emailMessageId;
+	String subject;
+	String gmailThreadId;
+	ContextIOAddresses addresses;
+
+	public String getFileId() {
+		return fileId;
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	/**
+	 * @return MIME type of the file
+	 */
+	public String getType() {
+		return type;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return Unix timestamp of the message the file was attached to
+	 */
+	public long getDate() {
+		return date;
+	}
+
+	public String getEmailMessageId() {
+		return emailMessageId;
+	}
+
+	public String getSubject() {
+		return subject;
+	}
+
+	public String getGmailThreadId() {
+		return gmailThreadId;
+	}
+
+	public ContextIOAddresses getAddresses() {
+		return addresses;
+	}
+
+	@Override
+	public String toString() {
+		return "ContextIOFile [fileId=" + fileId + ", fileName=" + fileName + ", type=" + type
+				+ ", size=" + size + ", date=" + date + ", emailMessageId=" + emailMessageId + "]";
+	}
+}
@@ -0,0 +1,77 @@
+package at.tomtasche.contextio;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Result of an asynchronous call. Besides the usual {@link java.util.concurrent.Future}
+ * methods, callbacks can be registered to be notified without blocking a thread.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+public class ContextIOFuture<T> extends FutureTask<T> {
+
+	private final List<ContextIOCallback<T>> callbacks = new ArrayList<ContextIOCallback<T>>();
+
+	public ContextIOFuture(Callable<T> callable) {
+		super(callable);
+	}
+
+	/**
+	 * Registers a callback that is invoked once the call completed. If it already did,
+	 * the callback is invoked immediately on the calling thread.
+	 * @param callback ContextIOCallback
+	 * @return this future
+	 */
+	public ContextIOFuture<T> addCallback(ContextIOCallback<T> callback) {
+		synchronized (callbacks) {
+			if (!isDone()) {
+				callbacks.add(callback);
+
+				return this;
+			}
+		}
+
+		notify(callback);
+
+		return this;
+	}
+
+	void fail(Throwable error) {
+		setException(error);
+	}
+
+	@Override
+	protected void done() {
+		List<ContextIOCallback<T>> pending;
+		synchronized (callbacks) {
+			pending = new ArrayList<ContextIOCallback<T>>(callbacks);
+			callbacks.clear();
+		}
+
+		for (ContextIOCallback<T> callback : pending) {
+			notify(callback);
+		}
+	}
+
+	private void notify(ContextIOCallback<T> callback) {
+		T result;
+		try {
+			result = get();
+		} catch (ExecutionException e) {
+			callback.onFailure(e.getCause());
+
+			return;
+		} catch (Throwable e) {
+			callback.onFailure(e);
+
+			return;
+		}
+
+		callback.onSuccess(result);
+	}
+}
@@ -0,0 +1,135 @@
+package at.tomtasche.contextio;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative values, e.g. latencies in microseconds.
+ * Like HdrHistogram, buckets are linear within each power of two: every value is
+ * counted with a relative error of at most 1/32, using a fixed amount of memory
+ * no matter how many values are recorded. Recording is a few atomic increments,
+ * so it can be called from any number of threads on the hot path.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+public class ContextIOHistogram {
+
+	static final int SUB_BUCKET_BITS = 5;
+	static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/** values up to 2^40 (about 12 days in microseconds) are told apart, larger ones are clamped */
+	static final int MAX_BITS = 40;
+	static final int BUCKETS = (MAX_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	final AtomicLong count = new AtomicLong();
+	final AtomicLong sum = new AtomicLong();
+	final AtomicLong max = new AtomicLong();
+
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+
+		counts.incrementAndGet(index(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+
+		long current;
+		while (value > (current = max.get())) {
+			if (max.compareAndSet(current, value)) {
+				break;
+			}
+		}
+	}
+
+	static int index(long value) {
+		if (value < SUB_BUCKETS << 1) {
+			return (int) value;
+		}
+
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		int index = shift * SUB_BUCKETS + (int) (value >>> shift);
+
+		return Math.min(index, BUCKETS - 1);
+	}
+
+	/**
+	 * @return Largest value that is counted in the given bucket
+	 */
+	static long highestValue(int index) {
+		if (index < SUB_BUCKETS << 1) {
+			return index;
+		}
+
+		int shift = index / SUB_BUCKETS - 1;
+		long mantissa = index - shift * SUB_BUCKETS;
+
+		return ((mantissa + 1) << shift) - 1;
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getSum() {
+		return sum.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long count = getCount();
+		return count == 0 ? 0 : (double) getSum() / count;
+	}
+
+	/**
+	 * @param percentile Between 0 and 100, e.g. 99.9
+	 * @return Value at or below which the given share of all values lie, 0 if nothing was recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+
+		if (total == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(highestValue(i), getMax());
+			}
+		}
+
+		return getMax();
+	}
+
+	/**
+	 * Clears all values. Values recorded concurrently may or may not survive.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "ContextIOHistogram [count=" + getCount() + ", mean=" + getMean() + ", p50=" + getValueAtPercentile(50)
+				+ ", p99=" + getValueAtPercentile(99) + ", max=" + getMax() + "]";
+	}
+}
@@ -0,0 +1,186 @@
+package at.tomtasche.contextio;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.scribe.exceptions.OAuthException;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Decodes the "data" part of a response one element at a time, straight from the
+ * response stream. Only the current element is held in memory, no matter how many
+ * the response contains. See {@link ContextIOResponse#iterate(Class)}.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+public class ContextIOIterator<T> implements Iterator<T>, Iterable<T>, Closeable {
+
+	final ContextIOResponse response;
+	final JsonReader reader;
+	final Type type;
+
+	boolean inArray;
+	boolean singleElement;
+	boolean finished;
+	long decodeNanos;
+
+	ContextIOIterator(ContextIOResponse response, JsonReader reader, Type type) {
+		this.response = response;
+		this.reader = reader;
+		this.type = type;
+
+		long start = System.nanoTime();
+		try {
+			if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+				// some calls return the data array without an envelope
+				reader.beginArray();
+				inArray = true;
+			} else {
+				reader.beginObject();
+				seekData();
+			}
+		} catch (IOException e) {
+			fail(e);
+		} finally {
+			decodeNanos += System.nanoTime() - start;
+		}
+	}
+
+	/**
+	 * Skips ahead to the "data" member, picking up API messages on the way.
+	 */
+	void seekData() throws IOException {
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if ("data".equals(name)) {
+				if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+					reader.beginArray();
+					inArray = true;
+				} else if (reader.peek() == JsonToken.NULL) {
+					reader.nextNull();
+					continue;
+				} else {
+					singleElement = true;
+				}
+
+				return;
+			} else if ("messages".equals(name)) {
+				response.readApiMessages(reader);
+			} else {
+				reader.skipValue();
+			}
+		}
+
+		finish();
+	}
+
+	void finish() throws IOException {
+		finished = true;
+
+		if (!inArray) {
+			// read the remaining members, API messages might come after the data
+			while (reader.hasNext()) {
+				if ("messages".equals(reader.nextName())) {
+					response.readApiMessages(reader);
+				} else {
+					reader.skipValue();
+				}
+			}
+		}
+
+		reader.close();
+
+		response.decoded(decodeNanos);
+	}
+
+	public boolean hasNext() {
+		if (finished) {
+			return false;
+		}
+
+		long start = System.nanoTime();
+		try {
+			if (singleElement || reader.hasNext()) {
+				return true;
+			}
+
+			reader.endArray();
+			inArray = false;
+			if (reader.peek() == JsonToken.END_DOCUMENT) {
+				finished = true;
+				reader.close();
+
+				response.decoded(decodeNanos + System.nanoTime() - start);
+			} else {
+				finish();
+			}
+
+			return false;
+		} catch (IOException e) {
+			return fail(e);
+		} finally {
+			decodeNanos += System.nanoTime() - start;
+		}
+	}
+
+	public T next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+
+		long start = System.nanoTime();
+		try {
+			T element = ContextIOResponse.GSON.<T>fromJson(reader, type);
+			decodeNanos += System.nanoTime() - start;
+
+			if (singleElement) {
+				singleElement = false;
+				finish();
+			}
+
+			return element;
+		} catch (IOException e) {
+			fail(e);
+
+			return null;
+		} catch (JsonParseException e) {
+			close();
+
+			throw e;
+		}
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException("Responses are read-only.");
+	}
+
+	public Iterator<T> iterator() {
+		return this;
+	}
+
+	/**
+	 * Stops reading and releases the underlying connection.
+	 */
+	public void close() {
+		finished = true;
+
+		try {
+			reader.close();
+		} catch (IOException e) {
+			// nothing left to clean up
+		}
+	}
+
+	boolean fail(IOException e) {
+		close();
+
+		throw new OAuthException("Problems while reading response body", e);
+	}
+}
@@ -0,0 +1,38 @@
+package at.tomtasche.contextio;
+
+import java.io.IOException;
+
+/**
+ * Gets notified about every call made by a {@link ContextIO} instance, see
+ * {@link ContextIO#setListener(ContextIOListener)}. Methods are called on the
+ * thread that made the call (or read the body) and should return quickly.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+public interface ContextIOListener {
+
+	/**
+	 * The response headers arrived, or the call was answered from the cache.
+	 * See {@link ContextIOResponse#getTimings()} for connect and first byte times.
+	 */
+	void onResponse(ContextIOResponse response);
+
+	/**
+	 * The response body was read completely, or its stream was closed early.
+	 * Not called for responses from the cache.
+	 */
+	void onBodyRead(ContextIOResponse response);
+
+	/**
+	 * The response was decoded, by {@link ContextIOResponse#decodeResponse()}, one of the
+	 * typed getters or an iterator that reached its end.
+	 * @param nanos Time spent decoding
+	 */
+	void onDecoded(ContextIOResponse response, long nanos);
+
+	/**
+	 * The call failed before a response arrived.
+	 */
+	void onFailure(String method, String account, String action, IOException error);
+}
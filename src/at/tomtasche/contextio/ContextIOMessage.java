@@ -0,0 +1,57 @@
+package at.tomtasche.contextio;
+
+import java.util.List;
+
+/**
+ * An email message as returned by allmessages.json, contactmessages.json, search.json and friends.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+public class ContextIOMessage {
+
+	String emailMessageId;
+	String subject;
+	long date;
+	String gmailThreadId;
+	ContextIOAddresses addresses;
+	List<ContextIOFile> files;
+	List<String> folders;
+
+	public String getEmailMessageId() {
+		return emailMessageId;
+	}
+
+	public String getSubject() {
+		return subject;
+	}
+
+	/**
+	 * @return Unix timestamp of the date the message was sent
+	 */
+	public long getDate() {
+		return date;
+	}
+
+	public String getGmailThreadId() {
+		return gmailThreadId;
+	}
+
+	public ContextIOAddresses getAddresses() {
+		return addresses;
+	}
+
+	public List<ContextIOFile> getFiles() {
+		return files;
+	}
+
+	public List<String> getFolders() {
+		return folders;
+	}
+
+	@Override
+	public String toString() {
+		return "ContextIOMessage [emailMessageId=" + emailMessageId + ", subject=" + subject
+				+ ", date=" + date + ", gmailThreadId=" + gmailThreadId + ", addresses=" + addresses + "]";
+	}
+}
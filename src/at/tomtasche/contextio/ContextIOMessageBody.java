@@ -0,0 +1,36 @@
+package at.tomtasche.contextio;
+
+/**
+ * One part of a message body as returned by messagetext.json, e.g. the text/plain
+ * or the text/html version.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+public class ContextIOMessageBody {
+
+	String type;
+	String charset;
+	String content;
+
+	/**
+	 * @return MIME type of this part, e.g. text/plain
+	 */
+	public String getType() {
+		return type;
+	}
+
+	public String getCharset() {
+		return charset;
+	}
+
+	public String getContent() {
+		return content;
+	}
+
+	@Override
+	public String toString() {
+		return "ContextIOMessageBody [type=" + type + ", charset=" + charset
+				+ ", content=" + (content == null ? null : content.length() + " chars") + "]";
+	}
+}
@@ -0,0 +1,106 @@
+package at.tomtasche.contextio;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Everything {@link ContextIOEnricher} found out about one message: the results of
+ * messageinfo.json, messageheaders.json and messagetext.json. Each of the three
+ * calls may fail on its own; the record then holds the error instead of that part.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+public class ContextIOMessageDetails {
+
+	final String account;
+	final Map<String, String> params;
+
+	ContextIOMessage info;
+	String headers;
+	List<ContextIOMessageBody> bodies;
+
+	Throwable infoError;
+	Throwable headersError;
+	Throwable textError;
+
+	long durationMillis;
+
+	ContextIOMessageDetails(String account, Map<String, String> params) {
+		this.account = account;
+		this.params = params;
+	}
+
+	public String getAccount() {
+		return account;
+	}
+
+	/**
+	 * @return Parameters that identify the message, e.g. emailMessageId
+	 */
+	public Map<String, String> getParams() {
+		return params;
+	}
+
+	/**
+	 * @return Result of messageinfo.json, or null if the call failed
+	 */
+	public ContextIOMessage getInfo() {
+		return info;
+	}
+
+	/**
+	 * @return Raw message headers as returned by messageheaders.json, or null if the call failed
+	 */
+	public String getHeaders() {
+		return headers;
+	}
+
+	/**
+	 * @return Body parts as returned by messagetext.json, or null if the call failed
+	 */
+	public List<ContextIOMessageBody> getBodies() {
+		return bodies;
+	}
+
+	public Throwable getInfoError() {
+		return infoError;
+	}
+
+	public Throwable getHeadersError() {
+		return headersError;
+	}
+
+	public Throwable getTextError() {
+		return textError;
+	}
+
+	/**
+	 * @return true if all three calls succeeded
+	 */
+	public boolean isComplete() {
+		return infoError == null && headersError == null && textError == null;
+	}
+
+	/**
+	 * @return true if all three calls failed
+	 */
+	public boolean isFailed() {
+		return infoError != null && headersError != null && textError != null;
+	}
+
+	/**
+	 * @return Time from starting the first call until the last one finished
+	 */
+	public long getDurationMillis() {
+		return durationMillis;
+	}
+
+	@Override
+	public String toString() {
+		return "ContextIOMessageDetails [account=" + account + ", params=" + params + ", info=" + info
+				+ ", headers=" + (headers == null ? null : headers.length() + " chars") + ", bodies=" + bodies
+				+ ", infoError=" + infoError + ", headersError=" + headersError + ", textError=" + textError
+				+ ", durationMillis=" + durationMillis + "]";
+	}
+}
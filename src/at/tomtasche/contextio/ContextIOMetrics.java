@@ -0,0 +1,294 @@
+package at.tomtasche.contextio;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link ContextIOListener} that keeps latency histograms and counters per action,
+ * e.g. search.json. For every call it records where the time went: DNS, connect,
+ * TLS, time to first byte, reading the body and decoding it. Response codes and
+ * bytes sent and received are counted as well.
+ *
+ * Everything can be exported in the Prometheus text format with {@link #toPrometheus()}.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+public class ContextIOMetrics implements ContextIOListener {
+
+	static final String[] PHASES = new String[] {"dns", "connect", "tls", "first_byte", "body", "decode"};
+	static final double[] QUANTILES = new double[] {0.5, 0.9, 0.99, 0.999};
+
+	static final int DNS = 0;
+	static final int CONNECT = 1;
+	static final int TLS = 2;
+	static final int FIRST_BYTE = 3;
+	static final int BODY = 4;
+	static final int DECODE = 5;
+
+	/**
+	 * A per-action counter exported by {@link #writePrometheus(Appendable)}.
+	 */
+	abstract static class Counter {
+
+		final String name;
+		final String help;
+
+		Counter(String name, String help) {
+			this.name = name;
+			this.help = help;
+		}
+
+		abstract long value(ActionMetrics metrics);
+	}
+
+	static final Counter[] COUNTERS = new Counter[] {
+		new Counter("contextio_request_bytes_total", "Bytes sent, including the request head") {
+
+			long value(ActionMetrics metrics) {
+				return metrics.getRequestBytes();
+			}
+		},
+		new Counter("contextio_response_bytes_total", "Response body bytes received") {
+
+			long value(ActionMetrics metrics) {
+				return metrics.getResponseBytes();
+			}
+		},
+		new Counter("contextio_response_decoded_bytes_total", "Response body bytes after decompression") {
+
+			long value(ActionMetrics metrics) {
+				return metrics.getDecodedBytes();
+			}
+		},
+		new Counter("contextio_cache_hits_total", "Calls answered from the cache") {
+
+			long value(ActionMetrics metrics) {
+				return metrics.getCacheHitCount();
+			}
+		},
+		new Counter("contextio_failures_total", "Calls that failed before a response arrived") {
+
+			long value(ActionMetrics metrics) {
+				return metrics.getFailureCount();
+			}
+		},
+	};
+
+	/**
+	 * Everything recorded for one action. Latencies are kept in microseconds.
+	 */
+	public static class ActionMetrics {
+
+		final ContextIOHistogram[] phases = new ContextIOHistogram[PHASES.length];
+		final ConcurrentMap<Integer, AtomicLong> codes = new ConcurrentHashMap<Integer, AtomicLong>();
+		final AtomicLong requestBytes = new AtomicLong();
+		final AtomicLong responseBytes = new AtomicLong();
+		final AtomicLong decodedBytes = new AtomicLong();
+		final AtomicLong cacheHits = new AtomicLong();
+		final AtomicLong failures = new AtomicLong();
+
+		ActionMetrics() {
+			for (int i = 0; i < phases.length; i++) {
+				phases[i] = new ContextIOHistogram();
+			}
+		}
+
+		void record(int phase, long nanos) {
+			phases[phase].record(TimeUnit.NANOSECONDS.toMicros(nanos));
+		}
+
+		void count(int code) {
+			AtomicLong counter = codes.get(code);
+			if (counter == null) {
+				AtomicLong existing = codes.putIfAbsent(code, counter = new AtomicLong());
+				if (existing != null) {
+					counter = existing;
+				}
+			}
+
+			counter.incrementAndGet();
+		}
+
+		/**
+		 * @param phase One of dns, connect, tls, first_byte, body, decode
+		 * @return Histogram of the phase's latency in microseconds
+		 */
+		public ContextIOHistogram getHistogram(String phase) {
+			for (int i = 0; i < PHASES.length; i++) {
+				if (PHASES[i].equals(phase)) {
+					return phases[i];
+				}
+			}
+
+			throw new IllegalArgumentException("Unknown phase: " + phase);
+		}
+
+		public long getCodeCount(int code) {
+			AtomicLong counter = codes.get(code);
+			return counter == null ? 0 : counter.get();
+		}
+
+		public long getRequestBytes() {
+			return requestBytes.get();
+		}
+
+		/**
+		 * @return Response body bytes as received, compressed ones counting with their compressed size
+		 */
+		public long getResponseBytes() {
+			return responseBytes.get();
+		}
+
+		/**
+		 * @return Response body bytes after decompression
+		 */
+		public long getDecodedBytes() {
+			return decodedBytes.get();
+		}
+
+		public long getCacheHitCount() {
+			return cacheHits.get();
+		}
+
+		public long getFailureCount() {
+			return failures.get();
+		}
+	}
+
+	final ConcurrentMap<String, ActionMetrics> actions = new ConcurrentHashMap<String, ActionMetrics>();
+
+	public ActionMetrics getAction(String action) {
+		ActionMetrics metrics = actions.get(action);
+		if (metrics == null) {
+			ActionMetrics existing = actions.putIfAbsent(action, metrics = new ActionMetrics());
+			if (existing != null) {
+				metrics = existing;
+			}
+		}
+
+		return metrics;
+	}
+
+	public void onResponse(ContextIOResponse response) {
+		ActionMetrics metrics = getAction(response.action);
+		metrics.count(response.code);
+
+		HttpTimings timings = response.getTimings();
+		if (response.fromCache || timings == null) {
+			metrics.cacheHits.incrementAndGet();
+
+			return;
+		}
+
+		if (timings.connected) {
+			metrics.record(DNS, timings.dnsNanos);
+			metrics.record(CONNECT, timings.connectNanos);
+			if (timings.tlsNanos > 0) {
+				metrics.record(TLS, timings.tlsNanos);
+			}
+		}
+
+		metrics.record(FIRST_BYTE, timings.firstByteNanos);
+		metrics.requestBytes.addAndGet(timings.requestBytes);
+	}
+
+	public void onBodyRead(ContextIOResponse response) {
+		HttpTimings timings = response.getTimings();
+
+		ActionMetrics metrics = getAction(response.action);
+		metrics.record(BODY, timings.getBodyNanos());
+		metrics.responseBytes.addAndGet(timings.getResponseBytes());
+		metrics.decodedBytes.addAndGet(timings.getDecodedBytes());
+	}
+
+	public void onDecoded(ContextIOResponse response, long nanos) {
+		getAction(response.action).record(DECODE, nanos);
+	}
+
+	public void onFailure(String method, String account, String action, IOException error) {
+		getAction(action).failures.incrementAndGet();
+	}
+
+	public void reset() {
+		actions.clear();
+	}
+
+	/**
+	 * Writes all metrics in the Prometheus text exposition format (version 0.0.4).
+	 * Latencies are exported as summaries in seconds.
+	 */
+	public void writePrometheus(Appendable out) throws IOException {
+		Map<String, ActionMetrics> sorted = new TreeMap<String, ActionMetrics>(actions);
+
+		out.append("# HELP contextio_phase_seconds Time spent in each phase of a call\n");
+		out.append("# TYPE contextio_phase_seconds summary\n");
+		for (Map.Entry<String, ActionMetrics> entry : sorted.entrySet()) {
+			for (int i = 0; i < PHASES.length; i++) {
+				ContextIOHistogram histogram = entry.getValue().phases[i];
+				if (histogram.getCount() == 0) {
+					continue;
+				}
+
+				String labels = "action=\"" + escape(entry.getKey()) + "\",phase=\"" + PHASES[i] + "\"";
+				for (double quantile : QUANTILES) {
+					out.append("contextio_phase_seconds{").append(labels).append(",quantile=\"").append(String.valueOf(quantile)).append("\"} ");
+					out.append(seconds(histogram.getValueAtPercentile(quantile * 100))).append('\n');
+				}
+				out.append("contextio_phase_seconds_sum{").append(labels).append("} ").append(seconds(histogram.getSum())).append('\n');
+				out.append("contextio_phase_seconds_count{").append(labels).append("} ").append(String.valueOf(histogram.getCount())).append('\n');
+			}
+		}
+
+		out.append("# HELP contextio_responses_total Responses by action and status code\n");
+		out.append("# TYPE contextio_responses_total counter\n");
+		for (Map.Entry<String, ActionMetrics> entry : sorted.entrySet()) {
+			for (Map.Entry<Integer, AtomicLong> code : new TreeMap<Integer, AtomicLong>(entry.getValue().codes).entrySet()) {
+				out.append("contextio_responses_total{action=\"").append(escape(entry.getKey())).append("\",code=\"").append(String.valueOf(code.getKey())).append("\"} ");
+				out.append(String.valueOf(code.getValue().get())).append('\n');
+			}
+		}
+
+		for (Counter counter : COUNTERS) {
+			writeCounter(out, sorted, counter);
+		}
+	}
+
+	void writeCounter(Appendable out, Map<String, ActionMetrics> sorted, Counter counter) throws IOException {
+		out.append("# HELP ").append(counter.name).append(' ').append(counter.help).append('\n');
+		out.append("# TYPE ").append(counter.name).append(" counter\n");
+		for (Map.Entry<String, ActionMetrics> entry : sorted.entrySet()) {
+			out.append(counter.name).append("{action=\"").append(escape(entry.getKey())).append("\"} ")
+					.append(String.valueOf(counter.value(entry.getValue()))).append('\n');
+		}
+	}
+
+	public String toPrometheus() {
+		StringBuilder out = new StringBuilder();
+		try {
+			writePrometheus(out);
+		} catch (IOException e) {
+			// StringBuilder doesn't throw
+		}
+
+		return out.toString();
+	}
+
+	static String seconds(long micros) {
+		return String.valueOf(micros / 1e6);
+	}
+
+	static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	@Override
+	public String toString() {
+		return "ContextIOMetrics [actions=" + new TreeMap<String, ActionMetrics>(actions).keySet() + "]";
+	}
+}
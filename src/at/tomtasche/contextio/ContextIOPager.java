@@ -0,0 +1,261 @@
+package at.tomtasche.contextio;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import org.scribe.exceptions.OAuthException;
+
+/**
+ * Walks through all results of a "since"-based call like allmessages.json page by page,
+ * see {@link ContextIO#iterateAllMessages(String, long)}. A page is only requested when
+ * the previous one is being consumed: as soon as a page arrives, the next one is
+ * fetched in the background. Each page starts at the newest date of the previous one,
+ * and items on that boundary that were already returned are dropped. The API has no
+ * offset, so a page asks for as many more items as were already returned on the
+ * boundary; that way any number of items sharing one date are paged through.
+ *
+ * This only works if a full page holds the oldest items after the boundary, but the API
+ * documents these calls as returning the most recent items and doesn't specify an order.
+ * So a full page is only used to move on if its dates ascend from the boundary. Any other
+ * full page is dropped and requested again with twice the limit, until one response is
+ * short and therefore holds everything since the boundary, whatever its order.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+public class ContextIOPager<T> implements Iterator<T>, Iterable<T>, Closeable {
+
+	/**
+	 * Tells the pager how to identify and order the items of a call.
+	 */
+	interface Cursor<T> {
+
+		String key(T item);
+
+		long date(T item);
+	}
+
+	static final Cursor<ContextIOMessage> MESSAGES = new Cursor<ContextIOMessage>() {
+
+		public String key(ContextIOMessage message) {
+			return message.emailMessageId;
+		}
+
+		public long date(ContextIOMessage message) {
+			return message.date;
+		}
+	};
+
+	static final Cursor<ContextIOFile> FILES = new Cursor<ContextIOFile>() {
+
+		public String key(ContextIOFile file) {
+			return file.fileId;
+		}
+
+		public long date(ContextIOFile file) {
+			return file.date;
+		}
+	};
+
+	final ContextIO contextIO;
+	final String account;
+	final String action;
+	final int pageSize;
+	final Class<T> type;
+	final Cursor<T> cursor;
+
+	long boundary;
+	int limit;
+	Set<String> seenAtBoundary = new HashSet<String>();
+	Iterator<T> current;
+	ContextIOFuture<List<T>> next;
+	boolean lastPage;
+	int pages;
+
+	ContextIOPager(ContextIO contextIO, String account, String action, long since, int pageSize, Class<T> type, Cursor<T> cursor) {
+		this.contextIO = contextIO;
+		this.account = account;
+		this.action = action;
+		this.boundary = since;
+		this.pageSize = pageSize;
+		this.type = type;
+		this.cursor = cursor;
+		this.limit = pageSize;
+
+		this.next = prefetch(since, pageSize);
+	}
+
+	ContextIOFuture<List<T>> prefetch(final long since, final int limit) {
+		return contextIO.async().submit(new Callable<List<T>>() {
+
+			public List<T> call() {
+				return fetch(since, limit);
+			}
+		});
+	}
+
+	List<T> fetch(long since, int limit) {
+		Map<String, String> params = new HashMap<String, String>();
+		params.put("since", String.valueOf(since));
+		params.put("limit", String.valueOf(limit));
+
+		ContextIOResponse response = contextIO.execute("GET", account, action, params, null);
+		if (response.code != 200) {
+			ContextIO.closeQuietly(response.rawResponse.getStream());
+
+			throw new OAuthException("Fetching " + action + " since " + since + " failed with HTTP " + response.code);
+		}
+
+		return response.getData(type);
+	}
+
+	/**
+	 * Takes the prefetched page, drops what was already returned and
+	 * starts fetching the page after it.
+	 */
+	void advance() {
+		List<T> page;
+		try {
+			page = next.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+
+			throw new OAuthException("Interrupted while waiting for page", e);
+		} catch (ExecutionException e) {
+			next = null;
+
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+
+			throw new OAuthException("Fetching " + action + " failed", (Exception) e.getCause());
+		}
+
+		pages++;
+
+		if (page.size() >= limit && !oldestFirst(page, cursor, boundary)) {
+			limit = limit > Integer.MAX_VALUE / 2 ? Integer.MAX_VALUE : limit * 2;
+			next = prefetch(boundary, limit);
+			current = Collections.<T>emptyList().iterator();
+
+			return;
+		}
+
+		long newest = boundary;
+		List<T> fresh = new ArrayList<T>(page.size());
+		for (T item : page) {
+			long date = cursor.date(item);
+			if (date == boundary && seenAtBoundary.contains(cursor.key(item))) {
+				continue;
+			}
+
+			fresh.add(item);
+			newest = Math.max(newest, date);
+		}
+
+		if (newest != boundary) {
+			seenAtBoundary = new HashSet<String>();
+			boundary = newest;
+		}
+		for (T item : fresh) {
+			if (cursor.date(item) == boundary) {
+				seenAtBoundary.add(cursor.key(item));
+			}
+		}
+
+		// a short page is the last one. Asking for the items already returned on the boundary
+		// on top of a page means a full page always brings something new, one that doesn't
+		// comes from a server ignoring since and would never move the cursor
+		lastPage = page.size() < limit || fresh.isEmpty();
+		limit = pageSize + seenAtBoundary.size();
+		next = lastPage ? null : prefetch(boundary, limit);
+		current = fresh.iterator();
+	}
+
+	/**
+	 * @return true if the dates of the page ascend, so a full page holds the oldest items
+	 * after the boundary. A page with a single date only proves that if it is the boundary,
+	 * otherwise it might just as well be the newest items of the mailbox.
+	 */
+	static <T> boolean oldestFirst(List<T> page, Cursor<T> cursor, long boundary) {
+		if (page.isEmpty()) {
+			return true;
+		}
+
+		long previous = Long.MIN_VALUE;
+		for (T item : page) {
+			long date = cursor.date(item);
+			if (date < previous) {
+				return false;
+			}
+
+			previous = date;
+		}
+
+		return cursor.date(page.get(0)) < previous || previous == boundary;
+	}
+
+	public boolean hasNext() {
+		while (current == null || !current.hasNext()) {
+			if (next == null) {
+				return false;
+			}
+
+			advance();
+		}
+
+		return true;
+	}
+
+	public T next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+
+		return current.next();
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException("Responses are read-only.");
+	}
+
+	public Iterator<T> iterator() {
+		return this;
+	}
+
+	/**
+	 * @return Number of pages consumed so far
+	 */
+	public int getPageCount() {
+		return pages;
+	}
+
+	/**
+	 * @return Newest date seen so far, pass it as since to continue later
+	 */
+	public long getSince() {
+		return boundary;
+	}
+
+	/**
+	 * Stops paging and cancels the page that is being prefetched.
+	 */
+	public void close() {
+		if (next != null) {
+			next.cancel(true);
+			next = null;
+		}
+
+		current = null;
+	}
+}
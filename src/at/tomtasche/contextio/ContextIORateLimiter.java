@@ -0,0 +1,274 @@
+package at.tomtasche.contextio;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket rate limiter for calls made by one {@link ContextIO} instance, i.e. one
+ * consumer key, and optionally for each account on its own. Callers that exceed the
+ * rate wait for their turn instead of being rejected.
+ *
+ * In adaptive mode the rate is halved whenever the server throttles (429 or 503) and
+ * slowly raised back to the configured rate with every successful call.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+public class ContextIORateLimiter {
+
+	static final int PRUNE_THRESHOLD = 10000;
+
+	/**
+	 * Classic token bucket. Reservations may drive the token count below zero,
+	 * which makes later callers wait longer, in the order they arrived.
+	 */
+	static class TokenBucket {
+
+		final double maxRate;
+		final double capacity;
+		double rate;
+		double tokens;
+		long lastRefill;
+		long lastDecrease;
+
+		TokenBucket(double rate, double capacity) {
+			this.maxRate = rate;
+			this.rate = rate;
+			this.capacity = capacity;
+			this.tokens = capacity;
+			this.lastRefill = System.nanoTime();
+		}
+
+		synchronized long reserve() {
+			refill();
+
+			tokens -= 1;
+
+			return tokens >= 0 ? 0 : (long) (-tokens / rate * TimeUnit.SECONDS.toNanos(1));
+		}
+
+		void refill() {
+			long now = System.nanoTime();
+			tokens = Math.min(capacity, tokens + (now - lastRefill) * rate / TimeUnit.SECONDS.toNanos(1));
+			lastRefill = now;
+		}
+
+		synchronized void decrease(double minRate) {
+			long now = System.nanoTime();
+			// a burst of throttled calls counts as one signal
+			if (now - lastDecrease < TimeUnit.SECONDS.toNanos(1)) {
+				return;
+			}
+
+			refill();
+			rate = Math.max(minRate, rate / 2);
+			tokens = Math.min(tokens, 0);
+			lastDecrease = now;
+		}
+
+		synchronized void increase(double step) {
+			refill();
+			rate = Math.min(maxRate, rate + step);
+		}
+
+		synchronized double getRate() {
+			return rate;
+		}
+
+		synchronized boolean isIdle() {
+			refill();
+
+			return tokens >= capacity;
+		}
+	}
+
+	final TokenBucket global;
+	final double accountRate;
+	final ConcurrentHashMap<String, TokenBucket> accounts = new ConcurrentHashMap<String, TokenBucket>();
+
+	volatile boolean adaptive;
+	volatile long pausedUntil;
+
+	final AtomicLong acquired = new AtomicLong();
+	final AtomicLong delayed = new AtomicLong();
+	final AtomicLong waitedMillis = new AtomicLong();
+	final AtomicLong throttled = new AtomicLong();
+
+	/**
+	 * @param requestsPerSecond Calls per second allowed for the consumer key
+	 * @param accountRequestsPerSecond Calls per second allowed for each account, 0 for no limit
+	 */
+	public ContextIORateLimiter(double requestsPerSecond, double accountRequestsPerSecond) {
+		this(requestsPerSecond, accountRequestsPerSecond, Math.max(1, requestsPerSecond));
+	}
+
+	/**
+	 * @param burst Number of calls that may be made at once after a quiet period
+	 */
+	public ContextIORateLimiter(double requestsPerSecond, double accountRequestsPerSecond, double burst) {
+		if (requestsPerSecond <= 0) {
+			throw new IllegalArgumentException("requestsPerSecond must be positive");
+		}
+
+		this.global = new TokenBucket(requestsPerSecond, burst);
+		this.accountRate = accountRequestsPerSecond;
+	}
+
+	/**
+	 * Blocks until a call for the given account may be made.
+	 * @param account accountId or email address, may be null or empty for calls without account
+	 */
+	public void acquire(String account) throws InterruptedException {
+		long waitNanos = global.reserve();
+
+		TokenBucket bucket = accountBucket(account);
+		if (bucket != null) {
+			waitNanos = Math.max(waitNanos, bucket.reserve());
+		}
+
+		long pause = pausedUntil - System.currentTimeMillis();
+		if (pause > 0) {
+			waitNanos = Math.max(waitNanos, TimeUnit.MILLISECONDS.toNanos(pause));
+		}
+
+		acquired.incrementAndGet();
+		if (waitNanos > 0) {
+			delayed.incrementAndGet();
+			waitedMillis.addAndGet(TimeUnit.NANOSECONDS.toMillis(waitNanos));
+
+			TimeUnit.NANOSECONDS.sleep(waitNanos);
+		}
+	}
+
+	TokenBucket accountBucket(String account) {
+		if (accountRate <= 0 || account == null || account.length() == 0) {
+			return null;
+		}
+
+		TokenBucket bucket = accounts.get(account);
+		if (bucket == null) {
+			if (accounts.size() >= PRUNE_THRESHOLD) {
+				pruneIdle();
+			}
+
+			bucket = new TokenBucket(accountRate, Math.max(1, accountRate));
+			TokenBucket existing = accounts.putIfAbsent(account, bucket);
+			if (existing != null) {
+				bucket = existing;
+			}
+		}
+
+		return bucket;
+	}
+
+	void pruneIdle() {
+		Iterator<TokenBucket> iterator = accounts.values().iterator();
+		while (iterator.hasNext()) {
+			TokenBucket bucket = iterator.next();
+			if (bucket.isIdle() && bucket.getRate() >= bucket.maxRate) {
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Called when the server throttled a call for the given account.
+	 * @param retryAfterMillis Time the server asked to wait, or 0 if it didn't say
+	 */
+	public void onThrottled(String account, long retryAfterMillis) {
+		throttled.incrementAndGet();
+
+		if (retryAfterMillis > 0) {
+			pausedUntil = Math.max(pausedUntil, System.currentTimeMillis() + retryAfterMillis);
+		}
+
+		if (adaptive) {
+			global.decrease(global.maxRate / 16);
+
+			TokenBucket bucket = accountBucket(account);
+			if (bucket != null) {
+				bucket.decrease(bucket.maxRate / 16);
+			}
+		}
+	}
+
+	/**
+	 * Called when a call for the given account went through without being throttled.
+	 */
+	public void onSuccess(String account) {
+		if (adaptive) {
+			global.increase(global.maxRate / 50);
+
+			TokenBucket bucket = account == null ? null : accounts.get(account);
+			if (bucket != null) {
+				bucket.increase(bucket.maxRate / 50);
+			}
+		}
+	}
+
+	public boolean isAdaptive() {
+		return adaptive;
+	}
+
+	/**
+	 * Specify whether the rate should be lowered when the server throttles and
+	 * raised back slowly afterwards. Disabled by default.
+	 * @param adaptive Set to true to adapt the rate to throttling
+	 */
+	public void setAdaptive(boolean adaptive) {
+		this.adaptive = adaptive;
+	}
+
+	/**
+	 * @return Calls per second currently allowed for the consumer key
+	 */
+	public double getRate() {
+		return global.getRate();
+	}
+
+	/**
+	 * @return Calls per second currently allowed for the given account, or 0 if it has no limit
+	 */
+	public double getAccountRate(String account) {
+		TokenBucket bucket = account == null ? null : accounts.get(account);
+		return bucket == null ? accountRate : bucket.getRate();
+	}
+
+	/**
+	 * @return Time until which all calls are held back because the server sent Retry-After
+	 */
+	public long getPausedUntil() {
+		return pausedUntil;
+	}
+
+	public long getAcquiredCount() {
+		return acquired.get();
+	}
+
+	/**
+	 * @return Number of calls that had to wait for their turn
+	 */
+	public long getDelayedCount() {
+		return delayed.get();
+	}
+
+	/**
+	 * @return Total time calls spent waiting for their turn
+	 */
+	public long getWaitedMillis() {
+		return waitedMillis.get();
+	}
+
+	public long getThrottledCount() {
+		return throttled.get();
+	}
+
+	@Override
+	public String toString() {
+		return "ContextIORateLimiter [rate=" + getRate() + ", accountRate=" + accountRate
+				+ ", accounts=" + accounts.size() + ", adaptive=" + adaptive + ", acquired=" + acquired
+				+ ", delayed=" + delayed + ", waitedMillis=" + waitedMillis + ", throttled=" + throttled + "]";
+	}
+}
@@ -0,0 +1,392 @@
+package at.tomtasche.contextio;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.scribe.exceptions.OAuthException;
+
+/**
+ * Request/response pairs captured by {@link RecordingHttpTransport} and served again by
+ * {@link ContextIOReplayServer}. A recording can live in memory only or in a file it is
+ * loaded from and appended to; every exchange is written as soon as it is added, so a
+ * recording survives the process being killed halfway through.
+ *
+ * Exchanges are looked up by a key made of the method, the path and the parameters in a
+ * fixed order. OAuth parameters are left out of the key, they differ on every call.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+public class ContextIORecording implements Closeable {
+
+	static final int MAGIC = 0x43494f52;
+	static final int VERSION = 1;
+
+	/**
+	 * A single recorded call.
+	 */
+	public static class Exchange {
+
+		final String method;
+		final String key;
+		final int code;
+		final String message;
+		final Map<String, String> headers;
+		final byte[] body;
+
+		public Exchange(String method, String key, int code, String message, Map<String, String> headers, byte[] body) {
+			this.method = method;
+			this.key = key;
+			this.code = code;
+			this.message = message;
+			this.headers = headers;
+			this.body = body;
+		}
+
+		public String getMethod() {
+			return method;
+		}
+
+		/**
+		 * @see ContextIORecording#key(String, String, byte[])
+		 */
+		public String getKey() {
+			return key;
+		}
+
+		public int getCode() {
+			return code;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+
+		/**
+		 * @return Response headers, without the ones describing the connection or the transfer
+		 */
+		public Map<String, String> getHeaders() {
+			return headers;
+		}
+
+		/**
+		 * @return Decoded response body
+		 */
+		public byte[] getBody() {
+			return body;
+		}
+
+		@Override
+		public String toString() {
+			return "Exchange [key=" + key + ", code=" + code + ", bytes=" + body.length + "]";
+		}
+	}
+
+	/** headers that describe the original connection rather than the response */
+	static final List<String> TRANSFER_HEADERS = Arrays.asList("connection", "keep-alive", "transfer-encoding", "content-length", "content-encoding");
+
+	final File file;
+	final List<Exchange> exchanges = new ArrayList<Exchange>();
+	final Map<String, List<Exchange>> byKey = new HashMap<String, List<Exchange>>();
+	RandomAccessFile out;
+
+	/**
+	 * Creates a recording that is kept in memory only.
+	 */
+	public ContextIORecording() {
+		this.file = null;
+	}
+
+	/**
+	 * Loads the exchanges recorded in the file, if it exists, and appends new ones to it.
+	 * A record cut off by a crash ends the recording, everything before it is kept and the
+	 * torn record is cut off the file before new ones are appended.
+	 */
+	public ContextIORecording(File file) {
+		this.file = file;
+
+		try {
+			// a file shorter than the header was cut off while it was created
+			long end = file.length() >= 8 ? read(file) : 0;
+
+			out = new RandomAccessFile(file, "rw");
+			if (end == 0) {
+				out.setLength(0);
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+			} else {
+				out.setLength(end);
+				out.seek(end);
+			}
+		} catch (IOException e) {
+			close();
+
+			throw new OAuthException("Problems while opening recording " + file, e);
+		}
+	}
+
+	/**
+	 * Indexes all complete records of the file.
+	 * @return Offset behind the last complete record
+	 */
+	long read(File file) throws IOException {
+		CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+		DataInputStream in = new DataInputStream(counter);
+		try {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Not a recording: " + file);
+			}
+
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new IOException("Unknown recording version " + version);
+			}
+
+			long end = counter.count;
+			while (true) {
+				Exchange exchange;
+				try {
+					String method = in.readUTF();
+					String key = in.readUTF();
+					int code = in.readInt();
+					String message = in.readUTF();
+
+					int headerCount = in.readInt();
+					Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+					for (int i = 0; i < headerCount; i++) {
+						headers.put(in.readUTF(), in.readUTF());
+					}
+
+					byte[] body = new byte[in.readInt()];
+					in.readFully(body);
+
+					exchange = new Exchange(method, key, code, message, headers, body);
+				} catch (EOFException e) {
+					break;
+				}
+
+				index(exchange);
+
+				end = counter.count;
+			}
+
+			return end;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Adds an exchange and, if the recording has a file, appends it to the file. The record
+	 * is encoded completely before anything is written, so one that can't be encoded, e.g.
+	 * because of a key longer than 64 KB, leaves the file untouched.
+	 */
+	public synchronized void add(Exchange exchange) {
+		if (out != null) {
+			try {
+				ByteArrayOutputStream buffer = new ByteArrayOutputStream(exchange.body.length + 512);
+				DataOutputStream record = new DataOutputStream(buffer);
+
+				record.writeUTF(exchange.method);
+				record.writeUTF(exchange.key);
+				record.writeInt(exchange.code);
+				record.writeUTF(exchange.message == null ? "" : exchange.message);
+
+				record.writeInt(exchange.headers.size());
+				for (Map.Entry<String, String> header : exchange.headers.entrySet()) {
+					record.writeUTF(header.getKey());
+					record.writeUTF(header.getValue());
+				}
+
+				record.writeInt(exchange.body.length);
+				record.write(exchange.body);
+
+				out.write(buffer.toByteArray());
+			} catch (IOException e) {
+				throw new OAuthException("Problems while writing recording " + file, e);
+			}
+		}
+
+		index(exchange);
+	}
+
+	/**
+	 * Records a response. Headers that only describe the original transfer are dropped.
+	 */
+	public void add(String method, String url, byte[] requestBody, int code, String message, Map<String, String> headers, byte[] body) {
+		Map<String, String> kept = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+		for (Map.Entry<String, String> header : headers.entrySet()) {
+			if (!TRANSFER_HEADERS.contains(header.getKey().toLowerCase())) {
+				kept.put(header.getKey(), header.getValue());
+			}
+		}
+
+		add(new Exchange(method, key(method, url, requestBody), code, message, kept, body));
+	}
+
+	synchronized void index(Exchange exchange) {
+		exchanges.add(exchange);
+
+		List<Exchange> matches = byKey.get(exchange.key);
+		if (matches == null) {
+			matches = new ArrayList<Exchange>(1);
+			byKey.put(exchange.key, matches);
+		}
+		matches.add(exchange);
+	}
+
+	/**
+	 * @param key See {@link #key(String, String, byte[])}
+	 * @return All exchanges recorded for the key in the order they were recorded, empty if there are none
+	 */
+	public synchronized List<Exchange> find(String key) {
+		List<Exchange> matches = byKey.get(key);
+
+		return matches == null ? Collections.<Exchange>emptyList() : new ArrayList<Exchange>(matches);
+	}
+
+	/**
+	 * @return All exchanges in the order they were recorded
+	 */
+	public synchronized List<Exchange> getExchanges() {
+		return new ArrayList<Exchange>(exchanges);
+	}
+
+	public synchronized int size() {
+		return exchanges.size();
+	}
+
+	/**
+	 * Builds the key a call is recorded under: method, path and the parameters of the query
+	 * string and the form body, sorted and without OAuth parameters.
+	 * @param url Complete URL, or only path and query string
+	 * @param body Form-encoded request body, may be null
+	 */
+	public static String key(String method, String url, byte[] body) {
+		String path = url;
+		if (url.indexOf("://") > 0) {
+			try {
+				path = new URL(url).getFile();
+			} catch (MalformedURLException e) {
+				throw new IllegalArgumentException("Invalid URL: " + url, e);
+			}
+		}
+
+		List<String> params = new ArrayList<String>();
+
+		int question = path.indexOf('?');
+		if (question >= 0) {
+			addParams(params, path.substring(question + 1));
+			path = path.substring(0, question);
+		}
+
+		if (body != null) {
+			try {
+				addParams(params, new String(body, "UTF-8"));
+			} catch (UnsupportedEncodingException e) {
+				throw new OAuthException("Cannot decode request body", e);
+			}
+		}
+
+		Collections.sort(params);
+
+		StringBuilder key = new StringBuilder(method).append(' ').append(path);
+
+		char separator = '?';
+		for (String param : params) {
+			key.append(separator).append(param);
+
+			separator = '&';
+		}
+
+		return key.toString();
+	}
+
+	static void addParams(List<String> params, String encoded) {
+		for (String param : encoded.split("&")) {
+			if (param.length() > 0 && !param.startsWith("oauth_")) {
+				params.add(param);
+			}
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public synchronized void close() {
+		if (out == null) {
+			return;
+		}
+
+		try {
+			out.close();
+		} catch (IOException e) {
+			throw new OAuthException("Problems while closing recording " + file, e);
+		} finally {
+			out = null;
+		}
+	}
+
+	static class CountingInputStream extends FilterInputStream {
+
+		long count;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				count++;
+			}
+
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if (read > 0) {
+				count += read;
+			}
+
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count += skipped;
+
+			return skipped;
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "ContextIORecording [file=" + file + ", exchanges=" + exchanges.size() + ", keys=" + byKey.size() + "]";
+	}
+}
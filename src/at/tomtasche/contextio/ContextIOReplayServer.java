@@ -0,0 +1,375 @@
+package at.tomtasche.contextio;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.scribe.exceptions.OAuthException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-in for the API that answers calls from a {@link ContextIORecording}, so
+ * an integration can be load-tested without sending a single call to Context.IO. Point a
+ * ContextIO instance at it with {@link ContextIO#setEndpoint(String)} and
+ * {@link ContextIO#setSsl(boolean)}.
+ *
+ * Calls are matched by method, path and parameters, see {@link ContextIORecording#key(String, String, byte[])}.
+ * If a call was recorded several times, the recorded responses are served in turn. Calls
+ * that weren't recorded are answered with 404.
+ *
+ * To size thread pools and rate limits, the server can behave like a loaded API: every
+ * response is delayed by a configurable latency, at most a given number of calls are
+ * served at the same time (the others wait for a free worker), and a share of the calls
+ * can be answered with 429, with a server error or with a body that trickles in slowly.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+public class ContextIOReplayServer implements Closeable {
+
+	static final int SLOW_CHUNK_BYTES = 512;
+
+	final ContextIORecording recording;
+	int concurrency;
+	long latencyMillis;
+	long jitterMillis;
+	double throttleRate;
+	int retryAfterSeconds;
+	double errorRate;
+	int errorCode;
+	double slowRate;
+	int slowBytesPerSecond;
+	final Random random;
+
+	HttpServer server;
+	ExecutorService executor;
+
+	final ConcurrentHashMap<String, AtomicInteger> cursors = new ConcurrentHashMap<String, AtomicInteger>();
+	final AtomicInteger inFlight = new AtomicInteger();
+	final AtomicInteger maxInFlight = new AtomicInteger();
+
+	final AtomicLong requests = new AtomicLong();
+	final AtomicLong unmatched = new AtomicLong();
+	final AtomicLong throttled = new AtomicLong();
+	final AtomicLong errors = new AtomicLong();
+	final AtomicLong slowed = new AtomicLong();
+
+	public ContextIOReplayServer(ContextIORecording recording) {
+		this(recording, new Random());
+	}
+
+	/**
+	 * @param random Decides which calls fail, pass a seeded one to get the same failures in every run
+	 */
+	public ContextIOReplayServer(ContextIORecording recording, Random random) {
+		this.recording = recording;
+		this.random = random;
+		this.concurrency = 16;
+		this.retryAfterSeconds = 1;
+		this.errorCode = 500;
+		this.slowBytesPerSecond = 16 * 1024;
+	}
+
+	/**
+	 * Starts serving on the loopback interface.
+	 * @param port Port to listen on, 0 for any free port
+	 */
+	public void start(int port) {
+		start(new InetSocketAddress("127.0.0.1", port));
+	}
+
+	public synchronized void start(InetSocketAddress address) {
+		if (server != null) {
+			throw new IllegalStateException("Server was started already");
+		}
+
+		executor = Executors.newFixedThreadPool(concurrency, ContextIOWebhookReceiver.daemon("ContextIO-replay"));
+
+		try {
+			server = HttpServer.create(address, 0);
+		} catch (IOException e) {
+			executor.shutdownNow();
+
+			throw new OAuthException("Could not listen on " + address, e);
+		}
+
+		server.createContext("/", new HttpHandler() {
+
+			public void handle(HttpExchange exchange) throws IOException {
+				int current = inFlight.incrementAndGet();
+				try {
+					int max;
+					while (current > (max = maxInFlight.get())) {
+						if (maxInFlight.compareAndSet(max, current)) {
+							break;
+						}
+					}
+
+					serve(exchange);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+
+					throw new InterruptedIOException("Interrupted while replaying");
+				} finally {
+					inFlight.decrementAndGet();
+					exchange.close();
+				}
+			}
+		});
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	void serve(HttpExchange exchange) throws IOException, InterruptedException {
+		requests.incrementAndGet();
+
+		byte[] requestBody = HttpResponse.readFully(exchange.getRequestBody());
+		String key = ContextIORecording.key(exchange.getRequestMethod(), exchange.getRequestURI().getRawPath()
+				+ (exchange.getRequestURI().getRawQuery() == null ? "" : "?" + exchange.getRequestURI().getRawQuery()),
+				requestBody.length == 0 ? null : requestBody);
+
+		long delay = latencyMillis + (jitterMillis > 0 ? (long) (random.nextDouble() * jitterMillis) : 0);
+		if (delay > 0) {
+			Thread.sleep(delay);
+		}
+
+		double roll = random.nextDouble();
+		if (roll < throttleRate) {
+			throttled.incrementAndGet();
+			if (retryAfterSeconds > 0) {
+				exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfterSeconds));
+			}
+
+			error(exchange, 429, "Too many requests");
+
+			return;
+		}
+
+		if (roll < throttleRate + errorRate) {
+			errors.incrementAndGet();
+			error(exchange, errorCode, "Injected server error");
+
+			return;
+		}
+
+		List<ContextIORecording.Exchange> matches = recording.find(key);
+		if (matches.isEmpty()) {
+			unmatched.incrementAndGet();
+			error(exchange, 404, "No recorded response for " + key);
+
+			return;
+		}
+
+		AtomicInteger cursor = cursors.get(key);
+		if (cursor == null) {
+			AtomicInteger created = new AtomicInteger();
+			cursor = cursors.putIfAbsent(key, created);
+			if (cursor == null) {
+				cursor = created;
+			}
+		}
+
+		ContextIORecording.Exchange recorded = matches.get((cursor.getAndIncrement() & Integer.MAX_VALUE) % matches.size());
+		for (Map.Entry<String, String> header : recorded.headers.entrySet()) {
+			exchange.getResponseHeaders().set(header.getKey(), header.getValue());
+		}
+
+		boolean slow = slowRate > 0 && random.nextDouble() < slowRate;
+		send(exchange, recorded.code, recorded.body, slow);
+	}
+
+	void error(HttpExchange exchange, int code, String message) throws IOException, InterruptedException {
+		String body = "{\"messages\":[{\"type\":\"error\",\"value\":\"" + message.replace("\\", "\\\\").replace("\"", "\\\"") + "\"}]}";
+
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		send(exchange, code, body.getBytes("UTF-8"), false);
+	}
+
+	void send(HttpExchange exchange, int code, byte[] body, boolean slow) throws IOException, InterruptedException {
+		exchange.sendResponseHeaders(code, body.length == 0 ? -1 : body.length);
+		if (body.length == 0) {
+			return;
+		}
+
+		OutputStream out = exchange.getResponseBody();
+		if (!slow) {
+			out.write(body);
+			out.close();
+
+			return;
+		}
+
+		slowed.incrementAndGet();
+
+		for (int offset = 0; offset < body.length; offset += SLOW_CHUNK_BYTES) {
+			int length = Math.min(SLOW_CHUNK_BYTES, body.length - offset);
+
+			// wait before each chunk, so even a body of a single chunk arrives late
+			Thread.sleep(Math.max(1, length * 1000L / Math.max(1, slowBytesPerSecond)));
+
+			out.write(body, offset, length);
+			out.flush();
+		}
+		out.close();
+	}
+
+	/**
+	 * @return Port the server listens on, useful if it was started on port 0
+	 */
+	public int getPort() {
+		if (server == null) {
+			throw new IllegalStateException("Server wasn't started yet");
+		}
+
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * @return Host and port to pass to {@link ContextIO#setEndpoint(String)}
+	 */
+	public String getEndpoint() {
+		return server.getAddress().getAddress().getHostAddress() + ":" + getPort();
+	}
+
+	public ContextIORecording getRecording() {
+		return recording;
+	}
+
+	public int getConcurrency() {
+		return concurrency;
+	}
+
+	/**
+	 * Has to be called before {@link #start(int)}.
+	 * @param concurrency Number of calls served at the same time, further calls wait for a free worker
+	 */
+	public void setConcurrency(int concurrency) {
+		this.concurrency = concurrency;
+	}
+
+	public long getLatencyMillis() {
+		return latencyMillis;
+	}
+
+	/**
+	 * @param latencyMillis Time every call takes before the response is sent
+	 * @param jitterMillis Up to this much is added to the latency at random
+	 */
+	public void setLatency(long latencyMillis, long jitterMillis) {
+		this.latencyMillis = latencyMillis;
+		this.jitterMillis = jitterMillis;
+	}
+
+	public long getJitterMillis() {
+		return jitterMillis;
+	}
+
+	public double getThrottleRate() {
+		return throttleRate;
+	}
+
+	/**
+	 * @param throttleRate Share of calls answered with 429, between 0 and 1
+	 * @param retryAfterSeconds Value of the Retry-After header sent along, 0 to leave it out
+	 */
+	public void setThrottleRate(double throttleRate, int retryAfterSeconds) {
+		this.throttleRate = throttleRate;
+		this.retryAfterSeconds = retryAfterSeconds;
+	}
+
+	public double getErrorRate() {
+		return errorRate;
+	}
+
+	/**
+	 * @param errorRate Share of calls answered with a server error, between 0 and 1
+	 * @param errorCode Status code of those answers, e.g. 500 or 503
+	 */
+	public void setErrorRate(double errorRate, int errorCode) {
+		this.errorRate = errorRate;
+		this.errorCode = errorCode;
+	}
+
+	public double getSlowRate() {
+		return slowRate;
+	}
+
+	/**
+	 * @param slowRate Share of responses whose body is sent slowly, between 0 and 1
+	 * @param bytesPerSecond Speed those bodies are sent at
+	 */
+	public void setSlowRate(double slowRate, int bytesPerSecond) {
+		this.slowRate = slowRate;
+		this.slowBytesPerSecond = bytesPerSecond;
+	}
+
+	/**
+	 * @return Number of calls received
+	 */
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	/**
+	 * @return Number of calls answered with 404 because they weren't recorded
+	 */
+	public long getUnmatchedCount() {
+		return unmatched.get();
+	}
+
+	/**
+	 * @return Number of calls answered with 429
+	 */
+	public long getThrottledCount() {
+		return throttled.get();
+	}
+
+	/**
+	 * @return Number of calls answered with an injected server error
+	 */
+	public long getErrorCount() {
+		return errors.get();
+	}
+
+	/**
+	 * @return Number of responses whose body was sent slowly
+	 */
+	public long getSlowedCount() {
+		return slowed.get();
+	}
+
+	/**
+	 * @return Largest number of calls that were served at the same time
+	 */
+	public int getMaxInFlight() {
+		return maxInFlight.get();
+	}
+
+	public synchronized void close() {
+		if (server == null) {
+			return;
+		}
+
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	@Override
+	public String toString() {
+		return "ContextIOReplayServer [recording=" + recording + ", requests=" + requests + ", unmatched=" + unmatched
+				+ ", throttled=" + throttled + ", errors=" + errors + ", slowed=" + slowed + ", maxInFlight=" + maxInFlight + "]";
+	}
+}
@@ -1,8 +1,26 @@
 package at.tomtasche.contextio;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
-import org.scribe.model.Response;
+import org.scribe.exceptions.OAuthException;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
 /**
  * 
@@ -11,42 +29,380 @@ import org.scribe.model.Response;
  */
 public class ContextIOResponse {
 
+	static final Gson GSON = new Gson();
+
 	int code;
-	Map<String, String> headers;
 	Map<String, String> requestHeaders;
-	Map<String, String> responseHeaders;
-	String contentType;
-	Response rawResponse;
+	HttpResponse rawResponse;
 	boolean hasError;
-	
-	
-	public ContextIOResponse(int code, Map<String, String> requestHeaders, Map<String, String> responseHeaders, Response rawResponse) {
+	String method;
+	String account;
+	String action;
+	long startedAt;
+	long durationMillis;
+	boolean fromCache;
+	HttpTimings timings;
+	ContextIOListener listener;
+	JsonElement decodedResponse;
+	List<String> apiMessages = new ArrayList<String>();
+	List<?> data;
+	Type dataType;
+	boolean bodyConsumed;
+
+
+	/**
+	 * Wraps a raw response without copying anything: headers are read from it on access
+	 * and the body is only read when one of the body or decoding methods is called.
+	 * @param requestHeaders Headers that were sent, or null if they shouldn't be kept
+	 */
+	public ContextIOResponse(int code, Map<String, String> requestHeaders, HttpResponse rawResponse) {
 		this.code = code;
 		this.requestHeaders = requestHeaders;
-		this.responseHeaders = responseHeaders;
 		this.rawResponse = rawResponse;
-		this.contentType = rawResponse.getHeader("Content-Type");
-		// TODO: this.headers = ;
 	}
 	
 	
-	public void decodeResponse() {
-		if (code != 200 || !contentType.equals("application/json")) {
+	/**
+	 * Parses the whole response into a JSON tree and checks it for errors. Use the
+	 * typed getters or {@link #iterate(Class)} instead if you don't need the tree,
+	 * they decode straight from the response stream.
+	 */
+	public synchronized void decodeResponse() {
+		if (code != 200 || !isJson()) {
 			hasError = true;
 		} else {
-			// TODO: decode json response to rawResponse
-			
-			// TODO: if (array_key_exists('messages', $this->decodedResponse) && (count($this->decodedResponse['messages']) > 0)) hasError = true;
+			if (decodedResponse == null) {
+				long start = System.nanoTime();
+
+				JsonReader reader = openReader();
+				try {
+					decodedResponse = new JsonParser().parse(reader);
+				} finally {
+					closeQuietly(reader);
+				}
+
+				// like readApiMessages, anything but an array carries no messages
+				if (decodedResponse.isJsonObject() && decodedResponse.getAsJsonObject().has("messages")
+						&& decodedResponse.getAsJsonObject().get("messages").isJsonArray()) {
+					apiMessages.clear();
+					for (JsonElement message : decodedResponse.getAsJsonObject().getAsJsonArray("messages")) {
+						apiMessages.add(message.isJsonPrimitive() ? message.getAsString() : message.toString());
+					}
+				}
+
+				decoded(System.nanoTime() - start);
+			}
+
+			if (!apiMessages.isEmpty()) {
+				hasError = true;
+			}
+		}
+	}
+
+	boolean isJson() {
+		String contentType = getContentType();
+		return contentType != null && contentType.toLowerCase().startsWith("application/json");
+	}
+
+	/**
+	 * Opens a reader on the response body. The body can only be streamed once,
+	 * unless it was already read into a String.
+	 */
+	synchronized JsonReader openReader() {
+		return new JsonReader(getReader());
+	}
+
+	/**
+	 * Returns the body as a stream of characters, decoded with the charset of the response.
+	 * The body can only be streamed once, unless it is held in memory, e.g. because it
+	 * came from the cache or {@link #getBody()} was called before.
+	 * @return Reader
+	 */
+	public synchronized Reader getReader() {
+		if (rawResponse.body != null) {
+			bodyConsumed = true;
+
+			return new StringReader(rawResponse.body);
+		}
+
+		try {
+			return new InputStreamReader(getStream(), rawResponse.getCharset());
+		} catch (UnsupportedEncodingException e) {
+			throw new OAuthException("Unsupported response charset", e);
+		}
+	}
+
+	/**
+	 * Returns the undecoded body. Read it to the end or close it, so the connection can be reused.
+	 * The same restrictions as for {@link #getReader()} apply.
+	 * @return InputStream
+	 */
+	public synchronized InputStream getStream() {
+		InputStream stream;
+		if (rawResponse.bytes != null) {
+			stream = new ByteArrayInputStream(rawResponse.bytes);
+		} else if (rawResponse.body != null) {
+			stream = new ByteArrayInputStream(rawResponse.getBytes());
+		} else {
+			if (bodyConsumed) {
+				throw new IllegalStateException("Response body was already consumed");
+			}
+
+			stream = rawResponse.getStream();
+		}
+
+		bodyConsumed = true;
+
+		return stream;
+	}
+
+	/**
+	 * Returns the undecoded body as a read-only buffer. Bodies that are held in memory
+	 * already, like cached ones, are wrapped without copying them.
+	 * @return ByteBuffer
+	 */
+	public synchronized ByteBuffer getBodyBuffer() {
+		if (rawResponse.bytes == null && rawResponse.body == null && bodyConsumed) {
+			throw new IllegalStateException("Response body was already consumed");
+		}
+
+		bodyConsumed = true;
+
+		return ByteBuffer.wrap(rawResponse.getBytes()).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Reads the whole body into a String. Prefer {@link #getReader()} or the typed getters
+	 * for large responses, they don't need a copy of the body.
+	 * @return String
+	 */
+	public synchronized String getBody() {
+		if (rawResponse.bytes == null && rawResponse.body == null && bodyConsumed) {
+			throw new IllegalStateException("Response body was already consumed");
+		}
+
+		bodyConsumed = true;
+
+		return rawResponse.getBody();
+	}
+
+	void readApiMessages(JsonReader reader) throws IOException {
+		if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+			reader.skipValue();
+			return;
+		}
+
+		reader.beginArray();
+		while (reader.hasNext()) {
+			if (reader.peek() == JsonToken.STRING) {
+				apiMessages.add(reader.nextString());
+			} else {
+				apiMessages.add(new JsonParser().parse(reader).toString());
+			}
+		}
+		reader.endArray();
+	}
+
+	static void closeQuietly(JsonReader reader) {
+		try {
+			reader.close();
+		} catch (IOException e) {
+			// nothing left to clean up
+		}
+	}
+
+	void decoded(long nanos) {
+		ContextIOListener listener = this.listener;
+		if (listener != null) {
+			listener.onDecoded(this, nanos);
+		}
+	}
+
+	/**
+	 * Decodes the elements of the response's "data" array one by one, straight from
+	 * the response stream. Use this for large responses, only one element is held
+	 * in memory at a time. Close the iterator if you stop before the end.
+	 * @param type Class to decode each element into, e.g. ContextIOMessage
+	 * @return ContextIOIterator
+	 */
+	public <T> ContextIOIterator<T> iterate(Class<T> type) {
+		return new ContextIOIterator<T>(this, openReader(), type);
+	}
+
+	/**
+	 * Decodes the response's "data" into a list of the given type. Reads straight from
+	 * the response stream unless {@link #decodeResponse()} was called before.
+	 * @param type Class to decode each element into
+	 * @return List, empty if the response contains no data
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized <T> List<T> getData(Class<T> type) {
+		if (data != null && type.equals(dataType)) {
+			return (List<T>) data;
+		}
+
+		List<T> result = new ArrayList<T>();
+		if (decodedResponse != null) {
+			long start = System.nanoTime();
+
+			JsonElement element = decodedResponse;
+			if (element.isJsonObject()) {
+				element = element.getAsJsonObject().get("data");
+			}
+
+			if (element != null && element.isJsonArray()) {
+				for (JsonElement item : element.getAsJsonArray()) {
+					result.add(GSON.fromJson(item, type));
+				}
+			} else if (element != null && !element.isJsonNull()) {
+				result.add(GSON.fromJson(element, type));
+			}
+
+			decoded(System.nanoTime() - start);
+		} else {
+			ContextIOIterator<T> iterator = iterate(type);
+			while (iterator.hasNext()) {
+				result.add(iterator.next());
+			}
+		}
+
+		data = result;
+		dataType = type;
+
+		return result;
+	}
+
+	/**
+	 * @return Messages returned by calls like allMessages, contactMessages or search
+	 */
+	public List<ContextIOMessage> getMessages() {
+		return getData(ContextIOMessage.class);
+	}
+
+	/**
+	 * @return Files returned by calls like allFiles, contactFiles or fileSearch
+	 */
+	public List<ContextIOFile> getFiles() {
+		return getData(ContextIOFile.class);
+	}
+
+	/**
+	 * @return Contacts returned by calls like addresses or contactSearch
+	 */
+	public List<ContextIOContact> getContacts() {
+		return getData(ContextIOContact.class);
+	}
+
+	/**
+	 * @return Thread returned by threadInfo, or null if there is none
+	 */
+	public ContextIOThread getThread() {
+		List<ContextIOThread> threads = getData(ContextIOThread.class);
+
+		return threads.isEmpty() ? null : threads.get(0);
+	}
+
+	/**
+	 * Returns the messages Context.IO attached to the response, usually errors or warnings.
+	 * Only available once the response was decoded.
+	 * @return List
+	 */
+	public List<String> getApiMessages() {
+		return Collections.unmodifiableList(apiMessages);
+	}
+
+	/**
+	 * @return The JSON tree, or null if {@link #decodeResponse()} wasn't called
+	 */
+	public JsonElement getDecodedResponse() {
+		return decodedResponse;
+	}
+
+	public int getCode() {
+		return code;
+	}
+
+	/**
+	 * @return Headers that were sent, empty unless {@link ContextIO#setSaveHeaders(boolean)} was enabled
+	 */
+	public Map<String, String> getRequestHeaders() {
+		if (requestHeaders == null) {
+			return Collections.emptyMap();
 		}
+
+		return Collections.unmodifiableMap(requestHeaders);
+	}
+
+	/**
+	 * @return Read-only view of the response headers, names are matched case-insensitively
+	 */
+	public Map<String, String> getResponseHeaders() {
+		return Collections.unmodifiableMap(rawResponse.getHeaders());
+	}
+
+	public String getHeader(String name) {
+		return rawResponse.getHeader(name);
+	}
+
+	public String getContentType() {
+		return rawResponse.getHeader("Content-Type");
+	}
+
+	public boolean hasError() {
+		return hasError;
+	}
+
+	public String getMethod() {
+		return method;
+	}
+
+	public String getAccount() {
+		return account;
+	}
+
+	public String getAction() {
+		return action;
+	}
+
+	/**
+	 * @return Time the call was started at, in milliseconds since the epoch
+	 */
+	public long getStartedAt() {
+		return startedAt;
+	}
+
+	/**
+	 * @return Time from sending the request until the response headers were received
+	 */
+	public long getDurationMillis() {
+		return durationMillis;
+	}
+
+	/**
+	 * @return true if the response was served from the cache without contacting the server
+	 */
+	public boolean isFromCache() {
+		return fromCache;
+	}
+
+	/**
+	 * @return Where the time of the call went, or null if it was answered from the cache
+	 */
+	public HttpTimings getTimings() {
+		return timings;
+	}
+
+	public HttpResponse getRawResponse() {
+		return rawResponse;
 	}
 
 
 	@Override
 	public String toString() {
-		return "ContextIOResponse [code=" + code + ", headers=" + headers
-				+ ", requestHeaders=" + requestHeaders + ", responseHeaders="
-				+ responseHeaders + ", contentType=" + contentType
-				+ ", rawResponse=" + rawResponse + ", hasError=" + hasError
-				+ ", response=" + rawResponse.getBody() + "]";
+		// never read the body here, that would consume it or copy it into a String
+		return "ContextIOResponse [method=" + method + ", account=" + account
+				+ ", action=" + action + ", code=" + code + ", durationMillis=" + durationMillis
+				+ ", contentType=" + getContentType() + ", rawResponse=" + rawResponse + ", hasError=" + hasError
+				+ ", fromCache=" + fromCache + ", bodyConsumed=" + bodyConsumed + "]";
 	}
 }
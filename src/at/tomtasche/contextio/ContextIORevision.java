@@ -0,0 +1,53 @@
+package at.tomtasche.contextio;
+
+/**
+ * One revision of a file in a {@link ContextIORevisionTimeline}, together with the
+ * changes made since the revision before it.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+public class ContextIORevision {
+
+	final ContextIOFile file;
+	final String previousFileId;
+	String diff;
+	Throwable diffError;
+
+	ContextIORevision(ContextIOFile file, String previousFileId) {
+		this.file = file;
+		this.previousFileId = previousFileId;
+	}
+
+	public ContextIOFile getFile() {
+		return file;
+	}
+
+	/**
+	 * @return fileId of the revision before this one, or null for the first revision
+	 */
+	public String getPreviousFileId() {
+		return previousFileId;
+	}
+
+	/**
+	 * @return Data of diffsummary.json from the previous revision to this one, as JSON,
+	 * or null for the first revision or if fetching it failed
+	 */
+	public String getDiff() {
+		return diff;
+	}
+
+	/**
+	 * @return Why the diff couldn't be fetched, or null if it could
+	 */
+	public Throwable getDiffError() {
+		return diffError;
+	}
+
+	@Override
+	public String toString() {
+		return "ContextIORevision [file=" + file + ", previousFileId=" + previousFileId + ", diff="
+				+ (diff == null ? null : diff.length() + " chars") + ", diffError=" + diffError + "]";
+	}
+}
@@ -0,0 +1,75 @@
+package at.tomtasche.contextio;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * All revisions of a file, oldest first, each with the diff from the revision before,
+ * as built by {@link ContextIORevisions}.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+public class ContextIORevisionTimeline {
+
+	final String account;
+	final String fileId;
+	final List<ContextIORevision> revisions = new ArrayList<ContextIORevision>();
+	long durationMillis;
+
+	ContextIORevisionTimeline(String account, String fileId) {
+		this.account = account;
+		this.fileId = fileId;
+	}
+
+	public String getAccount() {
+		return account;
+	}
+
+	/**
+	 * @return fileId the timeline was requested for
+	 */
+	public String getFileId() {
+		return fileId;
+	}
+
+	/**
+	 * @return Revisions sorted by date
+	 */
+	public List<ContextIORevision> getRevisions() {
+		return revisions;
+	}
+
+	/**
+	 * @return The newest revision, or null if the file has none
+	 */
+	public ContextIORevision getLatest() {
+		return revisions.isEmpty() ? null : revisions.get(revisions.size() - 1);
+	}
+
+	/**
+	 * @return true if the diffs of all revisions could be fetched
+	 */
+	public boolean isComplete() {
+		for (ContextIORevision revision : revisions) {
+			if (revision.diffError != null) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return Time it took to build the timeline
+	 */
+	public long getDurationMillis() {
+		return durationMillis;
+	}
+
+	@Override
+	public String toString() {
+		return "ContextIORevisionTimeline [account=" + account + ", fileId=" + fileId + ", revisions=" + revisions.size()
+				+ ", complete=" + isComplete() + ", durationMillis=" + durationMillis + "]";
+	}
+}
@@ -0,0 +1,313 @@
+package at.tomtasche.contextio;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.scribe.exceptions.OAuthException;
+
+/**
+ * Builds the revision history of a file in one call: filerevisions.json for the list of
+ * revisions, then diffsummary.json for every pair of consecutive revisions. All diffs of a
+ * file are fetched concurrently through {@link ContextIO#async()}, and the whole timeline is
+ * built from callbacks, so no thread waits for another call to finish.
+ *
+ * Diffs of two file ids never change, so they are kept in a {@link ContextIODiffCache} and
+ * fetched only once; diffsummary.json always asks the API to generate the diff, which is the
+ * slow part of rendering a history. Timelines built at the same time that need the same diff
+ * share one call.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+public class ContextIORevisions {
+
+	static final Comparator<ContextIOFile> BY_DATE = new Comparator<ContextIOFile>() {
+
+		public int compare(ContextIOFile a, ContextIOFile b) {
+			if (a.date != b.date) {
+				return a.date < b.date ? -1 : 1;
+			}
+
+			// revisions attached to the same message, keep them in a stable order
+			return a.fileId.compareTo(b.fileId);
+		}
+	};
+
+	final ContextIO contextIO;
+	final ContextIODiffCache cache;
+
+	final ConcurrentHashMap<String, ContextIOFuture<String>> pending = new ConcurrentHashMap<String, ContextIOFuture<String>>();
+
+	final AtomicLong revisionCalls = new AtomicLong();
+	final AtomicLong diffCalls = new AtomicLong();
+	final AtomicLong cachedDiffs = new AtomicLong();
+	final AtomicLong sharedDiffs = new AtomicLong();
+
+	public ContextIORevisions(ContextIO contextIO, ContextIODiffCache cache) {
+		this.contextIO = contextIO;
+		this.cache = cache;
+	}
+
+	/**
+	 * Builds the timeline of a file and waits for it.
+	 * @param account accountId or email address of the mailbox you want to query
+	 * @param fileId fileId of any revision of the file
+	 * @return ContextIORevisionTimeline
+	 */
+	public ContextIORevisionTimeline timeline(String account, String fileId) {
+		return get(submit(account, fileId));
+	}
+
+	/**
+	 * Builds the timelines of several files concurrently and waits for all of them.
+	 * @return Timelines in the order of the fileIds
+	 */
+	public List<ContextIORevisionTimeline> timelines(String account, List<String> fileIds) {
+		List<ContextIOFuture<ContextIORevisionTimeline>> futures = new ArrayList<ContextIOFuture<ContextIORevisionTimeline>>(fileIds.size());
+		for (String fileId : fileIds) {
+			futures.add(submit(account, fileId));
+		}
+
+		List<ContextIORevisionTimeline> timelines = new ArrayList<ContextIORevisionTimeline>(fileIds.size());
+		for (ContextIOFuture<ContextIORevisionTimeline> future : futures) {
+			timelines.add(get(future));
+		}
+
+		return timelines;
+	}
+
+	static ContextIORevisionTimeline get(ContextIOFuture<ContextIORevisionTimeline> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+
+			throw new OAuthException("Interrupted while building revision timeline", e);
+		} catch (ExecutionException e) {
+			Throwable cause = ContextIOEnricher.cause(e);
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+
+			throw new OAuthException("Problems while building revision timeline", e);
+		}
+	}
+
+	/**
+	 * Starts building the timeline of a file.
+	 * @param account accountId or email address of the mailbox you want to query
+	 * @param fileId fileId of any revision of the file
+	 * @return ContextIOFuture that fails only if the revisions couldn't be listed; a diff
+	 * that couldn't be fetched is reported in its revision, see {@link ContextIORevision#getDiffError()}
+	 */
+	public ContextIOFuture<ContextIORevisionTimeline> submit(final String account, final String fileId) {
+		final long start = System.currentTimeMillis();
+		final ContextIORevisionTimeline timeline = new ContextIORevisionTimeline(account, fileId);
+
+		final ContextIOFuture<ContextIORevisionTimeline> result = new ContextIOFuture<ContextIORevisionTimeline>(new Callable<ContextIORevisionTimeline>() {
+
+			public ContextIORevisionTimeline call() {
+				timeline.durationMillis = System.currentTimeMillis() - start;
+
+				return timeline;
+			}
+		});
+
+		revisionCalls.incrementAndGet();
+
+		ContextIOFuture<List<ContextIOFile>> revisions = contextIO.async().submit(new Callable<List<ContextIOFile>>() {
+
+			public List<ContextIOFile> call() {
+				Map<String, String> params = new HashMap<String, String>();
+				params.put("fileId", fileId);
+
+				return remote(ContextIOEndpoint.FILE_REVISIONS, account, params).getFiles();
+			}
+		});
+
+		revisions.addCallback(new ContextIOCallback<List<ContextIOFile>>() {
+
+			public void onSuccess(List<ContextIOFile> files) {
+				List<ContextIOFile> sorted = sort(files);
+
+				String previous = null;
+				for (ContextIOFile file : sorted) {
+					timeline.revisions.add(new ContextIORevision(file, previous));
+					previous = file.fileId;
+				}
+
+				if (sorted.size() < 2) {
+					result.run();
+
+					return;
+				}
+
+				final AtomicInteger remaining = new AtomicInteger(sorted.size() - 1);
+				for (final ContextIORevision revision : timeline.revisions.subList(1, timeline.revisions.size())) {
+					diff(account, revision.previousFileId, revision.file.fileId).addCallback(new ContextIOCallback<String>() {
+
+						public void onSuccess(String diff) {
+							revision.diff = diff;
+							finished();
+						}
+
+						public void onFailure(Throwable error) {
+							revision.diffError = error;
+							finished();
+						}
+
+						void finished() {
+							if (remaining.decrementAndGet() == 0) {
+								result.run();
+							}
+						}
+					});
+				}
+			}
+
+			public void onFailure(Throwable error) {
+				result.fail(error);
+			}
+		});
+
+		return result;
+	}
+
+	/**
+	 * Orders revisions by date and drops duplicates, the API lists a file once per message it is attached to.
+	 */
+	static List<ContextIOFile> sort(List<ContextIOFile> files) {
+		Map<String, ContextIOFile> unique = new LinkedHashMap<String, ContextIOFile>();
+		for (ContextIOFile file : files) {
+			if (file.fileId != null && !unique.containsKey(file.fileId)) {
+				unique.put(file.fileId, file);
+			}
+		}
+
+		List<ContextIOFile> sorted = new ArrayList<ContextIOFile>(unique.values());
+		Collections.sort(sorted, BY_DATE);
+
+		return sorted;
+	}
+
+	/**
+	 * Fetches the diff from one file to another, from the cache if possible. Concurrent
+	 * requests for the same pair share one call.
+	 */
+	ContextIOFuture<String> diff(final String account, final String fileId1, final String fileId2) {
+		final String cached = cache.get(fileId1, fileId2);
+		if (cached != null) {
+			cachedDiffs.incrementAndGet();
+
+			ContextIOFuture<String> future = new ContextIOFuture<String>(new Callable<String>() {
+
+				public String call() {
+					return cached;
+				}
+			});
+			future.run();
+
+			return future;
+		}
+
+		final String key = ContextIODiffCache.key(fileId1, fileId2);
+		final ContextIOFuture<String> created = new ContextIOFuture<String>(new Callable<String>() {
+
+			public String call() {
+				try {
+					Map<String, String> params = new HashMap<String, String>();
+					params.put("fileId1", fileId1);
+					params.put("fileId2", fileId2);
+
+					String diff = ContextIOEnricher.data(remote(ContextIOEndpoint.DIFF_SUMMARY, account, params));
+					if (diff != null) {
+						cache.put(fileId1, fileId2, diff);
+					}
+
+					return diff;
+				} finally {
+					pending.remove(key);
+				}
+			}
+		});
+
+		ContextIOFuture<String> existing = pending.putIfAbsent(key, created);
+		if (existing != null) {
+			sharedDiffs.incrementAndGet();
+
+			return existing;
+		}
+
+		diffCalls.incrementAndGet();
+
+		contextIO.async().submit(new Callable<Void>() {
+
+			public Void call() {
+				created.run();
+
+				return null;
+			}
+		});
+
+		return created;
+	}
+
+	ContextIOResponse remote(ContextIOEndpoint endpoint, String account, Map<String, String> params) {
+		ContextIOResponse response = contextIO.dispatch(endpoint.method, account, endpoint.action, endpoint.filter(params, account), null);
+		if (response.code != 200) {
+			ContextIO.closeQuietly(response.rawResponse.getStream());
+
+			throw new OAuthException(endpoint.action + " failed with HTTP " + response.code);
+		}
+
+		return response;
+	}
+
+	public ContextIODiffCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * @return Number of filerevisions.json calls made
+	 */
+	public long getRevisionCallCount() {
+		return revisionCalls.get();
+	}
+
+	/**
+	 * @return Number of diffsummary.json calls made
+	 */
+	public long getDiffCallCount() {
+		return diffCalls.get();
+	}
+
+	/**
+	 * @return Number of diffs taken from the cache
+	 */
+	public long getCachedDiffCount() {
+		return cachedDiffs.get();
+	}
+
+	/**
+	 * @return Number of diffs that shared a call already in flight
+	 */
+	public long getSharedDiffCount() {
+		return sharedDiffs.get();
+	}
+
+	@Override
+	public String toString() {
+		return "ContextIORevisions [revisionCalls=" + revisionCalls + ", diffCalls=" + diffCalls
+				+ ", cachedDiffs=" + cachedDiffs + ", sharedDiffs=" + sharedDiffs + ", cache=" + cache + "]";
+	}
+}
@@ -0,0 +1,599 @@
+package at.tomtasche.contextio;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+import org.scribe.exceptions.OAuthException;
+
+/**
+ * In-memory index over contact names, email addresses and attachment file names that
+ * answers contactsearch.json and filesearch.json without a round trip, e.g. for
+ * autocompletion.
+ *
+ * Names are split into words, and a query matches a record if each of its words is the
+ * beginning of one of the record's words. The index is filled from addresses.json,
+ * contactmessages.json and allfiles.json results passed to {@link #add(String, ContextIOResponse)},
+ * or from a {@link ContextIOSync} it listens to.
+ *
+ * An account is only searched locally once its contacts or files were loaded completely,
+ * see {@link #loadContacts(String)} and {@link #loadFiles(String)}. Until then searches go
+ * to the API, and their results are added to the index.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+public class ContextIOSearchIndex implements ContextIOSyncListener {
+
+	static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+	/**
+	 * Documents of one kind together with a sorted map from words to the documents that
+	 * contain them. The words starting with a prefix are a range of that map. The keys are
+	 * also kept in the order results are returned in, so a prefix that matches a large part
+	 * of the documents can be answered by walking that order until enough were found.
+	 */
+	static class Index<T> {
+
+		/**
+		 * Number of documents from the word range after which walking the ranked keys is cheaper.
+		 */
+		static final int RANGE_LIMIT = 512;
+
+		final Map<String, T> documents = new HashMap<String, T>();
+		final Map<String, Set<String>> words = new HashMap<String, Set<String>>();
+		final TreeMap<String, Set<String>> postings = new TreeMap<String, Set<String>>();
+		final TreeSet<String> ranked;
+
+		Index(final Comparator<T> order) {
+			this.ranked = new TreeSet<String>(new Comparator<String>() {
+
+				public int compare(String a, String b) {
+					int result = order.compare(documents.get(a), documents.get(b));
+					return result != 0 ? result : a.compareTo(b);
+				}
+			});
+		}
+
+		void put(String key, T document, Set<String> documentWords) {
+			// the ranked set can only find the key with the document it was sorted by
+			if (documents.containsKey(key)) {
+				ranked.remove(key);
+			}
+
+			documents.put(key, document);
+			ranked.add(key);
+
+			Set<String> previous = words.put(key, documentWords);
+			if (previous != null) {
+				for (String word : previous) {
+					if (!documentWords.contains(word)) {
+						Set<String> keys = postings.get(word);
+						keys.remove(key);
+						if (keys.isEmpty()) {
+							postings.remove(word);
+						}
+					}
+				}
+			}
+
+			for (String word : documentWords) {
+				Set<String> keys = postings.get(word);
+				if (keys == null) {
+					keys = new HashSet<String>(2);
+					postings.put(word, keys);
+				}
+				keys.add(key);
+			}
+		}
+
+		/**
+		 * @return The first limit documents in the given order that have a word starting with every term
+		 */
+		List<T> find(List<String> terms, Comparator<T> order, int limit) {
+			// the longest term usually matches the fewest words, the others are checked per document
+			String longest = terms.get(0);
+			for (String term : terms) {
+				if (term.length() > longest.length()) {
+					longest = term;
+				}
+			}
+
+			Set<String> candidates = new HashSet<String>();
+			for (Set<String> keys : prefixed(longest).values()) {
+				if (candidates.size() + keys.size() > RANGE_LIMIT) {
+					return findRanked(terms, limit);
+				}
+
+				candidates.addAll(keys);
+			}
+
+			PriorityQueue<T> top = new PriorityQueue<T>(limit + 1, Collections.reverseOrder(order));
+			for (String key : candidates) {
+				if (matches(words.get(key), terms)) {
+					top.add(documents.get(key));
+					if (top.size() > limit) {
+						top.poll();
+					}
+				}
+			}
+
+			List<T> result = new ArrayList<T>(top);
+			Collections.sort(result, order);
+
+			return result;
+		}
+
+		List<T> findRanked(List<String> terms, int limit) {
+			List<T> result = new ArrayList<T>(limit);
+			for (String key : ranked) {
+				if (matches(words.get(key), terms)) {
+					result.add(documents.get(key));
+					if (result.size() == limit) {
+						break;
+					}
+				}
+			}
+
+			return result;
+		}
+
+		static boolean matches(Set<String> documentWords, List<String> terms) {
+			for (String term : terms) {
+				boolean found = false;
+				for (String word : documentWords) {
+					if (word.startsWith(term)) {
+						found = true;
+						break;
+					}
+				}
+
+				if (!found) {
+					return false;
+				}
+			}
+
+			return true;
+		}
+
+		SortedMap<String, Set<String>> prefixed(String prefix) {
+			return postings.subMap(prefix, prefix + Character.MAX_VALUE);
+		}
+	}
+
+	static class Account {
+
+		final Index<ContextIOContact> contacts = new Index<ContextIOContact>(CONTACT_ORDER);
+		final Index<ContextIOFile> files = new Index<ContextIOFile>(FILE_ORDER);
+		boolean contactsComplete;
+		boolean filesComplete;
+	}
+
+	static final Comparator<ContextIOContact> CONTACT_ORDER = new Comparator<ContextIOContact>() {
+
+		public int compare(ContextIOContact a, ContextIOContact b) {
+			if (a.count != b.count) {
+				return a.count > b.count ? -1 : 1;
+			}
+
+			return String.valueOf(a.email).compareTo(String.valueOf(b.email));
+		}
+	};
+
+	static final Comparator<ContextIOFile> FILE_ORDER = new Comparator<ContextIOFile>() {
+
+		public int compare(ContextIOFile a, ContextIOFile b) {
+			if (a.date != b.date) {
+				return a.date > b.date ? -1 : 1;
+			}
+
+			return String.valueOf(a.fileName).compareTo(String.valueOf(b.fileName));
+		}
+	};
+
+	final ContextIO contextIO;
+	final Map<String, Account> accounts = new HashMap<String, Account>();
+	final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	final AtomicLong localSearches = new AtomicLong();
+	final AtomicLong remoteSearches = new AtomicLong();
+
+	/**
+	 * @param contextIO Client to fall back to and to load accounts with, or null to search only locally
+	 */
+	public ContextIOSearchIndex(ContextIO contextIO) {
+		this.contextIO = contextIO;
+	}
+
+	/**
+	 * Searches the contacts of an account by name and email address.
+	 * @param query Beginnings of words of the name or address, e.g. "jo sm" or "john.smith@ex"
+	 * @param limit Maximum number of contacts to return, most frequent first
+	 * @return Matching contacts
+	 */
+	public List<ContextIOContact> searchContacts(String account, String query, int limit) {
+		List<String> terms = terms(query);
+		if (terms.isEmpty()) {
+			return new ArrayList<ContextIOContact>();
+		}
+
+		lock.readLock().lock();
+		try {
+			Account state = accounts.get(account);
+			if (contextIO == null || state != null && state.contactsComplete) {
+				localSearches.incrementAndGet();
+
+				return state == null ? new ArrayList<ContextIOContact>() : state.contacts.find(terms, CONTACT_ORDER, limit);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		Map<String, String> params = new HashMap<String, String>();
+		params.put("search", query);
+
+		remoteSearches.incrementAndGet();
+
+		List<ContextIOContact> contacts = remote(ContextIOEndpoint.CONTACT_SEARCH, account, params).getContacts();
+		addContacts(account, contacts);
+
+		return top(contacts, CONTACT_ORDER, limit);
+	}
+
+	/**
+	 * Searches the attachments of an account by file name.
+	 * @param query Beginnings of words of the file name, e.g. "inv 2011" or "report.pd"
+	 * @param limit Maximum number of files to return, newest first
+	 * @return Matching files
+	 */
+	public List<ContextIOFile> searchFiles(String account, String query, int limit) {
+		List<String> terms = terms(query);
+		if (terms.isEmpty()) {
+			return new ArrayList<ContextIOFile>();
+		}
+
+		lock.readLock().lock();
+		try {
+			Account state = accounts.get(account);
+			if (contextIO == null || state != null && state.filesComplete) {
+				localSearches.incrementAndGet();
+
+				return state == null ? new ArrayList<ContextIOFile>() : state.files.find(terms, FILE_ORDER, limit);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		Map<String, String> params = new HashMap<String, String>();
+		params.put("fileName", query);
+
+		remoteSearches.incrementAndGet();
+
+		List<ContextIOFile> files = remote(ContextIOEndpoint.FILE_SEARCH, account, params).getFiles();
+		addFiles(account, files);
+
+		return top(files, FILE_ORDER, limit);
+	}
+
+	ContextIOResponse remote(ContextIOEndpoint endpoint, String account, Map<String, String> params) {
+		ContextIOResponse response = contextIO.dispatch(endpoint.method, account, endpoint.action, endpoint.filter(params, account), null);
+		if (response.code != 200) {
+			ContextIO.closeQuietly(response.rawResponse.getStream());
+
+			throw new OAuthException(endpoint.action + " failed with HTTP " + response.code);
+		}
+
+		return response;
+	}
+
+	static <T> List<T> top(List<T> items, Comparator<T> order, int limit) {
+		List<T> sorted = new ArrayList<T>(items);
+		Collections.sort(sorted, order);
+
+		return sorted.size() > limit ? new ArrayList<T>(sorted.subList(0, limit)) : sorted;
+	}
+
+	/**
+	 * Fetches all contacts of an account. addresses.json only returns the 20 contacts with
+	 * the most mail exchanged, so it is used for their counts, and every sender and recipient
+	 * is collected from allmessages.json, page by page. This walks the whole mailbox.
+	 * Afterwards contact searches for the account are answered locally.
+	 * @return Number of contacts indexed
+	 */
+	public int loadContacts(String account) {
+		addContacts(account, remote(ContextIOEndpoint.ADDRESSES, account, null).getContacts());
+
+		List<ContextIOMessage> page = new ArrayList<ContextIOMessage>(ContextIO.DEFAULT_PAGE_SIZE);
+		Iterator<ContextIOMessage> messages = contextIO.iterateAllMessages(account, 0);
+		while (messages.hasNext()) {
+			page.add(messages.next());
+
+			if (page.size() == ContextIO.DEFAULT_PAGE_SIZE || !messages.hasNext()) {
+				addMessages(account, page);
+
+				page.clear();
+			}
+		}
+
+		setContactsComplete(account, true);
+
+		return getContactCount(account);
+	}
+
+	/**
+	 * Fetches all attachments of an account with allfiles.json, page by page. Afterwards
+	 * file searches for the account are answered locally.
+	 * @return Number of files indexed
+	 */
+	public int loadFiles(String account) {
+		int count = 0;
+
+		List<ContextIOFile> page = new ArrayList<ContextIOFile>(ContextIO.DEFAULT_PAGE_SIZE);
+		Iterator<ContextIOFile> files = contextIO.iterateAllFiles(account, 0);
+		while (files.hasNext()) {
+			page.add(files.next());
+
+			if (page.size() == ContextIO.DEFAULT_PAGE_SIZE || !files.hasNext()) {
+				addFiles(account, page);
+
+				count += page.size();
+				page.clear();
+			}
+		}
+
+		setFilesComplete(account, true);
+
+		return count;
+	}
+
+	/**
+	 * Declares whether the index holds all contacts of an account, e.g. after restoring it
+	 * from a {@link ContextIOStore}. Only complete accounts are searched locally.
+	 */
+	public void setContactsComplete(String account, boolean complete) {
+		lock.writeLock().lock();
+		try {
+			account(account).contactsComplete = complete;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Declares whether the index holds all attachments of an account.
+	 * Only complete accounts are searched locally.
+	 */
+	public void setFilesComplete(String account, boolean complete) {
+		lock.writeLock().lock();
+		try {
+			account(account).filesComplete = complete;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Indexes the contacts, messages or files of a response. Responses of other calls are ignored.
+	 * @return Number of records indexed
+	 */
+	public int add(String account, ContextIOResponse response) {
+		String action = response.action;
+		if (ContextIOEndpoint.ADDRESSES.action.equals(action) || ContextIOEndpoint.CONTACT_SEARCH.action.equals(action)) {
+			List<ContextIOContact> contacts = response.getContacts();
+			addContacts(account, contacts);
+
+			return contacts.size();
+		} else if (ContextIOEndpoint.ALL_MESSAGES.action.equals(action) || ContextIOEndpoint.CONTACT_MESSAGES.action.equals(action)
+				|| ContextIOEndpoint.SEARCH.action.equals(action)) {
+			List<ContextIOMessage> messages = response.getMessages();
+			addMessages(account, messages);
+
+			return messages.size();
+		} else if (ContextIOEndpoint.ALL_FILES.action.equals(action) || ContextIOEndpoint.FILE_SEARCH.action.equals(action)
+				|| ContextIOEndpoint.FILE_REVISIONS.action.equals(action) || ContextIOEndpoint.RELATED_FILES.action.equals(action)) {
+			List<ContextIOFile> files = response.getFiles();
+			addFiles(account, files);
+
+			return files.size();
+		}
+
+		return 0;
+	}
+
+	public void addContacts(String account, List<ContextIOContact> contacts) {
+		lock.writeLock().lock();
+		try {
+			Account state = account(account);
+			for (ContextIOContact contact : contacts) {
+				addContact(state, contact);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Indexes the senders, recipients and attachments of messages.
+	 */
+	public void addMessages(String account, List<ContextIOMessage> messages) {
+		lock.writeLock().lock();
+		try {
+			Account state = account(account);
+			for (ContextIOMessage message : messages) {
+				for (ContextIOContact contact : contacts(message.addresses)) {
+					addContact(state, contact);
+				}
+
+				if (message.files != null) {
+					for (ContextIOFile file : message.files) {
+						addFile(state, file);
+					}
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void addFiles(String account, List<ContextIOFile> files) {
+		lock.writeLock().lock();
+		try {
+			Account state = account(account);
+			for (ContextIOFile file : files) {
+				addFile(state, file);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	void addContact(Account state, ContextIOContact contact) {
+		if (contact == null || contact.email == null) {
+			return;
+		}
+
+		String key = contact.email.trim().toLowerCase();
+
+		// addresses of messages carry no count and often no name, don't let them hide better data
+		ContextIOContact previous = state.contacts.documents.get(key);
+		if (previous != null) {
+			ContextIOContact merged = new ContextIOContact();
+			merged.email = contact.email;
+			merged.name = contact.name != null ? contact.name : previous.name;
+			merged.count = Math.max(contact.count, previous.count);
+
+			contact = merged;
+		}
+
+		Set<String> words = new HashSet<String>();
+		words(contact.name, words);
+		words(contact.email, words);
+
+		state.contacts.put(key, contact, words);
+	}
+
+	void addFile(Account state, ContextIOFile file) {
+		if (file == null || file.fileName == null) {
+			return;
+		}
+
+		String key = file.fileId != null ? file.fileId : file.fileName + "/" + file.emailMessageId;
+
+		Set<String> words = new HashSet<String>();
+		words(file.fileName, words);
+
+		state.files.put(key, file, words);
+	}
+
+	static List<ContextIOContact> contacts(ContextIOAddresses addresses) {
+		List<ContextIOContact> contacts = new ArrayList<ContextIOContact>();
+		if (addresses != null) {
+			contacts.add(addresses.from);
+			if (addresses.to != null) {
+				contacts.addAll(addresses.to);
+			}
+			if (addresses.cc != null) {
+				contacts.addAll(addresses.cc);
+			}
+			if (addresses.bcc != null) {
+				contacts.addAll(addresses.bcc);
+			}
+		}
+
+		return contacts;
+	}
+
+	static void words(String text, Set<String> words) {
+		if (text == null) {
+			return;
+		}
+
+		for (String word : SEPARATORS.split(text.toLowerCase())) {
+			if (word.length() > 0) {
+				words.add(word);
+			}
+		}
+	}
+
+	/**
+	 * Splits a query into the words that must each start a word of a record.
+	 */
+	static List<String> terms(String query) {
+		Set<String> words = new HashSet<String>();
+		words(query, words);
+
+		return new ArrayList<String>(words);
+	}
+
+	Account account(String name) {
+		Account account = accounts.get(name);
+		if (account == null) {
+			account = new Account();
+			accounts.put(name, account);
+		}
+
+		return account;
+	}
+
+	public void onMessage(String account, ContextIOMessage message, boolean changed) {
+		addMessages(account, Collections.singletonList(message));
+	}
+
+	public void onError(String account, Throwable error) {
+		// the sync engine retries on its own, the index just keeps its current state
+	}
+
+	/**
+	 * @return Number of searches answered from the index
+	 */
+	public long getLocalSearchCount() {
+		return localSearches.get();
+	}
+
+	/**
+	 * @return Number of searches that had to call the API
+	 */
+	public long getRemoteSearchCount() {
+		return remoteSearches.get();
+	}
+
+	public int getContactCount(String account) {
+		lock.readLock().lock();
+		try {
+			Account state = accounts.get(account);
+			return state == null ? 0 : state.contacts.documents.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public int getFileCount(String account) {
+		lock.readLock().lock();
+		try {
+			Account state = accounts.get(account);
+			return state == null ? 0 : state.files.documents.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "ContextIOSearchIndex [accounts=" + accounts.size() + ", localSearches=" + localSearches
+				+ ", remoteSearches=" + remoteSearches + "]";
+	}
+}
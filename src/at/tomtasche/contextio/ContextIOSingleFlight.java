@@ -0,0 +1,110 @@
+package at.tomtasche.contextio;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.scribe.exceptions.OAuthException;
+
+/**
+ * Lets identical calls that are in flight at the same time share one request.
+ * The first caller makes the call, everyone asking for the same key meanwhile waits
+ * for it and gets the same response. If anyone waited, the body is read into memory
+ * before it is handed out, so all callers can decode it. Calls whose callers read the raw
+ * stream, like downloadfile.json, must not be shared.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+class ContextIOSingleFlight {
+
+	static class Flight {
+
+		final CountDownLatch done = new CountDownLatch(1);
+		int followers;
+		ContextIOResponse response;
+		RuntimeException error;
+	}
+
+	private final Map<String, Flight> flights = new HashMap<String, Flight>();
+
+	final AtomicLong coalesced = new AtomicLong();
+
+	ContextIOResponse run(String key, Callable<ContextIOResponse> call) {
+		Flight flight;
+		boolean leader;
+		synchronized (flights) {
+			flight = flights.get(key);
+			leader = flight == null;
+			if (leader) {
+				flight = new Flight();
+				flights.put(key, flight);
+			} else {
+				flight.followers++;
+			}
+		}
+
+		if (!leader) {
+			return follow(flight);
+		}
+
+		return lead(key, flight, call);
+	}
+
+	ContextIOResponse lead(String key, Flight flight, Callable<ContextIOResponse> call) {
+		try {
+			try {
+				flight.response = call.call();
+			} catch (RuntimeException e) {
+				flight.error = e;
+			} catch (Exception e) {
+				flight.error = new OAuthException("Call failed", e);
+			}
+
+			int followers;
+			synchronized (flights) {
+				flights.remove(key);
+
+				followers = flight.followers;
+			}
+
+			if (followers > 0 && flight.response != null) {
+				try {
+					// bytes rather than a String, every caller gets its own stream over them
+					flight.response.rawResponse.getBytes();
+				} catch (RuntimeException e) {
+					flight.response = null;
+					flight.error = e;
+				}
+			}
+		} finally {
+			flight.done.countDown();
+		}
+
+		if (flight.error != null) {
+			throw flight.error;
+		}
+
+		return flight.response;
+	}
+
+	ContextIOResponse follow(Flight flight) {
+		coalesced.incrementAndGet();
+
+		try {
+			flight.done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+
+			throw new OAuthException("Interrupted while waiting for identical call", e);
+		}
+
+		if (flight.error != null) {
+			throw flight.error;
+		}
+
+		return flight.response;
+	}
+}
@@ -0,0 +1,862 @@
+package at.tomtasche.contextio;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import org.scribe.exceptions.OAuthException;
+
+/**
+ * Local copy of messages and contacts fetched from the API. Records are appended in a
+ * compact binary encoding to memory-mapped segment files and read back without any
+ * JSON parsing, so a restarted client can answer queries like "all messages from X"
+ * straight from disk.
+ *
+ * Messages are indexed by account, emailMessageId and every address they were sent
+ * from or to, contacts by account and email address. The indexes live in memory and
+ * are rebuilt by scanning the segments when the store is opened. Storing a record again
+ * appends a new version; the old one stays in the segment but is no longer indexed.
+ *
+ * Every record carries a CRC32. When the store is opened, each segment is indexed up to
+ * the first record that was torn by a crash, the rest of that segment is ignored. Later
+ * segments are still indexed, and new records overwrite the torn tail of the last one.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+public class ContextIOStore implements Closeable {
+
+	static final int MAGIC = 0x43494f53; // "CIOS"
+	static final int VERSION = 1;
+	static final int SEGMENT_HEADER = 8;
+	static final int RECORD_HEADER = 8;
+
+	static final byte MESSAGE = 1;
+	static final byte CONTACT = 2;
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	static class Account {
+
+		final Map<String, Long> messages = new LinkedHashMap<String, Long>();
+		final Map<String, Set<String>> messagesByAddress = new HashMap<String, Set<String>>();
+		final Map<String, Long> contacts = new LinkedHashMap<String, Long>();
+	}
+
+	final File directory;
+	final int segmentSize;
+
+	final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+	final Map<String, Account> accounts = new LinkedHashMap<String, Account>();
+	final ReadWriteLock lock = new ReentrantReadWriteLock();
+	int writePosition;
+	long records;
+	boolean closed;
+
+	/**
+	 * Opens the store in a directory with segments of 16 MB.
+	 * @see #ContextIOStore(File, int)
+	 */
+	public ContextIOStore(File directory) {
+		this(directory, 16 * 1024 * 1024);
+	}
+
+	/**
+	 * Opens the store in a directory, creating it if missing, and indexes the records
+	 * that are already there.
+	 * @param segmentSize Size of each segment file in bytes; records larger than that get a segment of their own
+	 */
+	public ContextIOStore(File directory, int segmentSize) {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new OAuthException("Can't create store directory " + directory);
+		}
+
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+
+		try {
+			for (int i = 0; segmentFile(i).exists(); i++) {
+				open(i, 0);
+			}
+		} catch (IOException e) {
+			throw new OAuthException("Problems while opening store " + directory, e);
+		}
+	}
+
+	File segmentFile(int index) {
+		return new File(directory, "segment-" + index + ".dat");
+	}
+
+	/**
+	 * Maps a segment, creating it with at least minimumSize bytes if it doesn't exist,
+	 * and indexes its records.
+	 */
+	void open(int index, int minimumSize) throws IOException {
+		File file = segmentFile(index);
+		boolean created = !file.exists();
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		MappedByteBuffer segment;
+		try {
+			if (created) {
+				raf.setLength(Math.max(segmentSize, minimumSize + SEGMENT_HEADER));
+			}
+
+			// the mapping stays valid after the channel is closed
+			segment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+
+		if (created) {
+			segment.putInt(0, MAGIC);
+			segment.putInt(4, VERSION);
+		} else if (segment.getInt(0) != MAGIC || segment.getInt(4) != VERSION) {
+			throw new IOException("Unknown segment format in " + file);
+		}
+
+		segments.add(segment);
+		writePosition = created ? SEGMENT_HEADER : scan(index, segment);
+	}
+
+	/**
+	 * Indexes all intact records of a segment.
+	 * @return Offset behind the last intact record
+	 */
+	int scan(int index, ByteBuffer segment) {
+		CRC32 crc = new CRC32();
+		byte[] payload = new byte[256];
+
+		int offset = SEGMENT_HEADER;
+		while (offset + RECORD_HEADER <= segment.capacity()) {
+			int length = segment.getInt(offset);
+			if (length <= 0 || offset + RECORD_HEADER + length > segment.capacity()) {
+				break;
+			}
+
+			if (payload.length < length) {
+				payload = new byte[Math.max(length, payload.length * 2)];
+			}
+
+			ByteBuffer record = segment.duplicate();
+			record.position(offset + RECORD_HEADER);
+			record.get(payload, 0, length);
+
+			crc.reset();
+			crc.update(payload, 0, length);
+			if ((int) crc.getValue() != segment.getInt(offset + 4)) {
+				break;
+			}
+
+			index(ByteBuffer.wrap(payload, 0, length), position(index, offset));
+
+			offset += RECORD_HEADER + length;
+		}
+
+		return offset;
+	}
+
+	static long position(int segment, int offset) {
+		return ((long) segment << 32) | offset;
+	}
+
+	/**
+	 * Adds a record to the indexes. The buffer is positioned at the start of the payload.
+	 */
+	void index(ByteBuffer payload, long position) {
+		byte type = payload.get();
+		Account account = account(readString(payload));
+
+		if (type == MESSAGE) {
+			ContextIOMessage message = readMessage(payload);
+
+			String id = message.emailMessageId;
+			account.messages.put(id, position);
+
+			for (String address : addresses(message)) {
+				Set<String> ids = account.messagesByAddress.get(address);
+				if (ids == null) {
+					ids = new LinkedHashSet<String>();
+					account.messagesByAddress.put(address, ids);
+				}
+				ids.add(id);
+			}
+		} else if (type == CONTACT) {
+			ContextIOContact contact = readContact(payload);
+
+			String email = normalize(contact.email);
+			account.contacts.put(email, position);
+		}
+
+		records++;
+	}
+
+	Account account(String name) {
+		Account account = accounts.get(name);
+		if (account == null) {
+			account = new Account();
+			accounts.put(name, account);
+		}
+
+		return account;
+	}
+
+	static Set<String> addresses(ContextIOMessage message) {
+		Set<String> addresses = new LinkedHashSet<String>();
+
+		ContextIOAddresses all = message.addresses;
+		if (all != null) {
+			if (all.from != null && all.from.email != null) {
+				addresses.add(normalize(all.from.email));
+			}
+
+			for (List<ContextIOContact> contacts : Arrays.asList(all.to, all.cc, all.bcc)) {
+				if (contacts == null) {
+					continue;
+				}
+
+				for (ContextIOContact contact : contacts) {
+					if (contact != null && contact.email != null) {
+						addresses.add(normalize(contact.email));
+					}
+				}
+			}
+		}
+
+		return addresses;
+	}
+
+	static String normalize(String email) {
+		return email == null ? null : email.trim().toLowerCase();
+	}
+
+	/**
+	 * Stores the data of a response, if it holds messages or contacts: allmessages.json,
+	 * contactmessages.json and search.json store messages, addresses.json and
+	 * contactsearch.json store contacts. Other responses are ignored.
+	 * @return Number of records stored
+	 */
+	public int put(String account, ContextIOResponse response) {
+		String action = response.action;
+		if (ContextIOEndpoint.ALL_MESSAGES.action.equals(action) || ContextIOEndpoint.CONTACT_MESSAGES.action.equals(action)
+				|| ContextIOEndpoint.SEARCH.action.equals(action)) {
+			return putMessages(account, response.getMessages());
+		} else if (ContextIOEndpoint.ADDRESSES.action.equals(action) || ContextIOEndpoint.CONTACT_SEARCH.action.equals(action)) {
+			return putContacts(account, response.getContacts());
+		}
+
+		return 0;
+	}
+
+	/**
+	 * @return Number of messages stored; messages without emailMessageId are skipped
+	 */
+	public int putMessages(String account, List<ContextIOMessage> messages) {
+		List<byte[]> encoded = new ArrayList<byte[]>(messages.size());
+		for (ContextIOMessage message : messages) {
+			if (message == null || message.emailMessageId == null) {
+				continue;
+			}
+
+			Encoder encoder = new Encoder();
+			encoder.writeByte(MESSAGE);
+			encoder.writeString(account);
+			encoder.writeMessage(message);
+
+			encoded.add(encoder.toByteArray());
+		}
+
+		append(encoded);
+
+		return encoded.size();
+	}
+
+	public void putMessage(String account, ContextIOMessage message) {
+		putMessages(account, Collections.singletonList(message));
+	}
+
+	/**
+	 * @return Number of contacts stored; contacts without email address are skipped
+	 */
+	public int putContacts(String account, List<ContextIOContact> contacts) {
+		List<byte[]> encoded = new ArrayList<byte[]>(contacts.size());
+		for (ContextIOContact contact : contacts) {
+			if (contact == null || contact.email == null) {
+				continue;
+			}
+
+			Encoder encoder = new Encoder();
+			encoder.writeByte(CONTACT);
+			encoder.writeString(account);
+			encoder.writeContact(contact);
+
+			encoded.add(encoder.toByteArray());
+		}
+
+		append(encoded);
+
+		return encoded.size();
+	}
+
+	void append(List<byte[]> payloads) {
+		if (payloads.isEmpty()) {
+			return;
+		}
+
+		CRC32 crc = new CRC32();
+
+		lock.writeLock().lock();
+		try {
+			checkOpen();
+
+			for (byte[] payload : payloads) {
+				if (segments.isEmpty() || writePosition + RECORD_HEADER + payload.length > segments.get(segments.size() - 1).capacity()) {
+					open(segments.size(), RECORD_HEADER + payload.length);
+				}
+
+				int index = segments.size() - 1;
+				MappedByteBuffer segment = segments.get(index);
+
+				crc.reset();
+				crc.update(payload);
+
+				ByteBuffer record = segment.duplicate();
+				record.position(writePosition + 4);
+				record.putInt((int) crc.getValue());
+				record.put(payload);
+
+				// the length marks the record as present, so it goes last
+				segment.putInt(writePosition, payload.length);
+
+				index(ByteBuffer.wrap(payload), position(index, writePosition));
+
+				writePosition += RECORD_HEADER + payload.length;
+			}
+		} catch (IOException e) {
+			throw new OAuthException("Problems while writing to store " + directory, e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns a buffer positioned behind the type and account of a record.
+	 */
+	ByteBuffer read(long position) {
+		ByteBuffer record = segments.get((int) (position >>> 32)).duplicate();
+		record.position((int) position + RECORD_HEADER + 1);
+		skipString(record);
+
+		return record;
+	}
+
+	/**
+	 * @return The latest version of a message, or null if it isn't stored
+	 */
+	public ContextIOMessage getMessage(String account, String emailMessageId) {
+		lock.readLock().lock();
+		try {
+			checkOpen();
+
+			Account state = accounts.get(account);
+			Long position = state == null ? null : state.messages.get(emailMessageId);
+
+			return position == null ? null : readMessage(read(position));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return All messages of an account, in the order they were first stored
+	 */
+	public List<ContextIOMessage> getMessages(String account) {
+		lock.readLock().lock();
+		try {
+			checkOpen();
+
+			Account state = accounts.get(account);
+			if (state == null) {
+				return new ArrayList<ContextIOMessage>();
+			}
+
+			return readMessages(state.messages.values());
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return Messages that were sent from or to an address
+	 */
+	public List<ContextIOMessage> getMessagesWith(String account, String email) {
+		lock.readLock().lock();
+		try {
+			checkOpen();
+
+			Account state = accounts.get(account);
+			Set<String> ids = state == null ? null : state.messagesByAddress.get(normalize(email));
+			if (ids == null) {
+				return new ArrayList<ContextIOMessage>();
+			}
+
+			List<Long> positions = new ArrayList<Long>(ids.size());
+			for (String id : ids) {
+				positions.add(state.messages.get(id));
+			}
+
+			List<ContextIOMessage> messages = readMessages(positions);
+
+			// a newer version of a message might not involve the address anymore
+			String normalized = normalize(email);
+			for (int i = messages.size() - 1; i >= 0; i--) {
+				if (!addresses(messages.get(i)).contains(normalized)) {
+					messages.remove(i);
+				}
+			}
+
+			return messages;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return Messages that were sent from an address
+	 */
+	public List<ContextIOMessage> getMessagesFrom(String account, String email) {
+		String normalized = normalize(email);
+
+		List<ContextIOMessage> messages = getMessagesWith(account, email);
+		for (int i = messages.size() - 1; i >= 0; i--) {
+			ContextIOAddresses addresses = messages.get(i).addresses;
+			if (addresses == null || addresses.from == null || !normalized.equals(normalize(addresses.from.email))) {
+				messages.remove(i);
+			}
+		}
+
+		return messages;
+	}
+
+	List<ContextIOMessage> readMessages(Iterable<Long> positions) {
+		List<ContextIOMessage> messages = new ArrayList<ContextIOMessage>();
+		for (Long position : positions) {
+			messages.add(readMessage(read(position)));
+		}
+
+		return messages;
+	}
+
+	/**
+	 * @return The latest version of a contact, or null if it isn't stored
+	 */
+	public ContextIOContact getContact(String account, String email) {
+		lock.readLock().lock();
+		try {
+			checkOpen();
+
+			Account state = accounts.get(account);
+			Long position = state == null ? null : state.contacts.get(normalize(email));
+
+			return position == null ? null : readContact(read(position));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public List<ContextIOContact> getContacts(String account) {
+		lock.readLock().lock();
+		try {
+			checkOpen();
+
+			List<ContextIOContact> contacts = new ArrayList<ContextIOContact>();
+
+			Account state = accounts.get(account);
+			if (state != null) {
+				for (Long position : state.contacts.values()) {
+					contacts.add(readContact(read(position)));
+				}
+			}
+
+			return contacts;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public List<String> getAccounts() {
+		lock.readLock().lock();
+		try {
+			return new ArrayList<String>(accounts.keySet());
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public int getMessageCount(String account) {
+		lock.readLock().lock();
+		try {
+			Account state = accounts.get(account);
+			return state == null ? 0 : state.messages.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return Number of records in the segments, including superseded versions
+	 */
+	public long getRecordCount() {
+		lock.readLock().lock();
+		try {
+			return records;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return Number of bytes used in all segments
+	 */
+	public long getSize() {
+		lock.readLock().lock();
+		try {
+			long size = 0;
+			for (int i = 0; i < segments.size() - 1; i++) {
+				size += segments.get(i).capacity();
+			}
+
+			return size + writePosition;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Writes the segments to disk. Without this, the operating system decides when to do it.
+	 */
+	public void flush() {
+		lock.writeLock().lock();
+		try {
+			for (MappedByteBuffer segment : segments) {
+				segment.force();
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Flushes the segments. The store can't be used afterwards.
+	 */
+	public void close() {
+		lock.writeLock().lock();
+		try {
+			if (closed) {
+				return;
+			}
+
+			for (MappedByteBuffer segment : segments) {
+				segment.force();
+			}
+
+			closed = true;
+			segments.clear();
+			accounts.clear();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	void checkOpen() {
+		if (closed) {
+			throw new IllegalStateException("Store is closed");
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "ContextIOStore [directory=" + directory + ", accounts=" + accounts.size() + ", segments=" + segments.size()
+				+ ", records=" + records + "]";
+	}
+
+	// decoding
+
+	static int readVarInt(ByteBuffer in) {
+		return (int) readVarLong(in);
+	}
+
+	static long readVarLong(ByteBuffer in) {
+		long value = 0;
+		for (int shift = 0; ; shift += 7) {
+			byte b = in.get();
+			value |= (long) (b & 0x7f) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+	}
+
+	static String readString(ByteBuffer in) {
+		int length = readVarInt(in) - 1;
+		if (length < 0) {
+			return null;
+		}
+
+		String value;
+		if (in.hasArray()) {
+			value = new String(in.array(), in.arrayOffset() + in.position(), length, UTF8);
+		} else {
+			byte[] bytes = new byte[length];
+			in.duplicate().get(bytes);
+			value = new String(bytes, UTF8);
+		}
+		in.position(in.position() + length);
+
+		return value;
+	}
+
+	static void skipString(ByteBuffer in) {
+		int length = readVarInt(in) - 1;
+		if (length > 0) {
+			in.position(in.position() + length);
+		}
+	}
+
+	static ContextIOContact readContact(ByteBuffer in) {
+		if (in.get() == 0) {
+			return null;
+		}
+
+		ContextIOContact contact = new ContextIOContact();
+		contact.email = readString(in);
+		contact.name = readString(in);
+		contact.count = readVarInt(in);
+
+		return contact;
+	}
+
+	static List<ContextIOContact> readContacts(ByteBuffer in) {
+		int size = readVarInt(in) - 1;
+		if (size < 0) {
+			return null;
+		}
+
+		List<ContextIOContact> contacts = new ArrayList<ContextIOContact>(size);
+		for (int i = 0; i < size; i++) {
+			contacts.add(readContact(in));
+		}
+
+		return contacts;
+	}
+
+	static ContextIOAddresses readAddresses(ByteBuffer in) {
+		if (in.get() == 0) {
+			return null;
+		}
+
+		ContextIOAddresses addresses = new ContextIOAddresses();
+		addresses.from = readContact(in);
+		addresses.to = readContacts(in);
+		addresses.cc = readContacts(in);
+		addresses.bcc = readContacts(in);
+
+		return addresses;
+	}
+
+	static ContextIOFile readFile(ByteBuffer in) {
+		if (in.get() == 0) {
+			return null;
+		}
+
+		ContextIOFile file = new ContextIOFile();
+		file.fileId = readString(in);
+		file.fileName = readString(in);
+		file.type = readString(in);
+		file.size = readVarLong(in);
+		file.date = readVarLong(in);
+		file.emailMessageId = readString(in);
+		file.subject = readString(in);
+		file.gmailThreadId = readString(in);
+		file.addresses = readAddresses(in);
+
+		return file;
+	}
+
+	static ContextIOMessage readMessage(ByteBuffer in) {
+		ContextIOMessage message = new ContextIOMessage();
+		message.emailMessageId = readString(in);
+		message.subject = readString(in);
+		message.date = readVarLong(in);
+		message.gmailThreadId = readString(in);
+		message.addresses = readAddresses(in);
+
+		int files = readVarInt(in) - 1;
+		if (files >= 0) {
+			message.files = new ArrayList<ContextIOFile>(files);
+			for (int i = 0; i < files; i++) {
+				message.files.add(readFile(in));
+			}
+		}
+
+		int folders = readVarInt(in) - 1;
+		if (folders >= 0) {
+			message.folders = new ArrayList<String>(folders);
+			for (int i = 0; i < folders; i++) {
+				message.folders.add(readString(in));
+			}
+		}
+
+		return message;
+	}
+
+	/**
+	 * Builds the payload of a record. Strings and lists are prefixed with their length
+	 * plus one, so that 0 can stand for null; numbers are stored as varints.
+	 */
+	static class Encoder {
+
+		byte[] buffer = new byte[256];
+		int size;
+
+		void ensure(int extra) {
+			if (size + extra > buffer.length) {
+				buffer = Arrays.copyOf(buffer, Math.max(size + extra, buffer.length * 2));
+			}
+		}
+
+		void writeByte(int value) {
+			ensure(1);
+			buffer[size++] = (byte) value;
+		}
+
+		void writeVarLong(long value) {
+			ensure(10);
+			while ((value & ~0x7fL) != 0) {
+				buffer[size++] = (byte) ((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			buffer[size++] = (byte) value;
+		}
+
+		void writeString(String value) {
+			if (value == null) {
+				writeVarLong(0);
+				return;
+			}
+
+			byte[] bytes = value.getBytes(UTF8);
+			writeVarLong(bytes.length + 1);
+
+			ensure(bytes.length);
+			System.arraycopy(bytes, 0, buffer, size, bytes.length);
+			size += bytes.length;
+		}
+
+		void writeContact(ContextIOContact contact) {
+			if (contact == null) {
+				writeByte(0);
+				return;
+			}
+
+			writeByte(1);
+			writeString(contact.email);
+			writeString(contact.name);
+			writeVarLong(contact.count & 0xffffffffL);
+		}
+
+		void writeContacts(List<ContextIOContact> contacts) {
+			if (contacts == null) {
+				writeVarLong(0);
+				return;
+			}
+
+			writeVarLong(contacts.size() + 1);
+			for (ContextIOContact contact : contacts) {
+				writeContact(contact);
+			}
+		}
+
+		void writeAddresses(ContextIOAddresses addresses) {
+			if (addresses == null) {
+				writeByte(0);
+				return;
+			}
+
+			writeByte(1);
+			writeContact(addresses.from);
+			writeContacts(addresses.to);
+			writeContacts(addresses.cc);
+			writeContacts(addresses.bcc);
+		}
+
+		void writeFile(ContextIOFile file) {
+			if (file == null) {
+				writeByte(0);
+				return;
+			}
+
+			writeByte(1);
+			writeString(file.fileId);
+			writeString(file.fileName);
+			writeString(file.type);
+			writeVarLong(file.size);
+			writeVarLong(file.date);
+			writeString(file.emailMessageId);
+			writeString(file.subject);
+			writeString(file.gmailThreadId);
+			writeAddresses(file.addresses);
+		}
+
+		void writeMessage(ContextIOMessage message) {
+			writeString(message.emailMessageId);
+			writeString(message.subject);
+			writeVarLong(message.date);
+			writeString(message.gmailThreadId);
+			writeAddresses(message.addresses);
+
+			if (message.files == null) {
+				writeVarLong(0);
+			} else {
+				writeVarLong(message.files.size() + 1);
+				for (ContextIOFile file : message.files) {
+					writeFile(file);
+				}
+			}
+
+			if (message.folders == null) {
+				writeVarLong(0);
+			} else {
+				writeVarLong(message.folders.size() + 1);
+				for (String folder : message.folders) {
+					writeString(folder);
+				}
+			}
+		}
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(buffer, size);
+		}
+	}
+}
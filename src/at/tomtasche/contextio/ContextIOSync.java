@@ -0,0 +1,405 @@
+package at.tomtasche.contextio;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.scribe.exceptions.OAuthException;
+
+/**
+ * Keeps a set of mailboxes in sync by polling allmessages.json with the newest date
+ * seen so far. Only messages that are new, or that come back with different content,
+ * are handed to the {@link ContextIOSyncListener}.
+ *
+ * Progress is saved to a {@link ContextIOCheckpointStore} after every page, so a
+ * restarted engine continues where it stopped instead of fetching the history again;
+ * use {@link #resume()} to pick up all accounts of the store.
+ *
+ * Each account is polled on its own schedule: right after a poll found something the
+ * account is polled again after minIntervalMillis, and every quiet poll makes the
+ * interval 1.5 times longer, up to maxIntervalMillis. Idle mailboxes thus cost
+ * few calls while busy ones are picked up quickly. Polls run through
+ * {@link ContextIO#async()}, so they count against its in-flight limit.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+public class ContextIOSync implements Closeable {
+
+	static class Account {
+
+		final String name;
+		ContextIOCheckpoint checkpoint;
+
+		Account(String name, ContextIOCheckpoint checkpoint) {
+			this.name = name;
+			this.checkpoint = checkpoint;
+		}
+	}
+
+	final ContextIO contextIO;
+	final ContextIOCheckpointStore store;
+	final ContextIOSyncListener listener;
+	int pageSize;
+	long minIntervalMillis;
+	long maxIntervalMillis;
+
+	final ConcurrentHashMap<String, Account> accounts = new ConcurrentHashMap<String, Account>();
+	final ScheduledExecutorService scheduler;
+	volatile boolean closed;
+
+	final AtomicLong polls = new AtomicLong();
+	final AtomicLong calls = new AtomicLong();
+	final AtomicLong emitted = new AtomicLong();
+	final AtomicLong errors = new AtomicLong();
+
+	public ContextIOSync(ContextIO contextIO, ContextIOCheckpointStore store, ContextIOSyncListener listener) {
+		this.contextIO = contextIO;
+		this.store = store;
+		this.listener = listener;
+		this.pageSize = ContextIO.DEFAULT_PAGE_SIZE;
+		this.minIntervalMillis = 30000;
+		this.maxIntervalMillis = 30 * 60000;
+
+		ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "ContextIO-sync");
+				thread.setDaemon(true);
+
+				return thread;
+			}
+		});
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Starts syncing an account from now on, or from its checkpoint if there is one.
+	 * @param account accountId or email address of the mailbox you want to sync
+	 */
+	public void addAccount(String account) {
+		addAccount(account, System.currentTimeMillis() / 1000);
+	}
+
+	/**
+	 * Starts syncing an account. If a checkpoint is stored for it, syncing continues
+	 * there and since is ignored.
+	 * @param account accountId or email address of the mailbox you want to sync
+	 * @param since Unix timestamp to start at if there is no checkpoint, 0 for the whole mailbox
+	 */
+	public void addAccount(String account, long since) {
+		ContextIOCheckpoint checkpoint = store.load(account);
+		if (checkpoint == null) {
+			checkpoint = new ContextIOCheckpoint(account, since);
+			checkpoint.intervalMillis = minIntervalMillis;
+
+			store.save(checkpoint);
+		}
+
+		// the intervals might have been configured differently before the restart
+		checkpoint.intervalMillis = Math.min(maxIntervalMillis, Math.max(minIntervalMillis, checkpoint.intervalMillis));
+
+		if (accounts.putIfAbsent(account, new Account(account, checkpoint)) != null) {
+			return;
+		}
+
+		// after a restart, don't poll before the account is due
+		long delay = checkpoint.lastPollAt + checkpoint.intervalMillis - System.currentTimeMillis();
+		schedule(account, checkpoint.lastPollAt == 0 ? 0 : Math.max(0, delay));
+	}
+
+	/**
+	 * Starts syncing all accounts that have a checkpoint in the store.
+	 */
+	public void resume() {
+		for (String account : store.accounts()) {
+			addAccount(account, 0);
+		}
+	}
+
+	/**
+	 * Stops syncing an account and deletes its checkpoint.
+	 */
+	public void removeAccount(String account) {
+		Account removed = accounts.remove(account);
+		if (removed != null) {
+			synchronized (removed) {
+				store.remove(account);
+			}
+		}
+	}
+
+	void schedule(final String account, long delayMillis) {
+		if (closed) {
+			return;
+		}
+
+		scheduler.schedule(new Runnable() {
+
+			public void run() {
+				submit(account);
+			}
+		}, delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	void submit(final String account) {
+		if (closed || !accounts.containsKey(account)) {
+			return;
+		}
+
+		contextIO.async().submit(new Callable<Integer>() {
+
+			public Integer call() {
+				return poll(account);
+			}
+		}).addCallback(new ContextIOCallback<Integer>() {
+
+			public void onSuccess(Integer result) {
+				reschedule(account);
+			}
+
+			public void onFailure(Throwable error) {
+				errors.incrementAndGet();
+
+				try {
+					listener.onError(account, error);
+				} finally {
+					reschedule(account);
+				}
+			}
+		});
+	}
+
+	void reschedule(String account) {
+		Account state = accounts.get(account);
+		if (state == null) {
+			return;
+		}
+
+		long interval;
+		synchronized (state) {
+			interval = state.checkpoint.intervalMillis;
+		}
+
+		// spread the polls of accounts that were added together
+		schedule(account, (long) (interval * (0.9 + Math.random() * 0.2)));
+	}
+
+	/**
+	 * Polls an account right away, on the calling thread.
+	 * @return Number of messages handed to the listener
+	 */
+	public int poll(String account) {
+		Account state = accounts.get(account);
+		if (state == null) {
+			throw new IllegalArgumentException("Account " + account + " is not synced");
+		}
+
+		synchronized (state) {
+			if (accounts.get(account) != state) {
+				return 0;
+			}
+
+			polls.incrementAndGet();
+
+			ContextIOCheckpoint checkpoint = state.checkpoint.copy();
+			int found = 0;
+			try {
+				// paged like ContextIOPager: messages already seen on the boundary are asked for on
+				// top of a page, and a full page only moves the checkpoint if it holds the oldest messages
+				int limit = pageSize + checkpoint.boundary.size();
+				while (true) {
+					List<ContextIOMessage> page = fetch(account, checkpoint.since, limit);
+
+					if (page.size() >= limit && !ContextIOPager.oldestFirst(page, ContextIOPager.MESSAGES, checkpoint.since)) {
+						limit = limit > Integer.MAX_VALUE / 2 ? Integer.MAX_VALUE : limit * 2;
+
+						continue;
+					}
+
+					int fresh = apply(account, checkpoint, page);
+					found += fresh;
+
+					store.save(checkpoint);
+					state.checkpoint = checkpoint.copy();
+
+					// a short page is the last one, and a page without anything new can't move the cursor
+					if (page.size() < limit || fresh == 0) {
+						break;
+					}
+
+					limit = pageSize + checkpoint.boundary.size();
+				}
+
+				checkpoint.lastPollAt = System.currentTimeMillis();
+				if (found > 0) {
+					checkpoint.lastChangeAt = checkpoint.lastPollAt;
+					checkpoint.intervalMillis = minIntervalMillis;
+				} else {
+					checkpoint.intervalMillis = Math.min(maxIntervalMillis, Math.max(minIntervalMillis, checkpoint.intervalMillis * 3 / 2));
+				}
+			} catch (RuntimeException e) {
+				checkpoint.intervalMillis = Math.min(maxIntervalMillis, Math.max(minIntervalMillis, checkpoint.intervalMillis * 2));
+
+				throw e;
+			} finally {
+				store.save(checkpoint);
+				state.checkpoint = checkpoint;
+			}
+
+			return found;
+		}
+	}
+
+	List<ContextIOMessage> fetch(String account, long since, int limit) {
+		Map<String, String> params = new HashMap<String, String>();
+		params.put("since", String.valueOf(since));
+		params.put("limit", String.valueOf(limit));
+
+		calls.incrementAndGet();
+
+		ContextIOResponse response = contextIO.execute(ContextIOEndpoint.ALL_MESSAGES.method, account, ContextIOEndpoint.ALL_MESSAGES.action, params, null);
+		if (response.code != 200) {
+			ContextIO.closeQuietly(response.rawResponse.getStream());
+
+			throw new OAuthException("Syncing " + account + " since " + since + " failed with HTTP " + response.code);
+		}
+
+		return response.getMessages();
+	}
+
+	/**
+	 * Hands the new and changed messages of a page to the listener and moves the checkpoint.
+	 * @return Number of messages handed to the listener
+	 */
+	int apply(String account, ContextIOCheckpoint checkpoint, List<ContextIOMessage> page) {
+		long newest = checkpoint.since;
+		for (ContextIOMessage message : page) {
+			newest = Math.max(newest, message.date);
+		}
+
+		Map<String, Integer> boundary = newest == checkpoint.since ? checkpoint.boundary : new HashMap<String, Integer>();
+
+		int fresh = 0;
+		for (ContextIOMessage message : page) {
+			if (message.date < checkpoint.since) {
+				continue;
+			}
+
+			String id = String.valueOf(message.emailMessageId);
+			int hash = ContextIOResponse.GSON.toJson(message).hashCode();
+
+			Integer previous = message.date == checkpoint.since ? checkpoint.boundary.get(id) : null;
+			if (previous == null || previous.intValue() != hash) {
+				listener.onMessage(account, message, previous != null);
+
+				fresh++;
+			}
+
+			if (message.date == newest) {
+				boundary.put(id, hash);
+			}
+		}
+
+		checkpoint.since = newest;
+		checkpoint.boundary = boundary;
+		checkpoint.messageCount += fresh;
+		emitted.addAndGet(fresh);
+
+		return fresh;
+	}
+
+	/**
+	 * @return Copy of the current checkpoint of an account, or null if it isn't synced
+	 */
+	public ContextIOCheckpoint getCheckpoint(String account) {
+		Account state = accounts.get(account);
+		if (state == null) {
+			return null;
+		}
+
+		synchronized (state) {
+			return state.checkpoint.copy();
+		}
+	}
+
+	public List<String> getAccounts() {
+		return new ArrayList<String>(accounts.keySet());
+	}
+
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * @param pageSize Number of messages to request per call, defaults to 100
+	 */
+	public void setPageSize(int pageSize) {
+		this.pageSize = pageSize;
+	}
+
+	public long getMinIntervalMillis() {
+		return minIntervalMillis;
+	}
+
+	public long getMaxIntervalMillis() {
+		return maxIntervalMillis;
+	}
+
+	/**
+	 * Set the bounds of the poll interval. Defaults to 30 seconds and 30 minutes.
+	 * @param minIntervalMillis Interval after a poll that found something
+	 * @param maxIntervalMillis Interval for mailboxes that have been quiet for a long time
+	 */
+	public void setIntervals(long minIntervalMillis, long maxIntervalMillis) {
+		if (minIntervalMillis <= 0 || maxIntervalMillis < minIntervalMillis) {
+			throw new IllegalArgumentException("Need 0 < minIntervalMillis <= maxIntervalMillis");
+		}
+
+		this.minIntervalMillis = minIntervalMillis;
+		this.maxIntervalMillis = maxIntervalMillis;
+	}
+
+	public long getPollCount() {
+		return polls.get();
+	}
+
+	public long getCallCount() {
+		return calls.get();
+	}
+
+	/**
+	 * @return Number of messages handed to the listener by this engine
+	 */
+	public long getEmittedCount() {
+		return emitted.get();
+	}
+
+	public long getErrorCount() {
+		return errors.get();
+	}
+
+	/**
+	 * Stops scheduling polls. Polls that are running finish and save their checkpoint.
+	 */
+	public void close() {
+		closed = true;
+
+		scheduler.shutdownNow();
+	}
+
+	@Override
+	public String toString() {
+		return "ContextIOSync [accounts=" + accounts.size() + ", polls=" + polls + ", calls=" + calls
+				+ ", emitted=" + emitted + ", errors=" + errors + "]";
+	}
+}
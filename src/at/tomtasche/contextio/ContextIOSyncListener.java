@@ -0,0 +1,24 @@
+package at.tomtasche.contextio;
+
+/**
+ * Receives the messages found by {@link ContextIOSync}. Messages of one account are
+ * delivered by one thread at a time and in the order of their dates, but messages of
+ * different accounts may arrive concurrently.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+public interface ContextIOSyncListener {
+
+	/**
+	 * A message was indexed since the last poll, or a message seen before came back with
+	 * different content. After a crash, messages emitted just before it may be emitted again.
+	 * @param changed true if the message was emitted before with different content
+	 */
+	void onMessage(String account, ContextIOMessage message, boolean changed);
+
+	/**
+	 * Polling the account failed. It will be retried with a longer interval.
+	 */
+	void onError(String account, Throwable error);
+}
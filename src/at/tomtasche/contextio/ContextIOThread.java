@@ -0,0 +1,38 @@
+package at.tomtasche.contextio;
+
+import java.util.List;
+
+/**
+ * An email thread as returned by threadinfo.json.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+public class ContextIOThread {
+
+	String gmailThreadId;
+	String subject;
+	List<ContextIOMessage> messages;
+	List<ContextIOFile> files;
+
+	public String getGmailThreadId() {
+		return gmailThreadId;
+	}
+
+	public String getSubject() {
+		return subject;
+	}
+
+	public List<ContextIOMessage> getMessages() {
+		return messages;
+	}
+
+	public List<ContextIOFile> getFiles() {
+		return files;
+	}
+
+	@Override
+	public String toString() {
+		return "ContextIOThread [gmailThreadId=" + gmailThreadId + ", subject=" + subject + ", messages=" + messages + "]";
+	}
+}
@@ -0,0 +1,17 @@
+package at.tomtasche.contextio;
+
+/**
+ * Receives the notifications accepted by {@link ContextIOWebhookReceiver}. Notifications
+ * are handed over by the receiver's dispatcher threads, so several may arrive concurrently.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+public interface ContextIOWebhookHandler {
+
+	/**
+	 * A notification with a valid signature arrived that wasn't seen before. Exceptions
+	 * thrown here are counted, but the notification is not delivered again.
+	 */
+	void onNotification(ContextIOWebhookNotification notification);
+}
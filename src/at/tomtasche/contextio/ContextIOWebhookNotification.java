@@ -0,0 +1,80 @@
+package at.tomtasche.contextio;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * A callback notification received by {@link ContextIOWebhookReceiver}, e.g. about a
+ * new message in a mailbox.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+public class ContextIOWebhookNotification {
+
+	String accountId;
+	String webhookId;
+	long timestamp;
+	String token;
+	String signature;
+	JsonObject body;
+	long receivedAt;
+
+	public String getAccountId() {
+		return accountId;
+	}
+
+	public String getWebhookId() {
+		return webhookId;
+	}
+
+	/**
+	 * @return Unix timestamp the notification was sent at
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * @return Token that is unique to this notification, also used to sign it
+	 */
+	public String getToken() {
+		return token;
+	}
+
+	public String getSignature() {
+		return signature;
+	}
+
+	/**
+	 * @return Time the notification was received at, in milliseconds since the epoch
+	 */
+	public long getReceivedAt() {
+		return receivedAt;
+	}
+
+	/**
+	 * @return The message the notification is about, or null if it doesn't carry one
+	 */
+	public ContextIOMessage getMessage() {
+		JsonElement message = body.get("message_data");
+		if (message == null || !message.isJsonObject()) {
+			return null;
+		}
+
+		return ContextIOResponse.GSON.fromJson(message, ContextIOMessage.class);
+	}
+
+	/**
+	 * @return The complete notification as it was received
+	 */
+	public JsonObject getBody() {
+		return body;
+	}
+
+	@Override
+	public String toString() {
+		return "ContextIOWebhookNotification [accountId=" + accountId + ", webhookId=" + webhookId + ", timestamp="
+				+ timestamp + ", token=" + token + ", receivedAt=" + receivedAt + "]";
+	}
+}
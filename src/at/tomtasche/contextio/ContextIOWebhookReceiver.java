@@ -0,0 +1,492 @@
+package at.tomtasche.contextio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Hex;
+import org.scribe.exceptions.OAuthException;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Receives webhook callbacks posted by Context.IO, so new messages don't have to be
+ * found by polling. Runs an embedded HTTP server that accepts the callbacks on
+ * {@link #DEFAULT_PATH}.
+ *
+ * Every callback is signed with your OAuth consumer secret: the signature is the
+ * hex-encoded HMAC-SHA256 of timestamp and token. Callbacks with a wrong signature or a
+ * timestamp too far off are answered with 401 and dropped. Context.IO retries callbacks
+ * that weren't answered with 200, so the same notification can arrive more than once;
+ * the tokens of the last notifications are remembered and repeated ones are acknowledged
+ * without handing them over again.
+ *
+ * Accepted notifications are queued and handed to the {@link ContextIOWebhookHandler} by
+ * a fixed number of dispatcher threads. If the queue is full, the callback is answered
+ * with 503 and left for Context.IO to retry, instead of piling up in memory.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+public class ContextIOWebhookReceiver implements Closeable {
+
+	public static final String DEFAULT_PATH = "/contextio/callback";
+
+	static final String ALGORITHM = "HmacSHA256";
+
+	final String secret;
+	final ContextIOWebhookHandler handler;
+	String path;
+	int queueCapacity;
+	int dispatchers;
+	int maxBodyBytes;
+	long toleranceSeconds;
+	int rememberedTokens;
+
+	HttpServer server;
+	ExecutorService httpExecutor;
+	ThreadPoolExecutor dispatcher;
+	Map<String, Boolean> seen;
+
+	final AtomicLong received = new AtomicLong();
+	final AtomicLong rejected = new AtomicLong();
+	final AtomicLong duplicates = new AtomicLong();
+	final AtomicLong dropped = new AtomicLong();
+	final AtomicLong dispatched = new AtomicLong();
+	final AtomicLong failed = new AtomicLong();
+
+	/**
+	 * Verifies callbacks with the consumer secret of the given ContextIO instance.
+	 */
+	public ContextIOWebhookReceiver(ContextIO contextIO, ContextIOWebhookHandler handler) {
+		this(contextIO.secret, handler);
+	}
+
+	/**
+	 * @param secret Your Context.IO OAuth consumer secret
+	 */
+	public ContextIOWebhookReceiver(String secret, ContextIOWebhookHandler handler) {
+		this.secret = secret;
+		this.handler = handler;
+		this.path = DEFAULT_PATH;
+		this.queueCapacity = 1000;
+		this.dispatchers = 1;
+		this.maxBodyBytes = 1024 * 1024;
+		this.toleranceSeconds = 300;
+		this.rememberedTokens = 10000;
+	}
+
+	/**
+	 * Starts receiving callbacks on all interfaces.
+	 * @param port Port to listen on, 0 for any free port
+	 */
+	public void start(int port) {
+		start(new InetSocketAddress(port));
+	}
+
+	public synchronized void start(InetSocketAddress address) {
+		if (server != null) {
+			throw new IllegalStateException("Receiver was started already");
+		}
+
+		final int capacity = rememberedTokens;
+		seen = new LinkedHashMap<String, Boolean>(16, 0.75f, false) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+				return size() > capacity;
+			}
+		};
+
+		dispatcher = new ThreadPoolExecutor(dispatchers, dispatchers, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueCapacity), daemon("ContextIO-webhook-dispatch"));
+		httpExecutor = Executors.newFixedThreadPool(2, daemon("ContextIO-webhook-http"));
+
+		try {
+			server = HttpServer.create(address, 0);
+		} catch (IOException e) {
+			dispatcher.shutdownNow();
+			httpExecutor.shutdownNow();
+
+			throw new OAuthException("Could not listen on " + address, e);
+		}
+
+		server.createContext(path, new HttpHandler() {
+
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					exchange.sendResponseHeaders(receive(exchange), -1);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		server.setExecutor(httpExecutor);
+		server.start();
+	}
+
+	static ThreadFactory daemon(final String name) {
+		final AtomicInteger count = new AtomicInteger();
+
+		return new ThreadFactory() {
+
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * @return HTTP status to answer the callback with
+	 */
+	int receive(HttpExchange exchange) throws IOException {
+		received.incrementAndGet();
+
+		if (!"POST".equals(exchange.getRequestMethod())) {
+			ContextIO.closeQuietly(exchange.getRequestBody());
+			exchange.getResponseHeaders().set("Allow", "POST");
+			rejected.incrementAndGet();
+
+			return 405;
+		}
+
+		byte[] body = read(exchange.getRequestBody(), maxBodyBytes);
+		if (body == null) {
+			rejected.incrementAndGet();
+
+			return 413;
+		}
+
+		final ContextIOWebhookNotification notification;
+		try {
+			notification = parse(new String(body, "UTF-8"));
+		} catch (JsonParseException e) {
+			rejected.incrementAndGet();
+
+			return 400;
+		} catch (IllegalStateException e) {
+			rejected.incrementAndGet();
+
+			return 400;
+		}
+
+		if (!verify(notification)) {
+			rejected.incrementAndGet();
+
+			return 401;
+		}
+
+		// verify first, so forged callbacks can't push real tokens out of the list
+		final String key = notification.token != null ? notification.token
+				: notification.webhookId + "/" + notification.timestamp + "/" + notification.signature;
+		synchronized (seen) {
+			if (seen.put(key, Boolean.TRUE) != null) {
+				duplicates.incrementAndGet();
+
+				return 200;
+			}
+		}
+
+		try {
+			dispatcher.execute(new Runnable() {
+
+				public void run() {
+					try {
+						handler.onNotification(notification);
+
+						dispatched.incrementAndGet();
+					} catch (RuntimeException e) {
+						failed.incrementAndGet();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// not handed over, so the retry must not be taken for a duplicate
+			synchronized (seen) {
+				seen.remove(key);
+			}
+
+			dropped.incrementAndGet();
+			exchange.getResponseHeaders().set("Retry-After", "1");
+
+			return 503;
+		}
+
+		return 200;
+	}
+
+	static byte[] read(InputStream stream, int limit) throws IOException {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			for (int count = stream.read(buffer); count != -1; count = stream.read(buffer)) {
+				if (out.size() + count > limit) {
+					return null;
+				}
+
+				out.write(buffer, 0, count);
+			}
+
+			return out.toByteArray();
+		} finally {
+			ContextIO.closeQuietly(stream);
+		}
+	}
+
+	static ContextIOWebhookNotification parse(String body) {
+		JsonObject object = new JsonParser().parse(body).getAsJsonObject();
+
+		ContextIOWebhookNotification notification = new ContextIOWebhookNotification();
+		notification.accountId = string(object, "account_id");
+		notification.webhookId = string(object, "webhook_id");
+		notification.token = string(object, "token");
+		notification.signature = string(object, "signature");
+		notification.body = object;
+		notification.receivedAt = System.currentTimeMillis();
+
+		JsonElement timestamp = object.get("timestamp");
+		if (timestamp != null && timestamp.isJsonPrimitive()) {
+			try {
+				notification.timestamp = timestamp.getAsLong();
+			} catch (NumberFormatException e) {
+				notification.timestamp = 0;
+			}
+		}
+
+		return notification;
+	}
+
+	static String string(JsonObject object, String name) {
+		JsonElement element = object.get(name);
+
+		return element == null || !element.isJsonPrimitive() ? null : element.getAsString();
+	}
+
+	boolean verify(ContextIOWebhookNotification notification) {
+		if (notification.token == null || notification.signature == null) {
+			return false;
+		}
+
+		long now = notification.receivedAt / 1000;
+		if (Math.abs(now - notification.timestamp) > toleranceSeconds) {
+			return false;
+		}
+
+		String expected = sign(secret, notification.timestamp, notification.token);
+
+		return constantTimeEquals(expected, notification.signature.toLowerCase());
+	}
+
+	static boolean constantTimeEquals(String a, String b) {
+		if (a.length() != b.length()) {
+			return false;
+		}
+
+		int difference = 0;
+		for (int i = 0; i < a.length(); i++) {
+			difference |= a.charAt(i) ^ b.charAt(i);
+		}
+
+		return difference == 0;
+	}
+
+	/**
+	 * Computes the signature Context.IO sends along with a callback. Useful to post
+	 * simulated callbacks to a receiver while testing.
+	 * @param secret Your Context.IO OAuth consumer secret
+	 * @param timestamp Unix timestamp of the callback
+	 * @param token Token of the callback
+	 * @return Hex-encoded HMAC-SHA256 of timestamp and token
+	 */
+	public static String sign(String secret, long timestamp, String token) {
+		try {
+			Mac mac = Mac.getInstance(ALGORITHM);
+			mac.init(new SecretKeySpec(secret.getBytes("UTF-8"), ALGORITHM));
+
+			return new String(Hex.encodeHex(mac.doFinal((timestamp + token).getBytes("UTF-8"))));
+		} catch (GeneralSecurityException e) {
+			throw new OAuthException("Could not sign callback", e);
+		} catch (UnsupportedEncodingException e) {
+			throw new OAuthException("Could not sign callback", e);
+		}
+	}
+
+	/**
+	 * @return Port the receiver listens on, useful if it was started on port 0
+	 */
+	public int getPort() {
+		if (server == null) {
+			throw new IllegalStateException("Receiver wasn't started yet");
+		}
+
+		return server.getAddress().getPort();
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * Has to be called before {@link #start(int)}.
+	 * @param path Path the callback URL of your webhooks points to
+	 */
+	public void setPath(String path) {
+		this.path = path;
+	}
+
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	/**
+	 * Has to be called before {@link #start(int)}.
+	 * @param queueCapacity Number of notifications waiting for a dispatcher before callbacks are answered with 503
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+	}
+
+	public int getDispatchers() {
+		return dispatchers;
+	}
+
+	/**
+	 * Has to be called before {@link #start(int)}.
+	 * @param dispatchers Number of threads handing notifications to the handler
+	 */
+	public void setDispatchers(int dispatchers) {
+		this.dispatchers = dispatchers;
+	}
+
+	public int getMaxBodyBytes() {
+		return maxBodyBytes;
+	}
+
+	/**
+	 * @param maxBodyBytes Larger callbacks are answered with 413
+	 */
+	public void setMaxBodyBytes(int maxBodyBytes) {
+		this.maxBodyBytes = maxBodyBytes;
+	}
+
+	public long getToleranceSeconds() {
+		return toleranceSeconds;
+	}
+
+	/**
+	 * @param toleranceSeconds How far the timestamp of a callback may be off, so old callbacks can't be replayed
+	 */
+	public void setToleranceSeconds(long toleranceSeconds) {
+		this.toleranceSeconds = toleranceSeconds;
+	}
+
+	public int getRememberedTokens() {
+		return rememberedTokens;
+	}
+
+	/**
+	 * Has to be called before {@link #start(int)}.
+	 * @param rememberedTokens Number of recent tokens kept to recognize repeated callbacks
+	 */
+	public void setRememberedTokens(int rememberedTokens) {
+		this.rememberedTokens = rememberedTokens;
+	}
+
+	/**
+	 * @return Number of notifications waiting for a dispatcher
+	 */
+	public int getQueued() {
+		return dispatcher == null ? 0 : dispatcher.getQueue().size();
+	}
+
+	/**
+	 * @return Number of callbacks received, including rejected ones
+	 */
+	public long getReceivedCount() {
+		return received.get();
+	}
+
+	/**
+	 * @return Number of callbacks answered with 4xx, e.g. because of a wrong signature
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	/**
+	 * @return Number of callbacks that were received before and not handed over again
+	 */
+	public long getDuplicateCount() {
+		return duplicates.get();
+	}
+
+	/**
+	 * @return Number of callbacks answered with 503 because the queue was full
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return Number of notifications the handler returned from normally
+	 */
+	public long getDispatchedCount() {
+		return dispatched.get();
+	}
+
+	/**
+	 * @return Number of notifications the handler threw an exception for
+	 */
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	/**
+	 * Stops listening. Notifications that are still queued are dropped.
+	 */
+	public synchronized void close() {
+		if (server == null) {
+			return;
+		}
+
+		server.stop(0);
+		httpExecutor.shutdownNow();
+		dispatcher.shutdownNow();
+	}
+
+	@Override
+	public String toString() {
+		return "ContextIOWebhookReceiver [path=" + path + ", received=" + received + ", rejected=" + rejected
+				+ ", duplicates=" + duplicates + ", dropped=" + dropped + ", dispatched=" + dispatched
+				+ ", failed=" + failed + "]";
+	}
+}
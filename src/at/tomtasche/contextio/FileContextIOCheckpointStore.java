@@ -0,0 +1,157 @@
+package at.tomtasche.contextio;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.scribe.exceptions.OAuthException;
+
+/**
+ * {@link ContextIOCheckpointStore} that keeps one small file per account in a directory.
+ * A checkpoint is written to a temporary file, synced to disk and then renamed over
+ * the previous one, so a crash leaves either the old or the new checkpoint behind.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+public class FileContextIOCheckpointStore implements ContextIOCheckpointStore {
+
+	static final int VERSION = 1;
+
+	final File directory;
+
+	/**
+	 * @param directory Directory to keep the checkpoints in, created if missing
+	 */
+	public FileContextIOCheckpointStore(File directory) {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new OAuthException("Can't create checkpoint directory " + directory);
+		}
+
+		this.directory = directory;
+	}
+
+	File file(String account) {
+		return new File(directory, DigestUtils.shaHex(account) + ".checkpoint");
+	}
+
+	public ContextIOCheckpoint load(String account) {
+		File file = file(account);
+		if (!file.exists()) {
+			return null;
+		}
+
+		try {
+			ContextIOCheckpoint checkpoint = read(file);
+			if (!account.equals(checkpoint.account)) {
+				return null;
+			}
+
+			return checkpoint;
+		} catch (IOException e) {
+			throw new OAuthException("Problems while reading checkpoint " + file, e);
+		}
+	}
+
+	ContextIOCheckpoint read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new IOException("Unknown checkpoint version " + version);
+			}
+
+			ContextIOCheckpoint checkpoint = new ContextIOCheckpoint(in.readUTF(), in.readLong());
+			checkpoint.lastPollAt = in.readLong();
+			checkpoint.lastChangeAt = in.readLong();
+			checkpoint.intervalMillis = in.readLong();
+			checkpoint.messageCount = in.readLong();
+
+			int boundary = in.readInt();
+			for (int i = 0; i < boundary; i++) {
+				checkpoint.boundary.put(in.readUTF(), in.readInt());
+			}
+
+			return checkpoint;
+		} finally {
+			in.close();
+		}
+	}
+
+	public synchronized void save(ContextIOCheckpoint checkpoint) {
+		File file = file(checkpoint.account);
+		File temporary = new File(directory, file.getName() + ".tmp");
+
+		try {
+			FileOutputStream stream = new FileOutputStream(temporary);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+			try {
+				out.writeInt(VERSION);
+				out.writeUTF(checkpoint.account);
+				out.writeLong(checkpoint.since);
+				out.writeLong(checkpoint.lastPollAt);
+				out.writeLong(checkpoint.lastChangeAt);
+				out.writeLong(checkpoint.intervalMillis);
+				out.writeLong(checkpoint.messageCount);
+
+				out.writeInt(checkpoint.boundary.size());
+				for (Map.Entry<String, Integer> message : checkpoint.boundary.entrySet()) {
+					out.writeUTF(message.getKey());
+					out.writeInt(message.getValue());
+				}
+
+				out.flush();
+				stream.getFD().sync();
+			} finally {
+				out.close();
+			}
+
+			// renameTo doesn't replace existing files on every platform
+			if (!temporary.renameTo(file) && !(file.delete() && temporary.renameTo(file))) {
+				throw new IOException("Can't rename " + temporary + " to " + file);
+			}
+		} catch (IOException e) {
+			temporary.delete();
+
+			throw new OAuthException("Problems while saving checkpoint " + file, e);
+		}
+	}
+
+	public synchronized void remove(String account) {
+		file(account).delete();
+	}
+
+	public List<String> accounts() {
+		List<String> accounts = new ArrayList<String>();
+
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (!file.getName().endsWith(".checkpoint")) {
+					continue;
+				}
+
+				try {
+					accounts.add(read(file).account);
+				} catch (IOException e) {
+					// a damaged checkpoint only loses that account, it will be synced from scratch
+				}
+			}
+		}
+
+		return accounts;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+}
@@ -0,0 +1,46 @@
+package at.tomtasche.contextio;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * A single keep-alive connection to one host, owned by the {@link HttpConnectionPool}.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ */
+class HttpConnection {
+
+	final String route;
+	final Socket socket;
+	final InputStream in;
+	final OutputStream out;
+	long idleSince;
+	int useCount;
+
+	HttpConnection(String route, Socket socket) throws IOException {
+		this.route = route;
+		this.socket = socket;
+		this.in = new BufferedInputStream(socket.getInputStream(), 8192);
+		this.out = new BufferedOutputStream(socket.getOutputStream(), 8192);
+	}
+
+	boolean isReused() {
+		return useCount > 1;
+	}
+
+	boolean isOpen() {
+		return !socket.isClosed() && !socket.isInputShutdown() && !socket.isOutputShutdown();
+	}
+
+	void close() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// nothing left to clean up
+		}
+	}
+}
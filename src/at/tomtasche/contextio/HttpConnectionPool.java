@@ -0,0 +1,181 @@
+package at.tomtasche.contextio;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of idle keep-alive connections, grouped by route (scheme, host and port).
+ * Connections that have been idle for longer than the keep-alive timeout are closed
+ * instead of being handed out again.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ */
+public class HttpConnectionPool {
+
+	int maxIdlePerRoute;
+	long keepAliveMillis;
+
+	private final Map<String, LinkedList<HttpConnection>> idle = new HashMap<String, LinkedList<HttpConnection>>();
+
+	final AtomicLong requests = new AtomicLong();
+	final AtomicLong opened = new AtomicLong();
+	final AtomicLong reused = new AtomicLong();
+	final AtomicLong closed = new AtomicLong();
+
+	public HttpConnectionPool() {
+		this(5, 30000);
+	}
+
+	/**
+	 * @param maxIdlePerRoute Maximum number of idle connections kept per host
+	 * @param keepAliveMillis Time after which an idle connection is closed
+	 */
+	public HttpConnectionPool(int maxIdlePerRoute, long keepAliveMillis) {
+		this.maxIdlePerRoute = maxIdlePerRoute;
+		this.keepAliveMillis = keepAliveMillis;
+	}
+
+	/**
+	 * Takes the most recently used idle connection for the given route,
+	 * or returns null if a new one has to be opened.
+	 */
+	synchronized HttpConnection acquire(String route) {
+		LinkedList<HttpConnection> connections = idle.get(route);
+		if (connections == null) {
+			return null;
+		}
+
+		long now = System.currentTimeMillis();
+		while (!connections.isEmpty()) {
+			HttpConnection connection = connections.removeFirst();
+			if (connection.isOpen() && now - connection.idleSince < keepAliveMillis) {
+				return connection;
+			}
+
+			discard(connection);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Hands a connection back after its response body was fully consumed.
+	 */
+	synchronized void release(HttpConnection connection) {
+		LinkedList<HttpConnection> connections = idle.get(connection.route);
+		if (connections == null) {
+			connections = new LinkedList<HttpConnection>();
+			idle.put(connection.route, connections);
+		}
+
+		if (!connection.isOpen() || connections.size() >= maxIdlePerRoute) {
+			discard(connection);
+			return;
+		}
+
+		connection.idleSince = System.currentTimeMillis();
+		connections.addFirst(connection);
+	}
+
+	void discard(HttpConnection connection) {
+		connection.close();
+		closed.incrementAndGet();
+	}
+
+	/**
+	 * Closes all idle connections that are past the keep-alive timeout.
+	 */
+	public synchronized void evictExpired() {
+		long now = System.currentTimeMillis();
+		for (LinkedList<HttpConnection> connections : idle.values()) {
+			Iterator<HttpConnection> iterator = connections.iterator();
+			while (iterator.hasNext()) {
+				HttpConnection connection = iterator.next();
+				if (!connection.isOpen() || now - connection.idleSince >= keepAliveMillis) {
+					iterator.remove();
+					discard(connection);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Closes all idle connections. Connections currently in use are closed once they are released.
+	 */
+	public synchronized void close() {
+		for (LinkedList<HttpConnection> connections : idle.values()) {
+			for (HttpConnection connection : connections) {
+				discard(connection);
+			}
+		}
+
+		idle.clear();
+	}
+
+	public synchronized int getIdleCount() {
+		int count = 0;
+		for (LinkedList<HttpConnection> connections : idle.values()) {
+			count += connections.size();
+		}
+
+		return count;
+	}
+
+	public synchronized int getMaxIdlePerRoute() {
+		return maxIdlePerRoute;
+	}
+
+	public synchronized void setMaxIdlePerRoute(int maxIdlePerRoute) {
+		this.maxIdlePerRoute = maxIdlePerRoute;
+	}
+
+	public synchronized long getKeepAliveMillis() {
+		return keepAliveMillis;
+	}
+
+	public synchronized void setKeepAliveMillis(long keepAliveMillis) {
+		this.keepAliveMillis = keepAliveMillis;
+	}
+
+	/**
+	 * @return Number of requests sent through this pool
+	 */
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	/**
+	 * @return Number of connections (and TLS handshakes) that had to be opened
+	 */
+	public long getOpenedCount() {
+		return opened.get();
+	}
+
+	/**
+	 * @return Number of requests that were sent over an already open connection
+	 */
+	public long getReusedCount() {
+		return reused.get();
+	}
+
+	public long getClosedCount() {
+		return closed.get();
+	}
+
+	/**
+	 * @return Share of requests that did not need a new connection, between 0 and 1
+	 */
+	public double getReuseRatio() {
+		long total = requests.get();
+		return total == 0 ? 0 : (double) reused.get() / total;
+	}
+
+	@Override
+	public String toString() {
+		return "HttpConnectionPool [requests=" + requests + ", opened=" + opened
+				+ ", reused=" + reused + ", closed=" + closed + ", idle=" + getIdleCount() + "]";
+	}
+}
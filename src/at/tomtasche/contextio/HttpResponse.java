@@ -0,0 +1,142 @@
+package at.tomtasche.contextio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import org.scribe.exceptions.OAuthException;
+
+/**
+ * Response of a single call made through the {@link HttpTransport}. Mirrors the
+ * accessors of scribe's Response so existing callers keep working.
+ *
+ * The body is read lazily: the underlying connection goes back to the pool
+ * as soon as the body stream has been consumed or closed.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ */
+public class HttpResponse {
+
+	int code;
+	String message;
+	Map<String, String> headers;
+	InputStream stream;
+	byte[] bytes;
+	String body;
+	HttpTimings timings;
+
+	HttpResponse(int code, String message, Map<String, String> headers, InputStream stream) {
+		this.code = code;
+		this.message = message;
+		this.headers = headers;
+		this.stream = stream;
+	}
+
+	public int getCode() {
+		return code;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	/**
+	 * Returns all response headers. Header names are matched case-insensitively.
+	 * @return Map
+	 */
+	public Map<String, String> getHeaders() {
+		return headers;
+	}
+
+	public String getHeader(String name) {
+		return headers.get(name);
+	}
+
+	/**
+	 * @return Timings of the call, or null if the response didn't come from the network
+	 */
+	public HttpTimings getTimings() {
+		return timings;
+	}
+
+	/**
+	 * Returns the raw body stream. Closing it hands the connection back to the pool.
+	 * @return InputStream
+	 */
+	public InputStream getStream() {
+		return stream;
+	}
+
+	/**
+	 * Reads the whole body into a String. The result is cached, so the body
+	 * can be fetched more than once, also by several threads.
+	 * @return String
+	 */
+	public synchronized String getBody() {
+		if (body == null) {
+			try {
+				body = new String(bytes != null ? bytes : readFully(stream), getCharset());
+			} catch (IOException e) {
+				throw new OAuthException("Problems while reading response body", e);
+			}
+		}
+
+		return body;
+	}
+
+	/**
+	 * Reads the whole body into a byte array without decoding it. Like the String
+	 * returned by getBody, the result is cached.
+	 * @return byte[]
+	 */
+	public synchronized byte[] getBytes() {
+		if (bytes == null) {
+			try {
+				bytes = body != null ? body.getBytes(getCharset()) : readFully(stream);
+			} catch (IOException e) {
+				throw new OAuthException("Problems while reading response body", e);
+			}
+		}
+
+		return bytes;
+	}
+
+	String getCharset() {
+		String contentType = getHeader("Content-Type");
+		if (contentType != null) {
+			int index = contentType.toLowerCase().indexOf("charset=");
+			if (index >= 0) {
+				String charset = contentType.substring(index + "charset=".length()).trim();
+				int end = charset.indexOf(';');
+				if (end >= 0) {
+					charset = charset.substring(0, end).trim();
+				}
+
+				return charset.replace("\"", "");
+			}
+		}
+
+		return "UTF-8";
+	}
+
+	static byte[] readFully(InputStream in) throws IOException {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "HttpResponse [code=" + code + ", message=" + message + ", headers=" + headers + "]";
+	}
+}
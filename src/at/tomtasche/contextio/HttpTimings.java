@@ -0,0 +1,181 @@
+package at.tomtasche.contextio;
+
+/**
+ * Where the time of a single call made through the {@link HttpTransport} went.
+ * DNS, connect and TLS are only set if a new connection had to be opened; the
+ * body phase is known once the body was read completely (or abandoned).
+ *
+ * All durations are in nanoseconds.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+public class HttpTimings {
+
+	long dnsNanos;
+	long connectNanos;
+	long tlsNanos;
+	long firstByteNanos;
+	long bodyNanos;
+	long requestBytes;
+	long responseBytes;
+	long decodedBytes;
+	String contentEncoding;
+	boolean connected;
+	long headersAt;
+
+	private boolean bodyComplete;
+	private boolean wireComplete;
+	private boolean decodedComplete;
+	private Runnable onBodyComplete;
+
+	/**
+	 * Called by the body stream when it is done, i.e. fully read or closed.
+	 * @param bytes Bytes read from the connection
+	 */
+	void bodyComplete(long bytes) {
+		Runnable callback;
+		synchronized (this) {
+			if (wireComplete) {
+				return;
+			}
+
+			wireComplete = true;
+			responseBytes = bytes;
+			if (contentEncoding == null) {
+				decodedComplete = true;
+				decodedBytes = bytes;
+			}
+
+			callback = complete();
+		}
+
+		if (callback != null) {
+			callback.run();
+		}
+	}
+
+	/**
+	 * Called by the decompressing stream of a compressed body when it is done.
+	 * @param bytes Bytes handed to the caller after decompression
+	 */
+	void decodedComplete(long bytes) {
+		Runnable callback;
+		synchronized (this) {
+			if (decodedComplete) {
+				return;
+			}
+
+			decodedComplete = true;
+			decodedBytes = bytes;
+
+			callback = complete();
+		}
+
+		if (callback != null) {
+			callback.run();
+		}
+	}
+
+	/**
+	 * @return The callback to run if the body just became complete
+	 */
+	private Runnable complete() {
+		if (bodyComplete || !wireComplete || !decodedComplete) {
+			return null;
+		}
+
+		bodyComplete = true;
+		bodyNanos = System.nanoTime() - headersAt;
+
+		return onBodyComplete;
+	}
+
+	/**
+	 * Runs the given callback once the body is done, right away if it already is.
+	 */
+	void setOnBodyComplete(Runnable callback) {
+		synchronized (this) {
+			if (!bodyComplete) {
+				onBodyComplete = callback;
+
+				return;
+			}
+		}
+
+		callback.run();
+	}
+
+	public long getDnsNanos() {
+		return dnsNanos;
+	}
+
+	public long getConnectNanos() {
+		return connectNanos;
+	}
+
+	public long getTlsNanos() {
+		return tlsNanos;
+	}
+
+	/**
+	 * @return Time from sending the request until the status line arrived
+	 */
+	public long getFirstByteNanos() {
+		return firstByteNanos;
+	}
+
+	/**
+	 * @return Time from receiving the headers until the body was done, 0 until then
+	 */
+	public synchronized long getBodyNanos() {
+		return bodyNanos;
+	}
+
+	/**
+	 * @return Size of the request head and body
+	 */
+	public long getRequestBytes() {
+		return requestBytes;
+	}
+
+	/**
+	 * @return Size of the response body as received, i.e. compressed if the server compressed it, 0 until the body was done
+	 */
+	public synchronized long getResponseBytes() {
+		return responseBytes;
+	}
+
+	/**
+	 * @return Size of the response body after decompression, 0 until the body was done
+	 */
+	public synchronized long getDecodedBytes() {
+		return decodedBytes;
+	}
+
+	/**
+	 * @return Content-Encoding the body was sent with, e.g. gzip, or null if it wasn't compressed
+	 */
+	public String getContentEncoding() {
+		return contentEncoding;
+	}
+
+	/**
+	 * @return true if a new connection was opened for this call, false if a pooled one was reused
+	 */
+	public boolean isConnected() {
+		return connected;
+	}
+
+	public synchronized boolean isBodyComplete() {
+		return bodyComplete;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "HttpTimings [dnsNanos=" + dnsNanos + ", connectNanos=" + connectNanos + ", tlsNanos=" + tlsNanos
+				+ ", firstByteNanos=" + firstByteNanos + ", bodyNanos=" + bodyNanos + ", requestBytes=" + requestBytes
+				+ ", responseBytes=" + responseBytes + ", decodedBytes=" + decodedBytes + ", contentEncoding=" + contentEncoding
+				+ ", connected=" + connected + "]";
+	}
+}
@@ -0,0 +1,793 @@
+package at.tomtasche.contextio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.Socket;
+import java.net.URL;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Minimal HTTP/1.1 client used by {@link ContextIO} to talk to the API.
+ * Unlike HttpURLConnection it keeps its own {@link HttpConnectionPool}, so every
+ * ContextIO instance reuses its connections (and TLS sessions) between calls
+ * and can report how often that happened.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ */
+public class HttpTransport {
+
+	static final String CRLF = "\r\n";
+
+	HttpConnectionPool pool;
+	SSLSocketFactory sslSocketFactory;
+	int connectTimeout;
+	int readTimeout;
+	boolean compression;
+
+	public HttpTransport() {
+		this(new HttpConnectionPool());
+	}
+
+	public HttpTransport(HttpConnectionPool pool) {
+		this.pool = pool;
+		this.connectTimeout = 30000;
+		this.readTimeout = 60000;
+		this.compression = true;
+	}
+
+	/**
+	 * Sends a request and returns as soon as the status line and headers were read.
+	 * The body has to be consumed (or its stream closed) to free the connection.
+	 * @param method HTTP verb, e.g. GET
+	 * @param url Complete URL including the query string
+	 * @param headers Request headers, may be null
+	 * @param body Request body, may be null
+	 * @return HttpResponse
+	 */
+	public HttpResponse execute(String method, String url, Map<String, String> headers, byte[] body) throws IOException {
+		URL parsed;
+		try {
+			parsed = new URL(url);
+		} catch (MalformedURLException e) {
+			throw new IllegalArgumentException("Invalid URL: " + url, e);
+		}
+
+		boolean ssl = "https".equalsIgnoreCase(parsed.getProtocol());
+		int port = parsed.getPort() != -1 ? parsed.getPort() : parsed.getDefaultPort();
+		String host = parsed.getHost();
+		String route = parsed.getProtocol().toLowerCase() + "://" + host + ":" + port;
+
+		String path = parsed.getFile();
+		if (path.length() == 0) {
+			path = "/";
+		}
+
+		String hostHeader = parsed.getPort() == -1 ? host : host + ":" + port;
+		byte[] head = buildHead(method, path, hostHeader, headers, body);
+
+		pool.requests.incrementAndGet();
+
+		HttpTimings timings = new HttpTimings();
+
+		HttpConnection connection = pool.acquire(route);
+		if (connection != null) {
+			try {
+				return exchange(connection, method, head, body, timings);
+			} catch (IOException e) {
+				// the server might have closed the idle connection in the meantime
+				pool.discard(connection);
+
+				if (!isIdempotent(method)) {
+					throw e;
+				}
+			}
+		}
+
+		connection = open(route, host, port, ssl, timings);
+		try {
+			return exchange(connection, method, head, body, timings);
+		} catch (IOException e) {
+			pool.discard(connection);
+
+			throw e;
+		}
+	}
+
+	HttpConnection open(String route, String host, int port, boolean ssl, HttpTimings timings) throws IOException {
+		Socket socket = new Socket();
+		try {
+			long start = System.nanoTime();
+			InetSocketAddress address = new InetSocketAddress(host, port);
+			long resolved = System.nanoTime();
+			socket.connect(address, connectTimeout);
+			long connected = System.nanoTime();
+
+			socket.setSoTimeout(readTimeout);
+			socket.setTcpNoDelay(true);
+			socket.setKeepAlive(true);
+
+			if (ssl) {
+				SSLSocket sslSocket = (SSLSocket) getSslSocketFactory().createSocket(socket, host, port, true);
+				sslSocket.startHandshake();
+				verifyHostname(host, sslSocket);
+
+				socket = sslSocket;
+
+				timings.tlsNanos = System.nanoTime() - connected;
+			}
+
+			timings.dnsNanos = resolved - start;
+			timings.connectNanos = connected - resolved;
+			timings.connected = true;
+
+			pool.opened.incrementAndGet();
+
+			return new HttpConnection(route, socket);
+		} catch (IOException e) {
+			try {
+				socket.close();
+			} catch (IOException ignored) {
+			}
+
+			throw e;
+		}
+	}
+
+	HttpResponse exchange(HttpConnection connection, String method, byte[] head, byte[] body, HttpTimings timings) throws IOException {
+		connection.useCount++;
+
+		long sent = System.nanoTime();
+		timings.requestBytes = head.length + (body == null ? 0 : body.length);
+
+		connection.out.write(head);
+		if (body != null) {
+			connection.out.write(body);
+		}
+		connection.out.flush();
+
+		String statusLine;
+		do {
+			statusLine = readLine(connection.in);
+			if (statusLine == null) {
+				throw new EOFException("Connection closed before response");
+			}
+		} while (statusLine.length() == 0);
+
+		timings.firstByteNanos = System.nanoTime() - sent;
+
+		if (connection.isReused()) {
+			pool.reused.incrementAndGet();
+		}
+
+		int code;
+		String message;
+		Map<String, String> headers;
+		while (true) {
+			int firstSpace = statusLine.indexOf(' ');
+			int secondSpace = statusLine.indexOf(' ', firstSpace + 1);
+			if (!statusLine.startsWith("HTTP/") || firstSpace < 0) {
+				throw new IOException("Malformed status line: " + statusLine);
+			}
+
+			try {
+				code = Integer.parseInt(secondSpace < 0 ? statusLine.substring(firstSpace + 1) : statusLine.substring(firstSpace + 1, secondSpace));
+			} catch (NumberFormatException e) {
+				throw new IOException("Malformed status line: " + statusLine);
+			}
+			message = secondSpace < 0 ? "" : statusLine.substring(secondSpace + 1);
+			headers = readHeaders(connection.in);
+
+			if (code >= 100 && code < 200) {
+				// skip interim responses like 100 Continue
+				statusLine = readLine(connection.in);
+				if (statusLine == null) {
+					throw new EOFException("Connection closed before response");
+				}
+
+				continue;
+			}
+
+			break;
+		}
+
+		timings.headersAt = System.nanoTime();
+
+		boolean keepAlive = statusLine.startsWith("HTTP/1.1") ? !hasToken(headers.get("Connection"), "close") : hasToken(headers.get("Connection"), "keep-alive");
+
+		InputStream content;
+		if ("HEAD".equals(method) || code == 204 || code == 304) {
+			content = new BodyInputStream(connection, 0, keepAlive, timings);
+		} else {
+			// must be known before the body stream is created, an empty body completes right away
+			timings.contentEncoding = compressionOf(headers.get("Content-Encoding"));
+
+			content = openBody(connection, headers, keepAlive, timings);
+
+			if (timings.contentEncoding != null) {
+				content = new InflatingInputStream(content, timings);
+
+				// callers see the decompressed body, these headers describe the compressed one
+				headers.remove("Content-Encoding");
+				headers.remove("Content-Length");
+			}
+		}
+
+		HttpResponse response = new HttpResponse(code, message, headers, content);
+		response.timings = timings;
+
+		return response;
+	}
+
+	InputStream openBody(HttpConnection connection, Map<String, String> headers, boolean keepAlive, HttpTimings timings) throws IOException {
+		InputStream content;
+		if (hasToken(headers.get("Transfer-Encoding"), "chunked")) {
+			content = new ChunkedInputStream(connection, keepAlive, timings);
+		} else if (headers.get("Content-Length") != null) {
+			long length;
+			try {
+				length = Long.parseLong(headers.get("Content-Length").trim());
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid Content-Length: " + headers.get("Content-Length"));
+			}
+
+			content = new BodyInputStream(connection, length, keepAlive, timings);
+		} else {
+			content = new BodyInputStream(connection, -1, false, timings);
+		}
+
+		return content;
+	}
+
+	/**
+	 * @return gzip or deflate if the body is compressed with an encoding we can decode, null otherwise
+	 */
+	static String compressionOf(String contentEncoding) {
+		if (contentEncoding == null) {
+			return null;
+		}
+
+		String encoding = contentEncoding.trim().toLowerCase();
+		if (encoding.equals("gzip") || encoding.equals("x-gzip")) {
+			return "gzip";
+		} else if (encoding.equals("deflate")) {
+			return "deflate";
+		}
+
+		return null;
+	}
+
+	byte[] buildHead(String method, String path, String host, Map<String, String> headers, byte[] body) {
+		StringBuilder head = new StringBuilder(256);
+		head.append(method).append(' ').append(path).append(" HTTP/1.1").append(CRLF);
+		head.append("Host: ").append(host).append(CRLF);
+
+		boolean acceptEncoding = false;
+		if (headers != null) {
+			for (Map.Entry<String, String> header : headers.entrySet()) {
+				head.append(header.getKey()).append(": ").append(header.getValue()).append(CRLF);
+
+				acceptEncoding |= header.getKey().equalsIgnoreCase("Accept-Encoding");
+			}
+		}
+
+		if (compression && !acceptEncoding) {
+			head.append("Accept-Encoding: gzip, deflate").append(CRLF);
+		}
+
+		if (body != null) {
+			head.append("Content-Length: ").append(body.length).append(CRLF);
+		}
+
+		head.append(CRLF);
+
+		try {
+			return head.toString().getBytes("ISO-8859-1");
+		} catch (java.io.UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static boolean isIdempotent(String method) {
+		return "GET".equals(method) || "HEAD".equals(method) || "PUT".equals(method) || "DELETE".equals(method);
+	}
+
+	static boolean hasToken(String value, String token) {
+		if (value == null) {
+			return false;
+		}
+
+		for (String part : value.split(",")) {
+			if (part.trim().equalsIgnoreCase(token)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	static Map<String, String> readHeaders(InputStream in) throws IOException {
+		Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+
+		String line;
+		while ((line = readLine(in)) != null && line.length() > 0) {
+			int colon = line.indexOf(':');
+			if (colon <= 0) {
+				continue;
+			}
+
+			String name = line.substring(0, colon).trim();
+			String value = line.substring(colon + 1).trim();
+
+			String previous = headers.get(name);
+			headers.put(name, previous == null ? value : previous + ", " + value);
+		}
+
+		if (line == null) {
+			throw new EOFException("Connection closed while reading headers");
+		}
+
+		return headers;
+	}
+
+	/**
+	 * Reads a CRLF (or LF) terminated line, returns null on end of stream.
+	 */
+	static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+
+		int c;
+		while ((c = in.read()) != -1) {
+			if (c == '\n') {
+				break;
+			}
+
+			line.write(c);
+		}
+
+		if (c == -1 && line.size() == 0) {
+			return null;
+		}
+
+		String result = line.toString("ISO-8859-1");
+		if (result.endsWith("\r")) {
+			result = result.substring(0, result.length() - 1);
+		}
+
+		return result;
+	}
+
+	static void verifyHostname(String host, SSLSocket socket) throws IOException {
+		Certificate[] certificates = socket.getSession().getPeerCertificates();
+		if (certificates.length == 0 || !(certificates[0] instanceof X509Certificate)) {
+			throw new SSLPeerUnverifiedException("No X.509 certificate presented by " + host);
+		}
+
+		X509Certificate certificate = (X509Certificate) certificates[0];
+		if (!matchesHostname(host, certificate)) {
+			socket.close();
+
+			throw new SSLPeerUnverifiedException("Certificate does not match host " + host);
+		}
+	}
+
+	static boolean matchesHostname(String host, X509Certificate certificate) {
+		host = host.toLowerCase();
+
+		Collection<List<?>> alternativeNames;
+		try {
+			alternativeNames = certificate.getSubjectAlternativeNames();
+		} catch (CertificateParsingException e) {
+			return false;
+		}
+
+		boolean hasDnsNames = false;
+		if (alternativeNames != null) {
+			for (List<?> entry : alternativeNames) {
+				Integer type = (Integer) entry.get(0);
+				if (type.intValue() == 2) {
+					hasDnsNames = true;
+
+					if (matchesPattern(host, ((String) entry.get(1)).toLowerCase())) {
+						return true;
+					}
+				} else if (type.intValue() == 7 && host.equals(entry.get(1))) {
+					return true;
+				}
+			}
+		}
+
+		if (hasDnsNames) {
+			return false;
+		}
+
+		// fall back to the most specific common name if there are no DNS names
+		String commonName = null;
+		for (String part : certificate.getSubjectX500Principal().getName().split(",")) {
+			part = part.trim();
+			if (part.toUpperCase().startsWith("CN=")) {
+				commonName = part.substring(3).toLowerCase();
+			}
+		}
+
+		return commonName != null && matchesPattern(host, commonName);
+	}
+
+	static boolean matchesPattern(String host, String pattern) {
+		if (!pattern.startsWith("*.")) {
+			return host.equals(pattern);
+		}
+
+		// wildcards only match a single, left-most label
+		int dot = host.indexOf('.');
+		return dot > 0 && host.substring(dot).equals(pattern.substring(1));
+	}
+
+	public HttpConnectionPool getPool() {
+		return pool;
+	}
+
+	public SSLSocketFactory getSslSocketFactory() {
+		if (sslSocketFactory == null) {
+			sslSocketFactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+		}
+
+		return sslSocketFactory;
+	}
+
+	/**
+	 * Use a custom socket factory for HTTPS, e.g. to trust a local test server.
+	 * @param sslSocketFactory SSLSocketFactory to use, null for the platform default
+	 */
+	public void setSslSocketFactory(SSLSocketFactory sslSocketFactory) {
+		this.sslSocketFactory = sslSocketFactory;
+	}
+
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	public void setReadTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+
+	public boolean isCompression() {
+		return compression;
+	}
+
+	/**
+	 * Ask the server to compress responses with gzip or deflate, enabled by default.
+	 * Compressed bodies are decompressed while they are read. Requests that set their
+	 * own Accept-Encoding header are sent unchanged.
+	 */
+	public void setCompression(boolean compression) {
+		this.compression = compression;
+	}
+
+	public void close() {
+		pool.close();
+	}
+
+
+	/**
+	 * Body with a known length (or, if length is -1, delimited by the end of the connection).
+	 * Gives the connection back to the pool once everything was read.
+	 */
+	class BodyInputStream extends InputStream {
+
+		final HttpConnection connection;
+		final boolean keepAlive;
+		final HttpTimings timings;
+		long remaining;
+		long bytesRead;
+		boolean done;
+
+		BodyInputStream(HttpConnection connection, long length, boolean keepAlive, HttpTimings timings) {
+			this.connection = connection;
+			this.remaining = length;
+			this.keepAlive = keepAlive;
+			this.timings = timings;
+
+			if (length == 0) {
+				finish(true);
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] single = new byte[1];
+			int read = read(single, 0, 1);
+			return read == -1 ? -1 : single[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			if (done) {
+				return -1;
+			}
+
+			if (remaining >= 0) {
+				length = (int) Math.min(length, remaining);
+			}
+
+			int read = connection.in.read(buffer, offset, length);
+			if (read == -1) {
+				if (remaining > 0) {
+					finish(false);
+					throw new EOFException("Connection closed with " + remaining + " bytes left");
+				}
+
+				finish(false);
+				return -1;
+			}
+
+			bytesRead += read;
+			if (remaining >= 0) {
+				remaining -= read;
+				if (remaining == 0) {
+					finish(true);
+				}
+			}
+
+			return read;
+		}
+
+		@Override
+		public int available() throws IOException {
+			if (done) {
+				return 0;
+			}
+
+			int available = connection.in.available();
+			return remaining >= 0 ? (int) Math.min(available, remaining) : available;
+		}
+
+		/**
+		 * Skips what is left of the body if it already arrived, so the connection
+		 * can still be reused. Gives up on the connection otherwise.
+		 */
+		@Override
+		public void close() throws IOException {
+			if (done) {
+				return;
+			}
+
+			if (keepAlive) {
+				try {
+					byte[] skip = new byte[4096];
+					long budget = 65536;
+					while (!done && budget > 0 && connection.in.available() > 0) {
+						int read = read(skip, 0, skip.length);
+						if (read == -1) {
+							break;
+						}
+
+						budget -= read;
+					}
+				} catch (IOException e) {
+					// the connection gets discarded below
+				}
+			}
+
+			if (!done) {
+				finish(false);
+			}
+		}
+
+		void finish(boolean complete) {
+			done = true;
+
+			timings.bodyComplete(bytesRead);
+
+			if (complete && keepAlive) {
+				pool.release(connection);
+			} else {
+				pool.discard(connection);
+			}
+		}
+	}
+
+	/**
+	 * Body sent with Transfer-Encoding: chunked.
+	 */
+	class ChunkedInputStream extends BodyInputStream {
+
+		ChunkedInputStream(HttpConnection connection, boolean keepAlive, HttpTimings timings) {
+			super(connection, -1, keepAlive, timings);
+			this.remaining = 0;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			if (done) {
+				return -1;
+			}
+
+			try {
+				if (remaining == 0) {
+					remaining = readChunkSize();
+					if (remaining == 0) {
+						// trailers end with an empty line
+						readHeaders(connection.in);
+						finish(true);
+						return -1;
+					}
+				}
+
+				int read = connection.in.read(buffer, offset, (int) Math.min(length, remaining));
+				if (read == -1) {
+					throw new EOFException("Connection closed inside a chunk");
+				}
+
+				bytesRead += read;
+				remaining -= read;
+				if (remaining == 0) {
+					readLine(connection.in);
+				}
+
+				return read;
+			} catch (IOException e) {
+				finish(false);
+				throw e;
+			}
+		}
+
+		@Override
+		public int available() throws IOException {
+			if (done || remaining <= 0) {
+				return 0;
+			}
+
+			return (int) Math.min(connection.in.available(), remaining);
+		}
+
+		long readChunkSize() throws IOException {
+			String line = readLine(connection.in);
+			if (line == null) {
+				throw new EOFException("Connection closed before chunk");
+			}
+
+			int extension = line.indexOf(';');
+			if (extension >= 0) {
+				line = line.substring(0, extension);
+			}
+
+			try {
+				return Long.parseLong(line.trim(), 16);
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid chunk size: " + line);
+			}
+		}
+	}
+
+	/**
+	 * Body sent with Content-Encoding gzip or deflate, decompressed while it is read.
+	 * The decompressor is only set up on the first read, so it doesn't block before the
+	 * caller asks for the body.
+	 */
+	static class InflatingInputStream extends InputStream {
+
+		final InputStream raw;
+		final HttpTimings timings;
+		InputStream inflated;
+		Inflater inflater;
+		long bytesInflated;
+		boolean done;
+
+		InflatingInputStream(InputStream raw, HttpTimings timings) {
+			this.raw = raw;
+			this.timings = timings;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] single = new byte[1];
+			int read = read(single, 0, 1);
+			return read == -1 ? -1 : single[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			if (done) {
+				return -1;
+			}
+
+			int read;
+			try {
+				if (inflated == null) {
+					inflated = open();
+				}
+
+				read = inflated.read(buffer, offset, length);
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+
+			if (read == -1) {
+				close();
+				return -1;
+			}
+
+			bytesInflated += read;
+
+			return read;
+		}
+
+		InputStream open() throws IOException {
+			PushbackInputStream in = new PushbackInputStream(raw, 2);
+
+			int first = in.read();
+			if (first == -1) {
+				return in;
+			}
+
+			int second = in.read();
+			if (second != -1) {
+				in.unread(second);
+			}
+			in.unread(first);
+
+			if ("gzip".equals(timings.contentEncoding)) {
+				return new GZIPInputStream(in, 8192);
+			}
+
+			// deflate is meant to be wrapped in zlib, but some servers send the raw stream
+			boolean zlib = second != -1 && (first & 0x0f) == 8 && ((first << 8) | second) % 31 == 0;
+			inflater = new Inflater(!zlib);
+
+			return new InflaterInputStream(in, inflater, 8192);
+		}
+
+		/**
+		 * Closing the raw stream hands the connection back to the pool if the body was
+		 * read completely, so a decompressor that stops right behind the end of the
+		 * data doesn't cost the connection.
+		 */
+		@Override
+		public void close() throws IOException {
+			if (done) {
+				return;
+			}
+
+			done = true;
+			try {
+				if (inflated != null) {
+					inflated.close();
+				}
+				raw.close();
+			} finally {
+				if (inflater != null) {
+					inflater.end();
+				}
+
+				timings.decodedComplete(bytesInflated);
+			}
+		}
+	}
+}
@@ -0,0 +1,394 @@
+package at.tomtasche.contextio;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+/**
+ * In-memory {@link ContextIOCache} that evicts the least recently used entries once
+ * it holds more than maxEntries entries or maxBytes bytes. Entries are fresh for
+ * ttlMillis after they were stored, or shorter if the server says so with Cache-Control
+ * or Expires; stale entries are kept if they can be revalidated (they carry an ETag or
+ * Last-Modified header) and dropped otherwise.
+ *
+ * If a spill directory is set, evicted entries are written there instead of being
+ * dropped, and read back on the next access. The directory holds at most maxSpillBytes
+ * bytes, maxBytes unless set otherwise, beyond that the oldest files are deleted.
+ * {@link #purgeSpilled()} deletes spilled entries that went stale and can't be revalidated.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+public class LruContextIOCache implements ContextIOCache {
+
+	final int maxEntries;
+	final long maxBytes;
+	final long ttlMillis;
+	File spillDirectory;
+	long maxSpillBytes;
+
+	private final LinkedHashMap<String, ContextIOCacheEntry> entries = new LinkedHashMap<String, ContextIOCacheEntry>(16, 0.75f, true);
+	private long bytes;
+
+	final AtomicLong hits = new AtomicLong();
+	final AtomicLong misses = new AtomicLong();
+	final AtomicLong evictions = new AtomicLong();
+	final AtomicLong spills = new AtomicLong();
+	final AtomicLong diskHits = new AtomicLong();
+	final AtomicLong revalidations = new AtomicLong();
+
+	/**
+	 * @param maxEntries Maximum number of entries held in memory
+	 * @param maxBytes Maximum size of all entries held in memory
+	 * @param ttlMillis Time an entry is served without asking the server
+	 */
+	public LruContextIOCache(int maxEntries, long maxBytes, long ttlMillis) {
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+		this.ttlMillis = ttlMillis;
+		this.maxSpillBytes = maxBytes;
+	}
+
+	public ContextIOCacheEntry get(String key) {
+		ContextIOCacheEntry entry;
+		synchronized (this) {
+			entry = entries.get(key);
+		}
+
+		if (entry == null && spillDirectory != null) {
+			entry = readSpilled(key);
+			if (entry != null) {
+				diskHits.incrementAndGet();
+
+				put(key, entry, false);
+			}
+		}
+
+		boolean fresh = entry != null && entry.isFresh(System.currentTimeMillis());
+		if (entry != null && !fresh && !entry.hasValidators()) {
+			remove(key);
+
+			entry = null;
+		}
+
+		// stale entries are returned for revalidation, but still count as a miss
+		if (fresh) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+		}
+
+		return entry;
+	}
+
+	public void put(String key, ContextIOCacheEntry entry) {
+		long maxAge = entry.getMaxAgeMillis();
+		entry.setExpiresAt(entry.getStoredAt() + (maxAge < 0 ? ttlMillis : Math.min(maxAge, ttlMillis)));
+
+		put(key, entry, true);
+	}
+
+	void put(String key, ContextIOCacheEntry entry, boolean removeSpilled) {
+		Map<String, ContextIOCacheEntry> evicted = new LinkedHashMap<String, ContextIOCacheEntry>();
+
+		synchronized (this) {
+			ContextIOCacheEntry previous = entries.put(key, entry);
+			if (previous != null) {
+				bytes -= previous.getWeight();
+			}
+			bytes += entry.getWeight();
+
+			Iterator<Map.Entry<String, ContextIOCacheEntry>> iterator = entries.entrySet().iterator();
+			while ((entries.size() > maxEntries || bytes > maxBytes) && iterator.hasNext()) {
+				Map.Entry<String, ContextIOCacheEntry> eldest = iterator.next();
+				if (eldest.getValue() == entry) {
+					// never evict what was just stored, even if it is larger than maxBytes
+					continue;
+				}
+
+				iterator.remove();
+				bytes -= eldest.getValue().getWeight();
+				evictions.incrementAndGet();
+
+				evicted.put(eldest.getKey(), eldest.getValue());
+			}
+		}
+
+		if (spillDirectory != null) {
+			if (removeSpilled) {
+				spillFile(key).delete();
+			}
+
+			for (Map.Entry<String, ContextIOCacheEntry> spilled : evicted.entrySet()) {
+				spill(spilled.getKey(), spilled.getValue());
+			}
+
+			if (!evicted.isEmpty()) {
+				trimSpilled();
+			}
+		}
+	}
+
+	public void revalidated(String key, ContextIOCacheEntry entry) {
+		revalidations.incrementAndGet();
+
+		put(key, entry);
+	}
+
+	public void remove(String key) {
+		synchronized (this) {
+			ContextIOCacheEntry previous = entries.remove(key);
+			if (previous != null) {
+				bytes -= previous.getWeight();
+			}
+		}
+
+		if (spillDirectory != null) {
+			spillFile(key).delete();
+		}
+	}
+
+	public void clear() {
+		synchronized (this) {
+			entries.clear();
+			bytes = 0;
+		}
+
+		for (File file : spilledFiles()) {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Deletes spilled entries that are stale and can't be revalidated, or can't be read.
+	 * @return Number of deleted entries
+	 */
+	public int purgeSpilled() {
+		long now = System.currentTimeMillis();
+
+		int purged = 0;
+		for (File file : spilledFiles()) {
+			ContextIOCacheEntry entry = read(file, null);
+			if (entry == null || !entry.isFresh(now) && !entry.hasValidators()) {
+				if (file.delete()) {
+					purged++;
+				}
+			}
+		}
+
+		return purged;
+	}
+
+	File spillFile(String key) {
+		return new File(spillDirectory, DigestUtils.shaHex(key) + ".entry");
+	}
+
+	File[] spilledFiles() {
+		File directory = spillDirectory;
+		File[] files = directory == null ? null : directory.listFiles();
+		if (files == null) {
+			return new File[0];
+		}
+
+		int count = 0;
+		for (File file : files) {
+			if (file.getName().endsWith(".entry")) {
+				files[count++] = file;
+			}
+		}
+
+		return Arrays.copyOf(files, count);
+	}
+
+	/**
+	 * Deletes the least recently spilled files until the directory holds at most maxSpillBytes.
+	 */
+	void trimSpilled() {
+		File[] files = spilledFiles();
+
+		long total = 0;
+		for (int i = 0; i < files.length; i++) {
+			total += files[i].length();
+		}
+		if (total <= maxSpillBytes) {
+			return;
+		}
+
+		final Map<File, Long> lastModified = new HashMap<File, Long>();
+		for (File file : files) {
+			lastModified.put(file, file.lastModified());
+		}
+		Arrays.sort(files, new Comparator<File>() {
+
+			public int compare(File first, File second) {
+				long difference = lastModified.get(first) - lastModified.get(second);
+				return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+			}
+		});
+
+		for (int i = 0; i < files.length && total > maxSpillBytes; i++) {
+			long length = files[i].length();
+			if (files[i].delete()) {
+				total -= length;
+			}
+		}
+	}
+
+	void spill(String key, ContextIOCacheEntry entry) {
+		if (!entry.isFresh(System.currentTimeMillis()) && !entry.hasValidators()) {
+			return;
+		}
+
+		File file = spillFile(key);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+			try {
+				out.writeUTF(key);
+				out.writeInt(entry.code);
+				out.writeLong(entry.storedAt);
+				out.writeLong(entry.expiresAt);
+				out.writeInt(entry.headers.size());
+				for (Map.Entry<String, String> header : entry.headers.entrySet()) {
+					out.writeUTF(header.getKey());
+					out.writeUTF(header.getValue());
+				}
+				out.writeInt(entry.body.length);
+				out.write(entry.body);
+			} finally {
+				out.close();
+			}
+
+			spills.incrementAndGet();
+		} catch (IOException e) {
+			// the cache is best effort, a failed spill is a plain eviction
+			file.delete();
+		}
+	}
+
+	ContextIOCacheEntry readSpilled(String key) {
+		File file = spillFile(key);
+		if (!file.exists()) {
+			return null;
+		}
+
+		ContextIOCacheEntry entry = read(file, key);
+		file.delete();
+
+		return entry;
+	}
+
+	/**
+	 * @param key Key the entry has to be stored under, or null for any key
+	 * @return Entry stored in the given file, or null if it can't be read
+	 */
+	ContextIOCacheEntry read(File file, String key) {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				String storedKey = in.readUTF();
+				if (key != null && !key.equals(storedKey)) {
+					return null;
+				}
+
+				int code = in.readInt();
+				long storedAt = in.readLong();
+				long expiresAt = in.readLong();
+
+				int headerCount = in.readInt();
+				Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+				for (int i = 0; i < headerCount; i++) {
+					headers.put(in.readUTF(), in.readUTF());
+				}
+
+				byte[] body = new byte[in.readInt()];
+				in.readFully(body);
+
+				ContextIOCacheEntry entry = new ContextIOCacheEntry(code, headers, body, storedAt);
+				entry.setExpiresAt(expiresAt);
+
+				return entry;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	public File getSpillDirectory() {
+		return spillDirectory;
+	}
+
+	/**
+	 * Write evicted entries to the given directory instead of dropping them.
+	 * @param spillDirectory Existing directory, or null to disable spilling
+	 */
+	public void setSpillDirectory(File spillDirectory) {
+		this.spillDirectory = spillDirectory;
+	}
+
+	public long getMaxSpillBytes() {
+		return maxSpillBytes;
+	}
+
+	/**
+	 * @param maxSpillBytes Maximum size of all files in the spill directory, defaults to maxBytes
+	 */
+	public void setMaxSpillBytes(long maxSpillBytes) {
+		this.maxSpillBytes = maxSpillBytes;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	public long getSpillCount() {
+		return spills.get();
+	}
+
+	public long getDiskHitCount() {
+		return diskHits.get();
+	}
+
+	public long getRevalidationCount() {
+		return revalidations.get();
+	}
+
+	@Override
+	public String toString() {
+		return "LruContextIOCache [size=" + size() + ", bytes=" + getBytes() + ", hits=" + hits
+				+ ", misses=" + misses + ", evictions=" + evictions + ", spills=" + spills
+				+ ", diskHits=" + diskHits + ", revalidations=" + revalidations + "]";
+	}
+}
@@ -0,0 +1,51 @@
+package at.tomtasche.contextio;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * {@link HttpTransport} that captures every call into a {@link ContextIORecording}, e.g.
+ * to replay it later with {@link ContextIOReplayServer}. Install it with
+ * {@link ContextIO#setTransport(HttpTransport)}.
+ *
+ * The body of every response is read completely before it is handed on, so calls that
+ * stream large bodies need as much memory as the body while recording.
+ *
+ * @author Thomas Taschauer | tomtasche.at
+ *
+ */
+public class RecordingHttpTransport extends HttpTransport {
+
+	final ContextIORecording recording;
+
+	public RecordingHttpTransport(ContextIORecording recording) {
+		this(new HttpConnectionPool(), recording);
+	}
+
+	public RecordingHttpTransport(HttpConnectionPool pool, ContextIORecording recording) {
+		super(pool);
+
+		this.recording = recording;
+	}
+
+	@Override
+	public HttpResponse execute(String method, String url, Map<String, String> headers, byte[] body) throws IOException {
+		HttpResponse response = super.execute(method, url, headers, body);
+
+		// reading to the end completes the timings and returns the connection to the pool
+		byte[] bytes = HttpResponse.readFully(response.getStream());
+
+		recording.add(method, url, body, response.code, response.message, response.headers, bytes);
+
+		HttpResponse recorded = new HttpResponse(response.code, response.message, response.headers, new ByteArrayInputStream(bytes));
+		recorded.bytes = bytes;
+		recorded.timings = response.timings;
+
+		return recorded;
+	}
+
+	public ContextIORecording getRecording() {
+		return recording;
+	}
+}